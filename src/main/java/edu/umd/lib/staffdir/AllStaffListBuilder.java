@@ -3,6 +3,7 @@ package edu.umd.lib.staffdir;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -18,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.umd.lib.staffdir.excel.ExcelGenerator;
+import edu.umd.lib.staffdir.google.GoogleClientFactory;
 import edu.umd.lib.staffdir.google.SheetsRetriever;
 import edu.umd.lib.staffdir.google.DriveUploader;
 
@@ -43,23 +45,35 @@ public class AllStaffListBuilder {
     String appName = props.getProperty("appName");
     String serviceAccountCredentialsFile = props.getProperty("serviceAccountCredentialsFile");
     String spreadsheetDocId = props.getProperty("spreadsheetDocId");
-    SheetsRetriever sr = new SheetsRetriever(appName, serviceAccountCredentialsFile);
+    GoogleClientFactory googleClientFactory = new GoogleClientFactory(appName, serviceAccountCredentialsFile,
+        props.getProperty("googleTokenCacheFile"));
+    googleClientFactory.setRootUrl(props.getProperty("googleRootUrl"));
+    if ((upload != null) && upload.contains("true") && !CaptureDirectory.isReplay(cmdLine)) {
+      googleClientFactory.setScopes(GoogleClientFactory.UPLOAD_SCOPES);
+    }
+    SheetsRetriever sr = new SheetsRetriever(googleClientFactory);
+    sr.setCacheFile(props.getProperty("sheetsCacheFile"));
+    CaptureDirectory.configure(cmdLine, sr);
 
     List<Person> jsonPersons = JsonUtils.readFromJson(inputFilename);
 
-    List<Map<String, String>> allStaffListMappings = sr.toMap(spreadsheetDocId, "All Staff List Mapping");
-    List<Map<String, String>> categoryStatusAbbreviations = sr.toMap(spreadsheetDocId, "CategoryStatus");
+    Map<String, List<Map<String, String>>> sheets = sr.toMaps(spreadsheetDocId,
+        Arrays.asList("All Staff List Mapping", "CategoryStatus"));
+    List<Map<String, String>> allStaffListMappings = sheets.get("All Staff List Mapping");
+    List<Map<String, String>> categoryStatusAbbreviations = sheets.get("CategoryStatus");
 
     ExcelGenerator excelGenerator = new ExcelGenerator(allStaffListMappings, categoryStatusAbbreviations);
     excelGenerator.generate(outputFilename, jsonPersons);
 
-    if (!upload.isEmpty() && upload.contains("true")) {
+    if ((upload != null) && upload.contains("true") && CaptureDirectory.isReplay(cmdLine)) {
+      log.warn("WARNING: Not uploading to Google Drive when replaying a capture directory.");
+    } else if ((upload != null) && upload.contains("true")) {
       if (uploadId.isEmpty()) {
         log.error("Missing Google Drive uploadId property.");
         System.exit(1);
       }
       log.info("Uploading All Staff to Google Drive");
-      DriveUploader driveUploader = new DriveUploader(appName, serviceAccountCredentialsFile);
+      DriveUploader driveUploader = new DriveUploader(googleClientFactory);
       try {
         String idCheck = driveUploader.UpdateFile(outputFilename, uploadId);
         if (!idCheck.isEmpty() && idCheck.contentEquals(uploadId)) {
@@ -191,6 +205,7 @@ public class AllStaffListBuilder {
     options.addOption(helpOption);
     options.addOption(uploadOption);
     options.addOption(uploadIdOption);
+    options.addOptionGroup(CaptureDirectory.getOptionGroup());
 
     return options;
   }
@@ -0,0 +1,106 @@
+package edu.umd.lib.staffdir;
+
+import java.io.File;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
+
+import edu.umd.lib.staffdir.google.SheetsRetriever;
+import edu.umd.lib.staffdir.ldap.Ldap;
+
+/**
+ * The "--capture" and "--replay" command-line options shared by the
+ * command-line applications, and the layout of the capture directory.
+ * <p>
+ * With "--capture", every sheet retrieved from Google, and the result of the
+ * LDAP retrieval, are written to the given directory. With "--replay", they
+ * are read from the given directory instead, so that the application runs
+ * without contacting Google or LDAP, giving repeatable offline runs for
+ * debugging and profiling.
+ */
+public class CaptureDirectory {
+  /**
+   * The subdirectory of the capture directory holding the captured sheets.
+   */
+  public static final String SHEETS_DIRECTORY = "sheets";
+
+  /**
+   * The file in the capture directory holding the captured LDAP entries.
+   */
+  public static final String LDAP_FILE = "ldap.json.gz";
+
+  private CaptureDirectory() {
+  }
+
+  /**
+   * @return the mutually exclusive "--capture" and "--replay" options
+   */
+  public static OptionGroup getOptionGroup() {
+    Option captureOption = Option.builder()
+        .longOpt("capture")
+        .hasArg()
+        .argName("directory")
+        .desc("Capture the Google Sheets and LDAP inputs to the given directory")
+        .build();
+    Option replayOption = Option.builder()
+        .longOpt("replay")
+        .hasArg()
+        .argName("directory")
+        .desc("Replay the Google Sheets and LDAP inputs from the given capture directory, without "
+            + "contacting Google or LDAP")
+        .build();
+
+    OptionGroup optionGroup = new OptionGroup();
+    optionGroup.addOption(captureOption);
+    optionGroup.addOption(replayOption);
+    return optionGroup;
+  }
+
+  /**
+   * Returns true if the "--replay" option was given.
+   *
+   * @param cmdLine
+   *          the parsed command-line
+   * @return true if the "--replay" option was given, false otherwise.
+   */
+  public static boolean isReplay(CommandLine cmdLine) {
+    return cmdLine.hasOption("replay");
+  }
+
+  /**
+   * Configures the given SheetsRetriever to capture or replay the sheets, if
+   * the "--capture" or "--replay" option was given.
+   *
+   * @param cmdLine
+   *          the parsed command-line
+   * @param sr
+   *          the SheetsRetriever to configure
+   */
+  public static void configure(CommandLine cmdLine, SheetsRetriever sr) {
+    if (cmdLine.hasOption("capture")) {
+      sr.setCaptureDirectory(new File(cmdLine.getOptionValue("capture"), SHEETS_DIRECTORY).getPath());
+    }
+    if (cmdLine.hasOption("replay")) {
+      sr.setReplayDirectory(new File(cmdLine.getOptionValue("replay"), SHEETS_DIRECTORY).getPath());
+    }
+  }
+
+  /**
+   * Configures the given Ldap object to capture or replay the LDAP entries,
+   * if the "--capture" or "--replay" option was given.
+   *
+   * @param cmdLine
+   *          the parsed command-line
+   * @param ldap
+   *          the Ldap object to configure
+   */
+  public static void configure(CommandLine cmdLine, Ldap ldap) {
+    if (cmdLine.hasOption("capture")) {
+      ldap.setCaptureFile(new File(cmdLine.getOptionValue("capture"), LDAP_FILE).getPath());
+    }
+    if (cmdLine.hasOption("replay")) {
+      ldap.setReplayFile(new File(cmdLine.getOptionValue("replay"), LDAP_FILE).getPath());
+    }
+  }
+}
@@ -18,6 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.umd.lib.staffdir.drupal.DrupalGenerator;
+import edu.umd.lib.staffdir.google.GoogleClientFactory;
 import edu.umd.lib.staffdir.google.SheetsRetriever;
 
 /**
@@ -41,7 +42,12 @@ public class DrupalBuilder {
       String appName = props.getProperty("appName");
       String serviceAccountCredentialsFile = props.getProperty("serviceAccountCredentialsFile");
       String spreadsheetDocId = props.getProperty("spreadsheetDocId");
-      SheetsRetriever sr = new SheetsRetriever(appName, serviceAccountCredentialsFile);
+      GoogleClientFactory googleClientFactory = new GoogleClientFactory(appName, serviceAccountCredentialsFile,
+          props.getProperty("googleTokenCacheFile"));
+      googleClientFactory.setRootUrl(props.getProperty("googleRootUrl"));
+      SheetsRetriever sr = new SheetsRetriever(googleClientFactory);
+      sr.setCacheFile(props.getProperty("sheetsCacheFile"));
+      CaptureDirectory.configure(cmdLine, sr);
 
       List<Person> jsonPersons = JsonUtils.readFromJson(inputFilename);
 
@@ -158,6 +164,7 @@ public class DrupalBuilder {
     options.addOption(outputOption);
     options.addOption(configOption);
     options.addOption(helpOption);
+    options.addOptionGroup(CaptureDirectory.getOptionGroup());
 
     return options;
   }
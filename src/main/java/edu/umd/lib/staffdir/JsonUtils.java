@@ -1,15 +1,20 @@
 package edu.umd.lib.staffdir;
 
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -28,8 +33,38 @@ public class JsonUtils {
    *          the filename to write to
    */
   public static void writeToJson(List<Person> persons, String jsonFilename) {
-    try (PrintWriter out = new PrintWriter(new FileWriter(jsonFilename))) {
-      writeToJson(persons, out);
+    writeToJson(persons.iterator(), jsonFilename);
+  }
+
+  /**
+   * Converts the given Stream of Persons to a JSON file, writing each Person
+   * as it is consumed from the Stream.
+   *
+   * @param persons
+   *          the Stream of Persons to output as JSON
+   * @param jsonFilename
+   *          the filename to write to
+   */
+  public static void writeToJson(Stream<Person> persons, String jsonFilename) {
+    writeToJson(persons.iterator(), jsonFilename);
+  }
+
+  /**
+   * Converts the Persons from the given Iterator to a JSON file, writing each
+   * Person as it is obtained from the Iterator, so that the Persons (and the
+   * JSON document) never need to be held in memory all at once.
+   *
+   * @param persons
+   *          the Iterator of Persons to output as JSON
+   * @param jsonFilename
+   *          the filename to write to
+   */
+  public static void writeToJson(Iterator<Person> persons, String jsonFilename) {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(jsonFilename))) {
+      ObjectMapper objectMapper = new ObjectMapper();
+      try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+        writeToJson(persons, generator);
+      }
     } catch (IOException ioe) {
       log.error("ERROR: Writing JSON to '{}'", jsonFilename, ioe);
     }
@@ -48,8 +83,32 @@ public class JsonUtils {
    */
   public static void writeToJson(List<Person> persons, PrintWriter out) throws IOException {
     ObjectMapper objectMapper = new ObjectMapper();
-    String json = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(persons);
-    out.println(json);
+    // The PrintWriter is closed by the caller
+    try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+      writeToJson(persons.iterator(), generator);
+    }
+  }
+
+  /**
+   * Writes the Persons from the given Iterator as a pretty-printed JSON array,
+   * followed by a line separator, one Person at a time.
+   *
+   * @param persons
+   *          the Iterator of Persons to output as JSON
+   * @param generator
+   *          the JsonGenerator to write to
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  private static void writeToJson(Iterator<Person> persons, JsonGenerator generator) throws IOException {
+    generator.useDefaultPrettyPrinter();
+    generator.writeStartArray();
+    while (persons.hasNext()) {
+      generator.writeObject(persons.next());
+    }
+    generator.writeEndArray();
+    generator.writeRaw(System.lineSeparator());
   }
 
   /**
@@ -0,0 +1,51 @@
+package edu.umd.lib.staffdir;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.umd.lib.staffdir.drupal.DrupalGenerator;
+import edu.umd.lib.staffdir.excel.ExcelGenerator;
+
+/**
+ * Determines which LDAP attributes need to be retrieved, based on the output
+ * document mappings.
+ */
+public class LdapAttributes {
+  private LdapAttributes() {
+  }
+
+  /**
+   * Returns the (sorted) Set of LDAP attributes needed to generate the output
+   * documents from the given field mappings.
+   * <p>
+   * This consists of the "Source Field" of every mapping whose "Source" is
+   * "LDAP", the attributes used to compute the "Derived" fields of the output
+   * documents, and the attributes used to sort and identify each person.
+   *
+   * @param fieldMappings
+   *          the field mappings (such as from the "All Staff List Mapping" and
+   *          "Drupal Mapping" sheets) of each output document
+   * @return the (sorted) Set of LDAP attributes needed to generate the output
+   *         documents.
+   */
+  public static Set<String> getRequiredAttributes(Collection<List<Map<String, String>>> fieldMappings) {
+    Set<String> attributes = new TreeSet<>();
+    attributes.add("uid");
+    attributes.addAll(Person.LastNameFirstNameComparator.LDAP_ATTRIBUTES);
+    attributes.addAll(ExcelGenerator.DERIVED_LDAP_ATTRIBUTES);
+    attributes.addAll(DrupalGenerator.DERIVED_LDAP_ATTRIBUTES);
+
+    for (List<Map<String, String>> mappings : fieldMappings) {
+      for (Map<String, String> fieldMapping : mappings) {
+        String sourceField = fieldMapping.get("Source Field");
+        if ("LDAP".equals(fieldMapping.get("Source")) && (sourceField != null) && !sourceField.trim().isEmpty()) {
+          attributes.add(sourceField.trim());
+        }
+      }
+    }
+    return attributes;
+  }
+}
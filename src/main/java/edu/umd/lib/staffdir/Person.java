@@ -1,6 +1,9 @@
 package edu.umd.lib.staffdir;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -145,6 +148,11 @@ public class Person {
    * Sorts Person objects by Last Name and First Name, based on LDAP attributes
    */
   public static class LastNameFirstNameComparator implements Comparator<Person> {
+    /**
+     * The LDAP attributes used to sort Person objects.
+     */
+    public static final List<String> LDAP_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList("sn", "givenName"));
+
     @Override
     public int compare(Person person1, Person person2) {
       if (person1 == person2) {
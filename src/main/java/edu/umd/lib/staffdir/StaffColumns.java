@@ -0,0 +1,53 @@
+package edu.umd.lib.staffdir;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.umd.lib.staffdir.drupal.DrupalGenerator;
+import edu.umd.lib.staffdir.excel.ExcelGenerator;
+
+/**
+ * Determines which columns of the "Staff" sheet need to be retrieved, based
+ * on the output document mappings.
+ */
+public class StaffColumns {
+  private StaffColumns() {
+  }
+
+  /**
+   * Returns the (sorted) Set of "Staff" sheet columns needed to generate the
+   * output documents from the given field mappings.
+   * <p>
+   * This consists of the given columns (such as those used to identify each
+   * person, and look up their organization), the "Source Field" of every
+   * mapping whose "Source" is "Staff", and the columns used to compute the
+   * "Derived" fields of the output documents.
+   *
+   * @param requiredColumns
+   *          the columns needed regardless of the field mappings
+   * @param fieldMappings
+   *          the field mappings (such as from the "All Staff List Mapping" and
+   *          "Drupal Mapping" sheets) of each output document
+   * @return the (sorted) Set of "Staff" sheet columns needed to generate the
+   *         output documents.
+   */
+  public static Set<String> getRequiredColumns(Collection<String> requiredColumns,
+      Collection<List<Map<String, String>>> fieldMappings) {
+    Set<String> columns = new TreeSet<>(requiredColumns);
+    columns.addAll(ExcelGenerator.DERIVED_STAFF_COLUMNS);
+    columns.addAll(DrupalGenerator.DERIVED_STAFF_COLUMNS);
+
+    for (List<Map<String, String>> mappings : fieldMappings) {
+      for (Map<String, String> fieldMapping : mappings) {
+        String sourceField = fieldMapping.get("Source Field");
+        if ("Staff".equals(fieldMapping.get("Source")) && (sourceField != null) && !sourceField.trim().isEmpty()) {
+          columns.add(sourceField.trim());
+        }
+      }
+    }
+    return columns;
+  }
+}
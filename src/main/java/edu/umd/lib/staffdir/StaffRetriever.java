@@ -4,12 +4,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -21,7 +28,9 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.umd.lib.staffdir.google.GoogleClientFactory;
 import edu.umd.lib.staffdir.google.Organization;
+import edu.umd.lib.staffdir.google.SheetTable;
 import edu.umd.lib.staffdir.google.SheetsRetriever;
 import edu.umd.lib.staffdir.google.Staff;
 import edu.umd.lib.staffdir.ldap.Ldap;
@@ -34,6 +43,14 @@ import edu.umd.lib.staffdir.ldap.Ldap;
 public class StaffRetriever {
   public static final Logger log = LoggerFactory.getLogger(StaffRetriever.class);
 
+  // One thread for each task that can run at the same time: the
+  // Organization sheet, and the Staff and mapping sheets followed by the LDAP
+  // retrieval
+  private static final int RETRIEVAL_THREADS = 2;
+
+  private static final List<String> STAFF_SHEETS = Arrays.asList("Staff", "All Staff List Mapping",
+      "Drupal Mapping");
+
   public static void main(String[] args) {
     CommandLine cmdLine = parseCommandLine(args);
 
@@ -46,55 +63,263 @@ public class StaffRetriever {
     String appName = props.getProperty("appName");
     String serviceAccountCredentialsFile = props.getProperty("serviceAccountCredentialsFile");
     String spreadsheetDocId = props.getProperty("spreadsheetDocId");
-    SheetsRetriever sr = new SheetsRetriever(appName, serviceAccountCredentialsFile);
+    GoogleClientFactory googleClientFactory = new GoogleClientFactory(appName, serviceAccountCredentialsFile,
+        props.getProperty("googleTokenCacheFile"));
+    googleClientFactory.setRootUrl(props.getProperty("googleRootUrl"));
+    SheetsRetriever sr = new SheetsRetriever(googleClientFactory);
+    sr.setCacheFile(props.getProperty("sheetsCacheFile"));
+    CaptureDirectory.configure(cmdLine, sr);
 
-    List<Map<String, String>> rawOrganizationsList = sr.toMap(spreadsheetDocId, "Organization");
-    String costCenterField = "Cost Center";
-    Organization organization = new Organization(rawOrganizationsList, costCenterField);
+    Ldap ldap = createLdap(props);
+    ldap.setForceFullRefresh(cmdLine.hasOption("full-refresh"));
+    CaptureDirectory.configure(cmdLine, ldap);
 
-    List<Map<String, String>> rawStaffMap = sr.toMap(spreadsheetDocId, "Staff");
+    String costCenterField = "Cost Center";
     String uidField = "Directory ID";
-    Staff staff = new Staff(rawStaffMap, uidField);
 
-    Set<String> uids = staff.getUids();
+    // The retrieval is performed as two concurrent chains of tasks, so that
+    // the total time approaches that of the slower chain, rather than the sum
+    // of every request. The Organization sheet is only needed once the
+    // persons are assembled. LDAP only waits for a single Sheets request
+    // (unless the Staff columns have changed), which returns both the uids
+    // (from the Staff sheet) and the LDAP attributes to retrieve (from the
+    // mapping sheets).
+    long startMillis = System.currentTimeMillis();
+    Organization organization;
+    Staff staff;
+    Map<String, Map<String, String>> ldapEntries = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(RETRIEVAL_THREADS);
+    try {
+      CompletableFuture<Organization> organizationFuture = CompletableFuture.supplyAsync(() -> {
+        Organization result = new Organization(sr.toTable(spreadsheetDocId, "Organization").asMaps(),
+            costCenterField);
+        log.info("Retrieved the Organization sheet after {} ms", System.currentTimeMillis() - startMillis);
+        return result;
+      }, executor);
 
-    // LDAP configuration settings
-    String ldapUrl = props.getProperty("ldap.url");
-    String authentication = props.getProperty("ldap.authentication");
-    String bindDn = props.getProperty("ldap.bindDn");
-    String credentials = props.getProperty("ldap.credentials");
-    String searchBaseDn = props.getProperty("ldap.searchBaseDn");
+      CompletableFuture<Staff> staffFuture = CompletableFuture.supplyAsync(() -> {
+        Map<String, SheetTable> sheets = sr.toTables(spreadsheetDocId, STAFF_SHEETS, "Staff",
+            mappingSheets -> getStaffColumns(getFieldMappings(mappingSheets), uidField));
+        log.info("Retrieved the Staff and mapping sheets after {} ms", System.currentTimeMillis() - startMillis);
+        setLdapAttributes(ldap, getFieldMappings(sheets));
+        return new Staff(sheets.get("Staff"), uidField);
+      }, executor);
 
-    Ldap ldap = new Ldap(ldapUrl, authentication, bindDn, credentials, searchBaseDn);
-    Map<String, Map<String, String>> ldapResults = ldap.getUsers(uids);
+      // LDAP entries are only collected here, as the persons cannot be
+      // assembled until the Organization sheet has also been retrieved
+      CompletableFuture<Void> ldapFuture = staffFuture.thenAcceptAsync(staffResult -> {
+        // Wrapping each Map in TreeMap to ensure consistent ordering when
+        // output to JSON
+        ldap.getUsers(staffResult.getUids(),
+            (uid, ldapResult) -> ldapEntries.put(uid, new TreeMap<>(ldapResult)));
+        log.info("Retrieved the LDAP entries after {} ms", System.currentTimeMillis() - startMillis);
+      }, executor);
 
-    List<Person> persons = new ArrayList<>();
-    for (String uid : uids) {
-      if (!ldapResults.containsKey(uid)) {
-        log.warn("WARNING: Could not find '{}' in LDAP. Skipping.", uid);
-        continue;
-      }
+      organization = join(organizationFuture);
+      staff = join(staffFuture);
+      join(ldapFuture);
+    } finally {
+      executor.shutdownNow();
+    }
 
-      // Wrapping each Map in TreeMap to ensure consistent ordering when
-      // output to JSON
-      Map<String, String> ldapEntry = new TreeMap<>(ldapResults.get(uid));
+    Set<String> uids = staff.getUids();
+    List<Person> persons = new ArrayList<>();
+    for (Map.Entry<String, Map<String, String>> entry : ldapEntries.entrySet()) {
+      String uid = entry.getKey();
       Map<String, String> staffEntry = new TreeMap<>(staff.get(uid));
       String costCenter = staffEntry.get("Cost Center");
-      Map<String, String> organizationEntry = new TreeMap<>(organization.getOrganization(costCenter));
+      // Shared by every person with the same cost center, and already in
+      // sorted order, so it is not copied
+      Map<String, String> organizationEntry = organization.getOrganization(costCenter);
+      if (organizationEntry == null) {
+        log.warn("WARNING: Cost center '{}' of '{}' is not in the Organization sheet.", costCenter, uid);
+        organizationEntry = Collections.emptyMap();
+      }
       Map<String, Map<String, String>> sources = new TreeMap<>();
       sources.put("Staff", staffEntry);
       sources.put("Organization", organizationEntry);
-      sources.put("LDAP", ldapEntry);
+      sources.put("LDAP", entry.getValue());
 
       persons.add(new Person(uid, sources));
     }
 
+    Set<String> foundUids = new HashSet<>();
+    for (Person person : persons) {
+      foundUids.add(person.uid);
+    }
+    Map<String, String> ldapFailures = ldap.getFailures();
+    for (String uid : uids) {
+      if (ldapFailures.containsKey(uid)) {
+        log.error("ERROR: Could not retrieve '{}' from LDAP ({}). Skipping.", uid, ldapFailures.get(uid));
+      } else if (!foundUids.contains(uid)) {
+        log.warn("WARNING: Could not find '{}' in LDAP. Skipping.", uid);
+      }
+    }
+
     // Sort the persons by last name and first name
     Collections.sort(persons, new Person.LastNameFirstNameComparator());
 
     JsonUtils.writeToJson(persons, outputFilename);
   }
 
+  /**
+   * Returns the field mappings of the output documents, from the "All Staff
+   * List Mapping" and "Drupal Mapping" sheets.
+   *
+   * @param sheets
+   *          the retrieved sheets, keyed by sheet name
+   * @return the field mappings of each output document, or an empty List if
+   *         either mapping sheet is empty or missing.
+   */
+  private static List<List<Map<String, String>>> getFieldMappings(Map<String, SheetTable> sheets) {
+    List<Map<String, String>> allStaffListMappings = sheets.get("All Staff List Mapping").asMaps();
+    List<Map<String, String>> drupalMappings = sheets.get("Drupal Mapping").asMaps();
+    if (allStaffListMappings.isEmpty() || drupalMappings.isEmpty()) {
+      log.warn("WARNING: Output document mappings not found. Retrieving all the Staff columns and the default "
+          + "LDAP attributes.");
+      return Collections.emptyList();
+    }
+    return Arrays.asList(allStaffListMappings, drupalMappings);
+  }
+
+  /**
+   * Returns the columns of the "Staff" sheet used by the given field mappings.
+   *
+   * @param fieldMappings
+   *          the field mappings of each output document
+   * @param uidField
+   *          the header of the column containing the uid
+   * @return the columns of the "Staff" sheet used by the given field mappings,
+   *         or null (for every column) if there are no field mappings.
+   */
+  private static Set<String> getStaffColumns(List<List<Map<String, String>>> fieldMappings, String uidField) {
+    if (fieldMappings.isEmpty()) {
+      return null;
+    }
+    Set<String> staffColumns = StaffColumns.getRequiredColumns(Arrays.asList(uidField, "Cost Center"),
+        fieldMappings);
+    log.info("Retrieving Staff columns: {}", staffColumns);
+    return staffColumns;
+  }
+
+  /**
+   * Restricts the LDAP attributes retrieved to those used by the given field
+   * mappings.
+   *
+   * @param ldap
+   *          the Ldap object to configure
+   * @param fieldMappings
+   *          the field mappings of each output document. If empty, the
+   *          default LDAP attributes are retrieved.
+   */
+  private static void setLdapAttributes(Ldap ldap, List<List<Map<String, String>>> fieldMappings) {
+    if (fieldMappings.isEmpty()) {
+      return;
+    }
+    Set<String> ldapAttributes = LdapAttributes.getRequiredAttributes(fieldMappings);
+    log.info("Retrieving LDAP attributes: {}", ldapAttributes);
+    ldap.setAttributes(ldapAttributes);
+  }
+
+  /**
+   * Waits for the given task to complete, and returns its result. If the
+   * task failed, the exception it failed with is rethrown.
+   *
+   * @param future
+   *          the task to wait for
+   * @return the result of the task
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException ce) {
+      if (ce.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ce.getCause();
+      }
+      throw ce;
+    }
+  }
+
+  /**
+   * Returns an Ldap object configured from the "ldap.*" properties.
+   *
+   * @param props
+   *          the application configuration properties
+   * @return an Ldap object configured from the "ldap.*" properties.
+   */
+  private static Ldap createLdap(Properties props) {
+    // LDAP configuration settings
+    String ldapUrl = props.getProperty("ldap.url");
+    String authentication = props.getProperty("ldap.authentication");
+    String bindDn = props.getProperty("ldap.bindDn");
+    String credentials = props.getProperty("ldap.credentials");
+    String searchBaseDn = props.getProperty("ldap.searchBaseDn");
+
+    Ldap ldap = new Ldap(ldapUrl, authentication, bindDn, credentials, searchBaseDn);
+    ldap.setParallelism(Integer.parseInt(props.getProperty("ldap.parallelism", "1")));
+    if (props.getProperty("ldap.pipelineDepth") != null) {
+      ldap.setPipelineDepth(Integer.parseInt(props.getProperty("ldap.pipelineDepth")));
+    }
+    if (props.getProperty("ldap.pipelineConnections") != null) {
+      ldap.setPipelineConnections(Integer.parseInt(props.getProperty("ldap.pipelineConnections")));
+    }
+    if (props.getProperty("ldap.sweepThreshold") != null) {
+      ldap.setSweepThreshold(Integer.parseInt(props.getProperty("ldap.sweepThreshold")));
+    }
+    if (props.getProperty("ldap.sweepFilter") != null) {
+      ldap.setSweepFilter(props.getProperty("ldap.sweepFilter"));
+    }
+    if (props.getProperty("ldap.pageSize") != null) {
+      ldap.setPageSize(Integer.parseInt(props.getProperty("ldap.pageSize")));
+    }
+    if (props.getProperty("ldap.batchSize") != null) {
+      ldap.setBatchSize(Integer.parseInt(props.getProperty("ldap.batchSize")));
+    }
+    if (props.getProperty("ldap.maxBatchSize") != null) {
+      ldap.setMaxBatchSize(Integer.parseInt(props.getProperty("ldap.maxBatchSize")));
+    }
+    if (props.getProperty("ldap.maxFilterBytes") != null) {
+      ldap.setMaxFilterBytes(Integer.parseInt(props.getProperty("ldap.maxFilterBytes")));
+    }
+    if (props.getProperty("ldap.batchTargetMillis") != null) {
+      ldap.setBatchTargetMillis(Long.parseLong(props.getProperty("ldap.batchTargetMillis")));
+    }
+    ldap.setBatchSizeFile(props.getProperty("ldap.batchSizeFile"));
+    ldap.setSnapshotFile(props.getProperty("ldap.snapshotFile"));
+    if (props.getProperty("ldap.fullRefreshIntervalHours") != null) {
+      ldap.setFullRefreshIntervalHours(Long.parseLong(props.getProperty("ldap.fullRefreshIntervalHours")));
+    }
+    if (props.getProperty("ldap.replicaCooldownMillis") != null) {
+      ldap.setReplicaCooldownMillis(Long.parseLong(props.getProperty("ldap.replicaCooldownMillis")));
+    }
+    if (props.getProperty("ldap.maxRetries") != null) {
+      ldap.setMaxRetries(Integer.parseInt(props.getProperty("ldap.maxRetries")));
+    }
+    if (props.getProperty("ldap.retryBackoffMillis") != null) {
+      ldap.setRetryBackoffMillis(Long.parseLong(props.getProperty("ldap.retryBackoffMillis")));
+    }
+    if (props.getProperty("ldap.connectTimeoutMillis") != null) {
+      ldap.setConnectTimeoutMillis(Long.parseLong(props.getProperty("ldap.connectTimeoutMillis")));
+    }
+    if (props.getProperty("ldap.readTimeoutMillis") != null) {
+      ldap.setReadTimeoutMillis(Long.parseLong(props.getProperty("ldap.readTimeoutMillis")));
+    }
+    if (props.getProperty("ldap.deadlineSeconds") != null) {
+      ldap.setDeadlineSeconds(Long.parseLong(props.getProperty("ldap.deadlineSeconds")));
+    }
+    if (props.getProperty("ldap.slowBatchMillis") != null) {
+      ldap.setSlowBatchMillis(Long.parseLong(props.getProperty("ldap.slowBatchMillis")));
+    }
+    ldap.setCacheFile(props.getProperty("ldap.cacheFile"));
+    if (props.getProperty("ldap.cacheTtlMinutes") != null) {
+      ldap.setCacheTtlMinutes(Long.parseLong(props.getProperty("ldap.cacheTtlMinutes")));
+    }
+    if (props.getProperty("ldap.negativeCacheTtlMinutes") != null) {
+      ldap.setNegativeCacheTtlMinutes(Long.parseLong(props.getProperty("ldap.negativeCacheTtlMinutes")));
+    }
+    return ldap;
+  }
+
   /**
    * Returns a Properties object derived from the specified file.
    *
@@ -180,6 +405,10 @@ public class StaffRetriever {
         .required()
         .desc("The properties file for configuring LDAP")
         .build();
+    Option fullRefreshOption = Option.builder("f")
+        .longOpt("full-refresh")
+        .desc("Retrieve every entry from LDAP, ignoring any LDAP snapshot or cache")
+        .build();
     Option helpOption = Option.builder("h")
         .longOpt("help")
         .desc("Print this message")
@@ -188,7 +417,9 @@ public class StaffRetriever {
     Options options = new Options();
     options.addOption(outputOption);
     options.addOption(configOption);
+    options.addOption(fullRefreshOption);
     options.addOption(helpOption);
+    options.addOptionGroup(CaptureDirectory.getOptionGroup());
 
     return options;
   }
@@ -3,6 +3,8 @@ package edu.umd.lib.staffdir.drupal;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +24,19 @@ import edu.umd.lib.staffdir.Person;
 public class DrupalGenerator {
   public static final Logger log = LoggerFactory.getLogger(DrupalGenerator.class);
 
+  /**
+   * The LDAP attributes used to compute the "Derived" fields.
+   */
+  public static final List<String> DERIVED_LDAP_ATTRIBUTES = Collections.unmodifiableList(
+      Arrays.asList("umDisplayTitle", "umOfficialTitle", "givenName", "sn", "umPrimaryCampusRoom",
+          "umPrimaryCampusBuilding"));
+
+  /**
+   * The "Staff" sheet columns used to compute the "Derived" fields.
+   */
+  public static final List<String> DERIVED_STAFF_COLUMNS = Collections.unmodifiableList(
+      Arrays.asList("Functional Title"));
+
   private Map<String, Map<String, String>> drupalFieldsToSourceFields;
 
   public DrupalGenerator(List<Map<String, String>> fieldMappings) {
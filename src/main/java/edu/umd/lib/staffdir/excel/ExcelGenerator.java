@@ -3,6 +3,8 @@ package edu.umd.lib.staffdir.excel;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +35,18 @@ import edu.umd.lib.staffdir.Person;
 public class ExcelGenerator {
   public static final Logger log = LoggerFactory.getLogger(ExcelGenerator.class);
 
+  /**
+   * The LDAP attributes used to compute the "Derived" fields.
+   */
+  public static final List<String> DERIVED_LDAP_ATTRIBUTES = Collections.unmodifiableList(
+      Arrays.asList("umDisplayTitle", "givenName", "sn", "mail"));
+
+  /**
+   * The "Staff" sheet columns used to compute the "Derived" fields.
+   */
+  public static final List<String> DERIVED_STAFF_COLUMNS = Collections.unmodifiableList(
+      Arrays.asList("Functional Title"));
+
   private List<Map<String, String>> fieldMappings;
   private Map<String, String> categoryStatusMap;
 
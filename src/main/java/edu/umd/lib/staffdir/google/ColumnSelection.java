@@ -0,0 +1,169 @@
+package edu.umd.lib.staffdir.google;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+/**
+ * A subset of the columns of a sheet, identified by header, and resolved to
+ * the A1 notation ranges covering them.
+ * <p>
+ * Adjacent columns are combined into a single range (such as "'Staff'!C:E"),
+ * so that the columns can be retrieved with as few ranges as possible. Each
+ * range includes the header row, which is checked against the header row the
+ * columns were resolved from, so that a column that has since moved is not
+ * mistaken for another.
+ */
+class ColumnSelection {
+  private final String sheetName;
+  private final List<String> headerRow;
+  private final List<int[]> runs = new ArrayList<>();
+  private final List<String> missingColumns = new ArrayList<>();
+
+  /**
+   * Constructs a ColumnSelection.
+   *
+   * @param sheetName
+   *          the name of the sheet
+   * @param headerRow
+   *          the header row of the sheet
+   * @param columns
+   *          the headers of the columns to select. Headers not in the header
+   *          row are ignored.
+   */
+  ColumnSelection(String sheetName, List<String> headerRow, Collection<String> columns) {
+    this.sheetName = sheetName;
+    this.headerRow = new ArrayList<>(headerRow);
+
+    // As with a Map, the last of any duplicate headers wins
+    Map<String, Integer> columnIndex = new HashMap<>();
+    for (int i = 0; i < headerRow.size(); i++) {
+      columnIndex.put(headerRow.get(i), i);
+    }
+
+    TreeSet<Integer> indexes = new TreeSet<>();
+    for (String column : columns) {
+      Integer index = columnIndex.get(column);
+      if (index != null) {
+        indexes.add(index);
+      } else {
+        missingColumns.add(column);
+      }
+    }
+
+    // Combine adjacent columns into runs of [first, last] column indexes
+    int[] run = null;
+    for (int index : indexes) {
+      if ((run != null) && (run[1] == index - 1)) {
+        run[1] = index;
+      } else {
+        run = new int[] { index, index };
+        runs.add(run);
+      }
+    }
+  }
+
+  /**
+   * @return the A1 notation ranges covering the selected columns, in column
+   *         order
+   */
+  public List<String> getRanges() {
+    List<String> ranges = new ArrayList<>();
+    for (int[] run : runs) {
+      ranges.add(quote(sheetName) + "!" + toColumnLetters(run[0]) + ":" + toColumnLetters(run[1]));
+    }
+    return ranges;
+  }
+
+  /**
+   * @return the headers of the requested columns that are not in the header
+   *         row
+   */
+  public List<String> getMissingColumns() {
+    return Collections.unmodifiableList(missingColumns);
+  }
+
+  /**
+   * Returns a SheetTable containing the selected columns, from the cells
+   * returned for the ranges returned by "getRanges".
+   *
+   * @param valueRanges
+   *          the ValueRange for each range, in the order of "getRanges"
+   * @return a SheetTable containing the selected columns, or null if the
+   *         header row of any range does not match the header row the columns
+   *         were resolved from.
+   */
+  public SheetTable toTable(List<ValueRange> valueRanges) {
+    if ((valueRanges == null) || (valueRanges.size() != runs.size())) {
+      return null;
+    }
+
+    List<String> headers = new ArrayList<>();
+    List<List<List<Object>>> rangeValues = new ArrayList<>();
+    int rowCount = 0;
+    for (int i = 0; i < runs.size(); i++) {
+      List<String> expected = headerRow.subList(runs.get(i)[0], runs.get(i)[1] + 1);
+      List<List<Object>> values = valueRanges.get(i).getValues();
+      if ((values == null) || values.isEmpty() || !expected.equals(values.get(0))) {
+        return null;
+      }
+      headers.addAll(expected);
+      rangeValues.add(values);
+      rowCount = Math.max(rowCount, values.size() - 1);
+    }
+
+    // Trailing empty cells and rows are omitted from each range, so the
+    // ranges are not necessarily the same size
+    List<String[]> rows = new ArrayList<>(rowCount);
+    for (int r = 1; r <= rowCount; r++) {
+      String[] row = new String[headers.size()];
+      int offset = 0;
+      for (int i = 0; i < runs.size(); i++) {
+        int width = runs.get(i)[1] - runs.get(i)[0] + 1;
+        List<List<Object>> values = rangeValues.get(i);
+        if (r < values.size()) {
+          List<Object> cells = values.get(r);
+          for (int c = 0; c < Math.min(width, cells.size()); c++) {
+            row[offset + c] = (String) cells.get(c);
+          }
+        }
+        offset += width;
+      }
+      rows.add(row);
+    }
+    return new SheetTable(headers, rows);
+  }
+
+  /**
+   * Returns the column letters (such as "A", "Z", or "AA") of the given
+   * column index.
+   *
+   * @param index
+   *          the column index, starting from 0
+   * @return the column letters of the given column index.
+   */
+  static String toColumnLetters(int index) {
+    StringBuilder sb = new StringBuilder();
+    for (int n = index + 1; n > 0; n = (n - 1) / 26) {
+      sb.insert(0, (char) ('A' + ((n - 1) % 26)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the given sheet name quoted for use in A1 notation.
+   *
+   * @param sheetName
+   *          the name of the sheet
+   * @return the given sheet name quoted for use in A1 notation.
+   */
+  private static String quote(String sheetName) {
+    return "'" + sheetName.replace("'", "''") + "'";
+  }
+}
@@ -1,28 +1,19 @@
 package edu.umd.lib.staffdir.google;
 
-import java.io.FileInputStream;
-import java.util.Collections;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.FileContent;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.File;
-import com.google.auth.http.HttpCredentialsAdapter;
-import com.google.auth.oauth2.GoogleCredentials;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 
 public class DriveUploader {
   public static final Logger log = LoggerFactory.getLogger(DriveUploader.class);
 
-  private final String appName;
-  private final String serviceAccountCredentialsFile;
+  private final GoogleClientFactory clientFactory;
 
   /**
    * Class constructor for setting up Drive access
@@ -31,8 +22,24 @@ public class DriveUploader {
    * @param serviceAccountCredentialsFile
    */
   public DriveUploader(String appName, String serviceAccountCredentialsFile) {
-    this.appName = appName;
-    this.serviceAccountCredentialsFile = serviceAccountCredentialsFile;
+    this(createClientFactory(appName, serviceAccountCredentialsFile));
+  }
+
+  /**
+   * Class constructor for setting up Drive access
+   *
+   * @param clientFactory
+   *          the GoogleClientFactory providing the shared Drive API client,
+   *          which must request GoogleClientFactory.UPLOAD_SCOPES
+   */
+  public DriveUploader(GoogleClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  private static GoogleClientFactory createClientFactory(String appName, String serviceAccountCredentialsFile) {
+    GoogleClientFactory clientFactory = new GoogleClientFactory(appName, serviceAccountCredentialsFile);
+    clientFactory.setScopes(GoogleClientFactory.UPLOAD_SCOPES);
+    return clientFactory;
   }
 
   /**
@@ -44,18 +51,12 @@ public class DriveUploader {
    *          the Google ID of the file to be updated
    */
   public String UpdateFile(String outputFileName, String uploadId) throws IOException {
-    FileInputStream keyFile = new FileInputStream(this.serviceAccountCredentialsFile);
-    GoogleCredentials credentials = GoogleCredentials.fromStream(keyFile)
-        .createScoped(Collections.singleton(DriveScopes.DRIVE));
-
-    HttpRequestInitializer requestInitializer = new HttpCredentialsAdapter(
-        credentials);
-
-    Drive service = new Drive.Builder(new NetHttpTransport(),
-        GsonFactory.getDefaultInstance(),
-        requestInitializer)
-        .setApplicationName(this.appName)
-        .build();
+    Drive service;
+    try {
+      service = clientFactory.getDrive();
+    } catch (GeneralSecurityException gse) {
+      throw new IOException("Unable to create the Google Drive client.", gse);
+    }
 
     // Upload file to drive.
     File fileMetadata = new File();
@@ -0,0 +1,384 @@
+package edu.umd.lib.staffdir.google;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.SheetsScopes;
+import com.google.auth.http.HttpCredentialsAdapter;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+
+/**
+ * Creates the Google Sheets and Drive API clients, sharing a single HTTP
+ * transport, JSON factory, and service account credential between them.
+ * <p>
+ * Everything is created on first use, and then reused for the life of the
+ * factory, so the TLS setup and access token request are only made once per
+ * process. If a token cache file is given, the access token is also saved to
+ * it, and reused by later processes needing the same scopes until it expires.
+ * <p>
+ * The credential only requests read-only scopes, unless others are set, so
+ * that a leaked token (or token cache file) cannot be used to modify Google
+ * Drive.
+ * <p>
+ * This class is thread-safe.
+ */
+public class GoogleClientFactory {
+  public static final Logger log = LoggerFactory.getLogger(GoogleClientFactory.class);
+
+  /**
+   * The OAuth scopes needed to read the Google Sheets document and its Drive
+   * version, which are requested unless others are set.
+   */
+  public static final List<String> READ_ONLY_SCOPES = Collections.unmodifiableList(
+      Arrays.asList(SheetsScopes.SPREADSHEETS_READONLY, DriveScopes.DRIVE_METADATA_READONLY));
+
+  /**
+   * The OAuth scopes needed to also replace the contents of an existing Google
+   * Drive file, as DriveUploader does.
+   */
+  public static final List<String> UPLOAD_SCOPES = Collections.unmodifiableList(
+      Arrays.asList(SheetsScopes.SPREADSHEETS_READONLY, DriveScopes.DRIVE));
+
+  // A cached token is only used if it remains valid for at least this long
+  private static final long MIN_TOKEN_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * An access token saved to the token cache file, which holds a token for
+   * each set of scopes, keyed by the space-separated scopes.
+   */
+  public static class CachedToken {
+    /**
+     * The service account the token was issued to.
+     */
+    public String clientEmail;
+
+    /**
+     * The OAuth scopes the token was issued for.
+     */
+    public List<String> scopes = new ArrayList<>();
+
+    /**
+     * The access token.
+     */
+    public String tokenValue;
+
+    /**
+     * The time (in milliseconds since the epoch) the token expires.
+     */
+    public long expirationMillis;
+  }
+
+  private final String appName;
+  private final String serviceAccountCredentialsFile;
+  private final String tokenCacheFile;
+  private String rootUrl;
+  private List<String> scopes = READ_ONLY_SCOPES;
+
+  private NetHttpTransport transport;
+  private GoogleCredentials credentials;
+  private Sheets sheets;
+  private Drive drive;
+
+  /**
+   * Constructs a GoogleClientFactory which does not cache access tokens on
+   * disk.
+   *
+   * @param appName
+   *          the application name to provide to Google
+   * @param serviceAccountCredentialsFile
+   *          the fully-qualified path to the file containing the service
+   *          account authentication credentials.
+   */
+  public GoogleClientFactory(String appName, String serviceAccountCredentialsFile) {
+    this(appName, serviceAccountCredentialsFile, null);
+  }
+
+  /**
+   * Constructs a GoogleClientFactory.
+   *
+   * @param appName
+   *          the application name to provide to Google
+   * @param serviceAccountCredentialsFile
+   *          the fully-qualified path to the file containing the service
+   *          account authentication credentials.
+   * @param tokenCacheFile
+   *          the path of the file to cache access tokens in, or null to not
+   *          cache them
+   */
+  public GoogleClientFactory(String appName, String serviceAccountCredentialsFile, String tokenCacheFile) {
+    this.appName = appName;
+    this.serviceAccountCredentialsFile = serviceAccountCredentialsFile;
+    this.tokenCacheFile = tokenCacheFile;
+  }
+
+  /**
+   * Sets the root URL the Sheets and Drive API requests are sent to, in place
+   * of the Google API servers, such as a local stand-in server for testing.
+   * Defaults to null (the Google API servers).
+   * <p>
+   * This must be set before the clients are first used. Access tokens are
+   * still requested from the "token_uri" in the service account credentials
+   * file.
+   *
+   * @param rootUrl
+   *          the root URL (such as "http://localhost:8080/"), or null for the
+   *          Google API servers
+   */
+  public synchronized void setRootUrl(String rootUrl) {
+    this.rootUrl = rootUrl;
+  }
+
+  /**
+   * Sets the OAuth scopes to request for the shared credential. Defaults to
+   * READ_ONLY_SCOPES. Only request UPLOAD_SCOPES in a process that uploads
+   * to Google Drive.
+   * <p>
+   * This must be set before the clients are first used.
+   *
+   * @param scopes
+   *          the OAuth scopes to request
+   */
+  public synchronized void setScopes(List<String> scopes) {
+    this.scopes = Collections.unmodifiableList(new ArrayList<>(scopes));
+  }
+
+  /**
+   * Returns the shared Sheets API client, creating it on first use.
+   *
+   * @return the shared Sheets API client
+   * @throws GeneralSecurityException
+   *           if the HTTP transport cannot be created
+   * @throws IOException
+   *           if the credentials cannot be read
+   */
+  public synchronized Sheets getSheets() throws GeneralSecurityException, IOException {
+    if (sheets == null) {
+      Sheets.Builder builder = new Sheets.Builder(getTransport(), getJsonFactory(), getRequestInitializer())
+          .setApplicationName(this.appName);
+      if (this.rootUrl != null) {
+        builder.setRootUrl(this.rootUrl);
+      }
+      sheets = builder.build();
+    }
+    return sheets;
+  }
+
+  /**
+   * Returns the shared Drive API client, creating it on first use.
+   *
+   * @return the shared Drive API client
+   * @throws GeneralSecurityException
+   *           if the HTTP transport cannot be created
+   * @throws IOException
+   *           if the credentials cannot be read
+   */
+  public synchronized Drive getDrive() throws GeneralSecurityException, IOException {
+    if (drive == null) {
+      Drive.Builder builder = new Drive.Builder(getTransport(), getJsonFactory(), getRequestInitializer())
+          .setApplicationName(this.appName);
+      if (this.rootUrl != null) {
+        builder.setRootUrl(this.rootUrl);
+      }
+      drive = builder.build();
+    }
+    return drive;
+  }
+
+  private NetHttpTransport getTransport() throws GeneralSecurityException, IOException {
+    if (transport == null) {
+      transport = GoogleNetHttpTransport.newTrustedTransport();
+    }
+    return transport;
+  }
+
+  private static JsonFactory getJsonFactory() {
+    return GsonFactory.getDefaultInstance();
+  }
+
+  private HttpRequestInitializer getRequestInitializer() throws IOException {
+    return new HttpCredentialsAdapter(getCredentials());
+  }
+
+  /**
+   * Returns the shared credential, reading the service account credentials
+   * file on first use. The access token from the token cache file is used, if
+   * it was issued for the same service account and scopes, and has not
+   * expired. Access tokens obtained by refreshing the credential are saved to
+   * the token cache file.
+   *
+   * @return the shared credential
+   * @throws IOException
+   *           if the credentials file cannot be read
+   */
+  synchronized GoogleCredentials getCredentials() throws IOException {
+    if (credentials != null) {
+      return credentials;
+    }
+
+    try (InputStream in = new FileInputStream(this.serviceAccountCredentialsFile)) {
+      credentials = GoogleCredentials.fromStream(in).createScoped(this.scopes);
+    }
+
+    if ((this.tokenCacheFile != null) && (credentials instanceof ServiceAccountCredentials)) {
+      String clientEmail = ((ServiceAccountCredentials) credentials).getClientEmail();
+      AccessToken cachedToken = loadToken(clientEmail);
+      if (cachedToken != null) {
+        log.debug("Using cached Google access token, valid until {}", cachedToken.getExpirationTime());
+      }
+      credentials = new CachedTokenCredentials(credentials, cachedToken);
+      credentials.addChangeListener(changed -> saveToken(clientEmail, changed));
+    }
+    return credentials;
+  }
+
+  /**
+   * Credentials starting with a previously issued access token, which obtain
+   * new tokens from the service account credentials once it expires.
+   */
+  private static class CachedTokenCredentials extends GoogleCredentials {
+    private static final long serialVersionUID = 1L;
+
+    private final GoogleCredentials serviceAccountCredentials;
+
+    CachedTokenCredentials(GoogleCredentials serviceAccountCredentials, AccessToken cachedToken) {
+      super(cachedToken);
+      this.serviceAccountCredentials = serviceAccountCredentials;
+    }
+
+    @Override
+    public AccessToken refreshAccessToken() throws IOException {
+      return serviceAccountCredentials.refreshAccessToken();
+    }
+  }
+
+  /**
+   * Returns the access token for the scopes of this factory from the token
+   * cache file, or null if there is no usable token.
+   *
+   * @param clientEmail
+   *          the service account the token must have been issued to
+   * @return the access token from the token cache file, or null if there is
+   *         no usable token.
+   */
+  private AccessToken loadToken(String clientEmail) {
+    File file = new File(this.tokenCacheFile);
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      CachedToken cached = readTokens(file).get(getScopesKey());
+      long minExpirationMillis = System.currentTimeMillis() + MIN_TOKEN_LIFETIME_MILLIS;
+      if ((cached != null) && clientEmail.equals(cached.clientEmail) && this.scopes.equals(cached.scopes)
+          && (cached.tokenValue != null) && (cached.expirationMillis > minExpirationMillis)) {
+        return new AccessToken(cached.tokenValue, new Date(cached.expirationMillis));
+      }
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to read Google token cache '{}'", this.tokenCacheFile, ioe);
+    }
+    return null;
+  }
+
+  /**
+   * Saves the current access token of the given credential to the token
+   * cache file, readable only by the owner. The tokens cached for other sets
+   * of scopes are kept, unless they have expired.
+   *
+   * @param clientEmail
+   *          the service account the token was issued to
+   * @param changed
+   *          the credential that was refreshed
+   */
+  private void saveToken(String clientEmail, OAuth2Credentials changed) {
+    AccessToken token = changed.getAccessToken();
+    if ((token == null) || (token.getExpirationTime() == null)) {
+      return;
+    }
+
+    CachedToken cached = new CachedToken();
+    cached.clientEmail = clientEmail;
+    cached.scopes = new ArrayList<>(this.scopes);
+    cached.tokenValue = token.getTokenValue();
+    cached.expirationMillis = token.getExpirationTime().getTime();
+
+    File file = new File(this.tokenCacheFile);
+    File tempFile = new File(file.getPath() + ".tmp");
+    try {
+      Map<String, CachedToken> tokens = new TreeMap<>();
+      if (file.exists()) {
+        try {
+          tokens.putAll(readTokens(file));
+        } catch (IOException ioe) {
+          log.debug("Replacing unreadable Google token cache '{}'", this.tokenCacheFile, ioe);
+        }
+      }
+      long nowMillis = System.currentTimeMillis();
+      tokens.values().removeIf(other -> other.expirationMillis <= nowMillis);
+      tokens.put(getScopesKey(), cached);
+
+      Files.deleteIfExists(tempFile.toPath());
+      try {
+        Files.createFile(tempFile.toPath(),
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      } catch (UnsupportedOperationException uoe) {
+        // Not a POSIX file system, so use the default permissions
+      }
+      new ObjectMapper().writeValue(tempFile, tokens);
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write Google token cache '{}'", this.tokenCacheFile, ioe);
+    }
+  }
+
+  /**
+   * @return the key of the token for the scopes of this factory in the token
+   *         cache file
+   */
+  private String getScopesKey() {
+    return String.join(" ", this.scopes);
+  }
+
+  /**
+   * Returns the tokens in the given token cache file, keyed by scopes.
+   *
+   * @param file
+   *          the token cache file
+   * @return the tokens in the given token cache file, keyed by scopes.
+   * @throws IOException
+   *           if the file cannot be read or parsed
+   */
+  private static Map<String, CachedToken> readTokens(File file) throws IOException {
+    return new ObjectMapper().readValue(file, new TypeReference<Map<String, CachedToken>>() {
+    });
+  }
+}
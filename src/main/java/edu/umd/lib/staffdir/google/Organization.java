@@ -1,8 +1,17 @@
 package edu.umd.lib.staffdir.google;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Encapsulates the "Organization" sheet from the Google Sheets document,
@@ -11,16 +20,33 @@ import java.util.Map;
  * This class is needed because the spreadsheet information is "sparse", i.e.
  * some information (such as the Division for a department cost center) is not
  * repeated on every row.
+ * <p>
+ * The 6-digit cost centers form a hierarchy: the first two digits identify the
+ * division, the next two the department within the division, and the last two
+ * the unit within the department. When constructed, each cost center is
+ * parsed once to an integer code, and linked to its parent and children, so
+ * that the parent, ancestors, and children of a cost center can be looked up
+ * without further parsing or searching.
  */
 public class Organization {
   /**
    * The list of organization types
    */
-  enum Type {
+  public enum Type {
     DIVISION, DEPARTMENT, UNIT
   }
 
-  private Map<String, Map<String, String>> organizationsMap;
+  // The divisors separating the division and department codes from the rest
+  // of the integer cost center code
+  private static final int DIVISION_DIVISOR = 10000;
+  private static final int DEPARTMENT_DIVISOR = 100;
+
+  // The fields taken from the division of a department or unit, and from the
+  // department of a unit
+  private static final List<String> DIVISION_FIELDS = Arrays.asList("Division Code", "Division");
+  private static final List<String> DEPARTMENT_FIELDS = Collections.singletonList("Department");
+
+  private final Map<String, Node> nodes = new LinkedHashMap<>();
 
   /**
    * Converts the raw List of Maps from SheetsRetriever into a Map of Maps,
@@ -32,18 +58,131 @@ public class Organization {
    *          the key in the map designating the cost center.
    */
   public Organization(List<Map<String, String>> rawOrganizationsList, String costCenterField) {
-    this.organizationsMap = Organization.getCostCentersMap(rawOrganizationsList, costCenterField);
+    if (rawOrganizationsList == null) {
+      return;
+    }
+
+    // As with a Map, the last of any duplicate cost centers wins
+    Map<Integer, Node> nodesByCode = new HashMap<>();
+    for (Map<String, String> entry : rawOrganizationsList) {
+      Node node = new Node(entry.get(costCenterField), entry);
+      nodes.put(node.costCenter, node);
+      if (node.type != null) {
+        nodesByCode.put(node.code, node);
+      }
+    }
+
+    // A unit whose department is not in the sheet belongs directly to its
+    // division
+    for (Node node : nodes.values()) {
+      if ((node.type == Type.DEPARTMENT) || (node.type == Type.UNIT)) {
+        node.division = nodesByCode.get(getDivisionCode(node.code));
+        node.parent = node.division;
+      }
+      if (node.type == Type.UNIT) {
+        node.department = nodesByCode.get(getDepartmentCode(node.code));
+        if (node.department != null) {
+          node.parent = node.department;
+        }
+      }
+      if (node.parent != null) {
+        node.parent.children.add(node.costCenter);
+      }
+    }
+
+    for (Node node : nodes.values()) {
+      node.entry = new ResolvedEntry(node);
+    }
   }
 
   /**
    * Returns a Map of the organization for the given cost center.
+   * <p>
+   * The Map is a read-only view of the sheet row, which looks up the division
+   * and department information in the rows of the parent cost centers when it
+   * is requested, rather than a copy. The same Map is returned every time, so
+   * it can be shared by every person in the organization. Its keys are in
+   * sorted order.
    *
    * @param costCenter
    *          the cost center of the organization to return
-   * @return a Map of the organization for the given cost center.
+   * @return a read-only Map of the organization for the given cost center, or
+   *         null if the cost center is not in the sheet.
    */
   public Map<String, String> getOrganization(String costCenter) {
-    return organizationsMap.get(costCenter);
+    Node node = nodes.get(costCenter);
+    return (node != null) ? node.entry : null;
+  }
+
+  /**
+   * Returns the cost center of the parent of the given cost center: the
+   * department of a unit (or its division, if the department is not in the
+   * sheet), or the division of a department.
+   *
+   * @param costCenter
+   *          the cost center to return the parent of
+   * @return the cost center of the parent, or null if the given cost center is
+   *         a division, or is not in the sheet, or its parent is not in the
+   *         sheet.
+   */
+  public String getParent(String costCenter) {
+    Node node = nodes.get(costCenter);
+    return ((node != null) && (node.parent != null)) ? node.parent.costCenter : null;
+  }
+
+  /**
+   * Returns the cost centers of the ancestors of the given cost center,
+   * nearest first.
+   *
+   * @param costCenter
+   *          the cost center to return the ancestors of
+   * @return an unmodifiable List of the cost centers of the ancestors of the
+   *         given cost center, which is empty if there are none.
+   */
+  public List<String> getAncestors(String costCenter) {
+    List<String> ancestors = new ArrayList<>(2);
+    Node node = nodes.get(costCenter);
+    for (Node ancestor = (node != null) ? node.parent : null; ancestor != null; ancestor = ancestor.parent) {
+      ancestors.add(ancestor.costCenter);
+    }
+    return Collections.unmodifiableList(ancestors);
+  }
+
+  /**
+   * Returns the cost centers of the children of the given cost center, in
+   * the order they appear in the sheet.
+   *
+   * @param costCenter
+   *          the cost center to return the children of
+   * @return an unmodifiable List of the cost centers of the children of the
+   *         given cost center, which is empty if there are none.
+   */
+  public List<String> getChildren(String costCenter) {
+    Node node = nodes.get(costCenter);
+    return (node != null) ? Collections.unmodifiableList(node.children) : Collections.emptyList();
+  }
+
+  /**
+   * Returns the cost centers of the descendants of the given cost center of
+   * the given type, such as all the units within a division.
+   *
+   * @param costCenter
+   *          the cost center to return the descendants of
+   * @param type
+   *          the type of the descendants to return
+   * @return a List of the cost centers of the descendants of the given cost
+   *         center of the given type, in the order they appear in the sheet
+   *         within each parent.
+   */
+  public List<String> getDescendants(String costCenter, Type type) {
+    List<String> descendants = new ArrayList<>();
+    for (String child : getChildren(costCenter)) {
+      if (nodes.get(child).type == type) {
+        descendants.add(child);
+      }
+      descendants.addAll(getDescendants(child, type));
+    }
+    return descendants;
   }
 
   /**
@@ -54,26 +193,15 @@ public class Organization {
    *          organizations
    * @param costCenterField
    *          the String containing the map key to use for the cost center.
-   * @return
+   * @return a Map of the populated organizations, keyed by cost center
    */
   protected static final Map<String, Map<String, String>> getCostCentersMap(
       List<Map<String, String>> rawOrganizationsList, String costCenterField) {
+    Organization organization = new Organization(rawOrganizationsList, costCenterField);
     Map<String, Map<String, String>> costCentersMap = new HashMap<>();
-
-    if (rawOrganizationsList == null) {
-      return costCentersMap;
-    }
-
-    for (Map<String, String> entry : rawOrganizationsList) {
-      String costCenter = entry.get(costCenterField);
-      costCentersMap.put(costCenter, entry);
-    }
-
-    for (String costCenter : costCentersMap.keySet()) {
-      Map<String, String> m = populateEntry(costCenter, costCentersMap);
-      costCentersMap.put(costCenter, m);
+    for (Node node : organization.nodes.values()) {
+      costCentersMap.put(node.costCenter, node.entry);
     }
-
     return costCentersMap;
   }
 
@@ -97,27 +225,40 @@ public class Organization {
   protected static final Map<String, String> populateEntry(String costCenter,
       Map<String, Map<String, String>> costCentersMap) {
     Map<String, String> entry = new HashMap<>(costCentersMap.get(costCenter));
+    int code = parseCode(costCenter);
+    populate(entry, getType(code),
+        costCentersMap.get(toCostCenter(getDivisionCode(code))),
+        costCentersMap.get(toCostCenter(getDepartmentCode(code))));
+    return entry;
+  }
 
-    Type costCenterType = getType(costCenter);
-    if (costCenterType == Type.DIVISION) {
-      return entry;
-    }
-
-    if ((costCenterType == Type.DEPARTMENT) || (costCenterType == Type.UNIT)) {
-      String divisionCostCenter = getDivisionCostCenter(costCenter);
-      Map<String, String> divisionEntry = costCentersMap.get(divisionCostCenter);
-      entry.put("Division Code", divisionEntry.get("Division Code"));
-      entry.put("Division", divisionEntry.get("Division"));
-
+  /**
+   * Copies the division and department information to the given entry from
+   * the given division and department entries, as appropriate for the type of
+   * the entry.
+   *
+   * @param entry
+   *          the entry to populate
+   * @param type
+   *          the type of the entry, or null if its cost center is not valid
+   * @param divisionEntry
+   *          the entry of the division of the entry, or null if not known
+   * @param departmentEntry
+   *          the entry of the department of the entry, or null if not known
+   */
+  private static void populate(Map<String, String> entry, Type type, Map<String, String> divisionEntry,
+      Map<String, String> departmentEntry) {
+    if (((type == Type.DEPARTMENT) || (type == Type.UNIT)) && (divisionEntry != null)) {
+      for (String field : DIVISION_FIELDS) {
+        entry.put(field, divisionEntry.get(field));
+      }
     }
 
-    if (costCenterType == Type.UNIT) {
-      String departmentCostCenter = getDepartmentCostCenter(costCenter);
-      Map<String, String> departmentEntry = costCentersMap.get(departmentCostCenter);
-      entry.put("Department", departmentEntry.get("Department"));
+    if ((type == Type.UNIT) && (departmentEntry != null)) {
+      for (String field : DEPARTMENT_FIELDS) {
+        entry.put(field, departmentEntry.get(field));
+      }
     }
-
-    return entry;
   }
 
   /**
@@ -125,18 +266,29 @@ public class Organization {
    *
    * @param costCenter
    *          the cost center code to return the type of.
-   * @return the Organization.TYPE for the given 6-digit cost center code.
+   * @return the Organization.TYPE for the given 6-digit cost center code, or
+   *         null if it is not a 6-digit cost center code.
    */
   protected static final Organization.Type getType(String costCenter) {
-    String departmentCode = costCenter.substring(2, 4);
-    String unitCode = costCenter.substring(4, 6);
+    return getType(parseCode(costCenter));
+  }
 
-    if (!"00".equals(unitCode)) {
+  /**
+   * Returns the Organization.TYPE for the given integer cost center code.
+   *
+   * @param code
+   *          the integer cost center code, as returned by "parseCode"
+   * @return the Organization.TYPE for the given cost center code, or null if
+   *         the code is not valid.
+   */
+  private static Organization.Type getType(int code) {
+    if (code < 0) {
+      return null;
+    } else if ((code % DEPARTMENT_DIVISOR) != 0) {
       return Type.UNIT;
-    } else if (!"00".equals(departmentCode)) {
+    } else if ((code % DIVISION_DIVISOR) != 0) {
       return Type.DEPARTMENT;
     }
-
     return Type.DIVISION;
   }
 
@@ -148,8 +300,7 @@ public class Organization {
    * @return the division cost center associated with the given cost center
    */
   protected static final String getDivisionCostCenter(String costCenter) {
-    String divisionCode = costCenter.substring(0, 2);
-    return divisionCode + "0000";
+    return toCostCenter(getDivisionCode(parseCode(costCenter)));
   }
 
   /**
@@ -160,8 +311,148 @@ public class Organization {
    * @return the department cost center associated with the given cost center
    */
   protected static final String getDepartmentCostCenter(String costCenter) {
-    String departmentCode = costCenter.substring(0, 4);
-    return departmentCode + "00";
+    return toCostCenter(getDepartmentCode(parseCode(costCenter)));
+  }
+
+  private static int getDivisionCode(int code) {
+    return code - (code % DIVISION_DIVISOR);
+  }
+
+  private static int getDepartmentCode(int code) {
+    return code - (code % DEPARTMENT_DIVISOR);
+  }
+
+  /**
+   * Returns the integer code of the given 6-digit cost center.
+   *
+   * @param costCenter
+   *          the cost center to parse
+   * @return the integer code of the given cost center, or -1 if it is not a
+   *         6-digit cost center.
+   */
+  static int parseCode(String costCenter) {
+    if ((costCenter == null) || (costCenter.length() != 6)) {
+      return -1;
+    }
+    int code = 0;
+    for (int i = 0; i < costCenter.length(); i++) {
+      char digit = costCenter.charAt(i);
+      if ((digit < '0') || (digit > '9')) {
+        return -1;
+      }
+      code = (code * 10) + (digit - '0');
+    }
+    return code;
+  }
+
+  /**
+   * Returns the 6-digit cost center of the given integer code.
+   *
+   * @param code
+   *          the integer cost center code, as returned by "parseCode"
+   * @return the 6-digit cost center of the given integer code, or null if the
+   *         code is not valid.
+   */
+  static String toCostCenter(int code) {
+    if (code < 0) {
+      return null;
+    }
+    String digits = Integer.toString(code);
+    return "000000".substring(digits.length()) + digits;
   }
 
+  /**
+   * A single cost center in the hierarchy.
+   */
+  private static class Node {
+    final String costCenter;
+    final int code;
+    final Type type;
+    final Map<String, String> rawEntry;
+    ResolvedEntry entry;
+    Node parent;
+    Node division;
+    Node department;
+    final List<String> children = new ArrayList<>();
+
+    Node(String costCenter, Map<String, String> rawEntry) {
+      this.costCenter = costCenter;
+      this.code = parseCode(costCenter);
+      this.type = getType(this.code);
+      this.rawEntry = rawEntry;
+    }
+
+    /**
+     * Returns the node whose raw entry provides the given field: the division
+     * or department for the fields taken from them, or this node.
+     */
+    Node getSource(Object field) {
+      if ((division != null) && DIVISION_FIELDS.contains(field)) {
+        return division;
+      }
+      if ((department != null) && DEPARTMENT_FIELDS.contains(field)) {
+        return department;
+      }
+      return this;
+    }
+  }
+
+  /**
+   * A read-only Map view of the raw entry of a cost center, in which the
+   * fields taken from the division and department are looked up in their raw
+   * entries.
+   */
+  private static class ResolvedEntry extends AbstractMap<String, String> {
+    private final Node node;
+    private final List<String> keys;
+
+    ResolvedEntry(Node node) {
+      this.node = node;
+      Set<String> sortedKeys = new TreeSet<>(node.rawEntry.keySet());
+      if (node.division != null) {
+        sortedKeys.addAll(DIVISION_FIELDS);
+      }
+      if (node.department != null) {
+        sortedKeys.addAll(DEPARTMENT_FIELDS);
+      }
+      this.keys = new ArrayList<>(sortedKeys);
+    }
+
+    @Override
+    public String get(Object key) {
+      return node.getSource(key).rawEntry.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return (key instanceof String) && (Collections.binarySearch(keys, (String) key) >= 0);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          Iterator<String> keyIterator = keys.iterator();
+          return new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+              return keyIterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+              String key = keyIterator.next();
+              return new AbstractMap.SimpleImmutableEntry<>(key, get(key));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return keys.size();
+        }
+      };
+    }
+  }
 }
@@ -0,0 +1,334 @@
+package edu.umd.lib.staffdir.google;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The cells of a single sheet in a Google Sheets document, stored by column
+ * position.
+ * <p>
+ * The header row is stored once, and each following row is stored as an array
+ * of cell values in header order, so a sheet with many rows does not repeat
+ * the header names for each row. Cells are looked up by row number and column
+ * index, with the index of a header resolved once by "getColumnIndex".
+ * <p>
+ * For compatibility with code expecting a List of row Maps (keyed by header),
+ * "asMaps" and "getRowMap" provide read-only Map views of the rows, backed by
+ * the row arrays.
+ */
+public class SheetTable {
+  private final List<String> headers;
+  private final Map<String, Integer> columnIndex = new HashMap<>();
+  private final List<String[]> rows;
+
+  /**
+   * Constructs a SheetTable.
+   *
+   * @param headers
+   *          the header row of the sheet
+   * @param rows
+   *          the rows following the header row, each an array of cell values
+   *          in header order. Rows may be shorter than the header row, when
+   *          their trailing cells are empty.
+   */
+  @JsonCreator
+  public SheetTable(@JsonProperty("headers") List<String> headers, @JsonProperty("rows") List<String[]> rows) {
+    this.headers = (headers != null) ? new ArrayList<>(headers) : new ArrayList<>();
+    this.rows = (rows != null) ? new ArrayList<>(rows) : new ArrayList<>();
+    // As with a Map, the last of any duplicate headers wins
+    for (int i = 0; i < this.headers.size(); i++) {
+      columnIndex.put(this.headers.get(i), i);
+    }
+  }
+
+  /**
+   * Returns a SheetTable containing the given row Maps. The headers are the
+   * keys of all the Maps, in the order first encountered.
+   *
+   * @param rowMaps
+   *          the List of row Maps, keyed by header
+   * @return a SheetTable containing the given row Maps.
+   */
+  public static SheetTable fromMaps(List<Map<String, String>> rowMaps) {
+    Set<String> headers = new LinkedHashSet<>();
+    for (Map<String, String> rowMap : rowMaps) {
+      headers.addAll(rowMap.keySet());
+    }
+
+    List<String> headerList = new ArrayList<>(headers);
+    List<String[]> rows = new ArrayList<>(rowMaps.size());
+    for (Map<String, String> rowMap : rowMaps) {
+      String[] row = new String[headerList.size()];
+      for (int i = 0; i < row.length; i++) {
+        row[i] = rowMap.get(headerList.get(i));
+      }
+      rows.add(row);
+    }
+    return new SheetTable(headerList, rows);
+  }
+
+  /**
+   * @return the header row of the sheet
+   */
+  public List<String> getHeaders() {
+    return Collections.unmodifiableList(headers);
+  }
+
+  /**
+   * @return the rows following the header row, each an array of cell values
+   *         in header order
+   */
+  public List<String[]> getRows() {
+    return Collections.unmodifiableList(rows);
+  }
+
+  /**
+   * @return the number of rows, not counting the header row
+   */
+  public int size() {
+    return rows.size();
+  }
+
+  /**
+   * Returns the index of the column with the given header.
+   *
+   * @param header
+   *          the header of the column
+   * @return the index of the column with the given header, or -1 if there is
+   *         no such column.
+   */
+  public int getColumnIndex(String header) {
+    Integer index = columnIndex.get(header);
+    return (index != null) ? index : -1;
+  }
+
+  /**
+   * Returns the value of the given cell.
+   *
+   * @param row
+   *          the row number, not counting the header row, starting from 0
+   * @param column
+   *          the column index, as returned by "getColumnIndex"
+   * @return the value of the given cell, or null if the cell is empty or the
+   *         column does not exist.
+   */
+  public String get(int row, int column) {
+    String[] values = rows.get(row);
+    if ((column < 0) || (column >= values.length)) {
+      return null;
+    }
+    return values[column];
+  }
+
+  /**
+   * Returns the value of the cell in the given row and the column with the
+   * given header.
+   *
+   * @param row
+   *          the row number, not counting the header row, starting from 0
+   * @param header
+   *          the header of the column
+   * @return the value of the cell, or null if the cell is empty or there is
+   *         no such column.
+   */
+  public String get(int row, String header) {
+    return get(row, getColumnIndex(header));
+  }
+
+  /**
+   * Returns a SheetTable containing only the given columns of this table, in
+   * the order they appear in this table. The cell values are copied.
+   *
+   * @param columns
+   *          the headers of the columns to keep. Headers not in this table
+   *          are ignored.
+   * @return a SheetTable containing only the given columns of this table.
+   */
+  public SheetTable select(Collection<String> columns) {
+    TreeSet<Integer> indexes = new TreeSet<>();
+    for (String column : columns) {
+      if (columnIndex.containsKey(column)) {
+        indexes.add(columnIndex.get(column));
+      }
+    }
+
+    List<String> selectedHeaders = new ArrayList<>(indexes.size());
+    for (int index : indexes) {
+      selectedHeaders.add(headers.get(index));
+    }
+    List<String[]> selectedRows = new ArrayList<>(rows.size());
+    for (String[] row : rows) {
+      String[] selected = new String[selectedHeaders.size()];
+      int i = 0;
+      for (int index : indexes) {
+        selected[i++] = (index < row.length) ? row[index] : null;
+      }
+      selectedRows.add(selected);
+    }
+    return new SheetTable(selectedHeaders, selectedRows);
+  }
+
+  /**
+   * Trims every cell value in place, using the "String.trim()" method.
+   * <p>
+   * This is done because there is occasionally extra whitespace when users
+   * copy-and-paste entries into the source spreadsheet.
+   */
+  public void trim() {
+    for (String[] row : rows) {
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] != null) {
+          row[i] = row[i].trim();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a read-only Map view of the given row, keyed by header. Empty
+   * cells are not included in the Map.
+   *
+   * @param row
+   *          the row number, not counting the header row, starting from 0
+   * @return a read-only Map view of the given row, keyed by header.
+   */
+  public Map<String, String> getRowMap(int row) {
+    return new RowMap(rows.get(row));
+  }
+
+  /**
+   * @return a read-only List of Map views of the rows, as returned by
+   *         "getRowMap"
+   */
+  public List<Map<String, String>> asMaps() {
+    return new AbstractList<Map<String, String>>() {
+      @Override
+      public Map<String, String> get(int index) {
+        return getRowMap(index);
+      }
+
+      @Override
+      public int size() {
+        return rows.size();
+      }
+    };
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof SheetTable)) {
+      return false;
+    }
+    SheetTable other = (SheetTable) obj;
+    return headers.equals(other.headers)
+        && Arrays.deepEquals(rows.toArray(), other.rows.toArray());
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * headers.hashCode() + Arrays.deepHashCode(rows.toArray());
+  }
+
+  @Override
+  public String toString() {
+    return "SheetTable" + headers + " (" + rows.size() + " rows)";
+  }
+
+  /**
+   * A read-only Map view of a single row, looking up values through the shared
+   * column index.
+   */
+  private class RowMap extends AbstractMap<String, String> {
+    private final String[] values;
+
+    RowMap(String[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public String get(Object key) {
+      Integer index = columnIndex.get(key);
+      if ((index == null) || (index >= values.length)) {
+        return null;
+      }
+      return values[index];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new EntryIterator(values);
+        }
+
+        @Override
+        public int size() {
+          int size = 0;
+          for (Iterator<Map.Entry<String, String>> i = iterator(); i.hasNext(); i.next()) {
+            size++;
+          }
+          return size;
+        }
+      };
+    }
+  }
+
+  /**
+   * Iterates over the non-empty cells of a row, in header order, skipping any
+   * earlier columns with a duplicate header.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+    private final String[] values;
+    private int next = -1;
+
+    EntryIterator(String[] values) {
+      this.values = values;
+      advance();
+    }
+
+    private void advance() {
+      next++;
+      while ((next < values.length) && (next < headers.size())
+          && ((values[next] == null) || (columnIndex.get(headers.get(next)) != next))) {
+        next++;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return (next < values.length) && (next < headers.size());
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(headers.get(next), values[next]);
+      advance();
+      return entry;
+    }
+  }
+}
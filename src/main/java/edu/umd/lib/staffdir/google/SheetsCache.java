@@ -0,0 +1,221 @@
+package edu.umd.lib.staffdir.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An on-disk copy of sheets from a Google Sheets document, tagged with the
+ * Drive version of the document they were retrieved from.
+ * <p>
+ * The cached sheets are only valid while the document is unchanged. As soon
+ * as a different version is stored, the sheets cached for the previous
+ * version are discarded.
+ * <p>
+ * The layout of each sheet retrieved by column is also cached, and kept when
+ * the version changes, so that the columns can be requested directly the
+ * next time.
+ */
+public class SheetsCache {
+  /**
+   * The header row of a sheet, and the columns of it that were retrieved.
+   */
+  public static class ColumnLayout {
+    /**
+     * The header row of the sheet.
+     */
+    public List<String> headers = new ArrayList<>();
+
+    /**
+     * The headers of the columns that were retrieved.
+     */
+    public List<String> columns = new ArrayList<>();
+  }
+
+  /**
+   * The document id (from the URL) of the document.
+   */
+  public String spreadsheetDocId;
+
+  /**
+   * The Drive version of the document the sheets were retrieved from.
+   */
+  public String version;
+
+  /**
+   * The time the document was last modified, as reported by Drive, for
+   * information only.
+   */
+  public String modifiedTime;
+
+  /**
+   * The SheetTable for each cached sheet, keyed by sheet name.
+   */
+  public Map<String, SheetTable> sheets = new HashMap<>();
+
+  /**
+   * The ColumnLayout of each sheet retrieved by column, keyed by sheet name.
+   * Unlike the sheets, these are kept when the version changes, as they are
+   * checked against the header row returned with each request.
+   */
+  public Map<String, ColumnLayout> columnLayouts = new HashMap<>();
+
+  /**
+   * Returns the cached rows of the given sheets, if all of them were cached
+   * from the given version of the given document.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param version
+   *          the current Drive version of the document
+   * @param sheetNames
+   *          the names of the sheets within the document
+   * @return a Map, keyed by sheet name (in the order given), of the
+   *         SheetTable for each sheet, or null if any of the sheets is not
+   *         cached for the given version.
+   */
+  public Map<String, SheetTable> get(String spreadsheetDocId, String version,
+      Collection<String> sheetNames) {
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId) || !version.equals(this.version)) {
+      return null;
+    }
+    return getAnyVersion(spreadsheetDocId, sheetNames);
+  }
+
+  /**
+   * Returns the cached rows of the given sheets, regardless of the version of
+   * the document they were cached from. This is intended for use when the
+   * document cannot be reached.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document
+   * @return a Map, keyed by sheet name (in the order given), of the
+   *         SheetTable for each sheet, or null if any of the sheets is not
+   *         cached.
+   */
+  public Map<String, SheetTable> getAnyVersion(String spreadsheetDocId,
+      Collection<String> sheetNames) {
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId)) {
+      return null;
+    }
+    Map<String, SheetTable> results = new LinkedHashMap<>();
+    for (String sheetName : sheetNames) {
+      SheetTable table = sheets.get(sheetName);
+      if (table == null) {
+        return null;
+      }
+      results.put(sheetName, table);
+    }
+    return results;
+  }
+
+  /**
+   * Adds the given sheets, retrieved from the given version of the given
+   * document, to the cache. If the document or version differs from that of
+   * the sheets already cached, those sheets are discarded.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param version
+   *          the Drive version of the document the sheets were retrieved from
+   * @param modifiedTime
+   *          the time the document was last modified
+   * @param retrievedSheets
+   *          the SheetTable for each retrieved sheet, keyed by sheet name
+   */
+  public void put(String spreadsheetDocId, String version, String modifiedTime,
+      Map<String, SheetTable> retrievedSheets) {
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId)) {
+      this.columnLayouts.clear();
+    }
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId) || !version.equals(this.version)) {
+      this.sheets.clear();
+    }
+    this.spreadsheetDocId = spreadsheetDocId;
+    this.version = version;
+    this.modifiedTime = modifiedTime;
+    this.sheets.putAll(retrievedSheets);
+  }
+
+  /**
+   * Returns the cached ColumnLayout of the given sheet, regardless of the
+   * version of the document it was cached from.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetName
+   *          the name of the sheet within the document
+   * @return the cached ColumnLayout of the given sheet, or null if it is not
+   *         cached.
+   */
+  public ColumnLayout getColumnLayout(String spreadsheetDocId, String sheetName) {
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId)) {
+      return null;
+    }
+    return columnLayouts.get(sheetName);
+  }
+
+  /**
+   * Adds the ColumnLayout of the given sheet to the cache. If the document
+   * differs from that of the sheets already cached, everything already cached
+   * is discarded.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetName
+   *          the name of the sheet within the document
+   * @param layout
+   *          the ColumnLayout of the sheet
+   */
+  public void putColumnLayout(String spreadsheetDocId, String sheetName, ColumnLayout layout) {
+    if (!spreadsheetDocId.equals(this.spreadsheetDocId)) {
+      this.sheets.clear();
+      this.columnLayouts.clear();
+      this.version = null;
+      this.modifiedTime = null;
+      this.spreadsheetDocId = spreadsheetDocId;
+    }
+    this.columnLayouts.put(sheetName, layout);
+  }
+
+  /**
+   * Returns the SheetsCache stored in the given file.
+   *
+   * @param file
+   *          the file to read
+   * @return the SheetsCache stored in the given file.
+   * @throws IOException
+   *           if an I/O error occurs, or the file cannot be parsed
+   */
+  public static SheetsCache read(File file) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    return objectMapper.readValue(file, SheetsCache.class);
+  }
+
+  /**
+   * Writes this cache to the given file, by way of a temporary file so that an
+   * interrupted write does not leave a truncated cache behind.
+   *
+   * @param file
+   *          the file to write
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public void write(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    ObjectMapper objectMapper = new ObjectMapper();
+    objectMapper.writeValue(tempFile, this);
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
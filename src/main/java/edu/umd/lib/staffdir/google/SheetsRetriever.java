@@ -1,43 +1,70 @@
 package edu.umd.lib.staffdir.google;
 
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.services.drive.model.File;
 import com.google.api.services.sheets.v4.Sheets;
-import com.google.api.services.sheets.v4.SheetsScopes;
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
 import com.google.api.services.sheets.v4.model.ValueRange;
-import com.google.auth.http.HttpCredentialsAdapter;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.auth.oauth2.OAuth2Credentials;
 
 /**
- * Converts a single sheet in a Google Sheets document into a List of Maps.
+ * Converts a single sheet in a Google Sheets document into a SheetTable, or
+ * a List of Maps. Several sheets of the same document can also be retrieved
+ * at once, using a single request, with one of them restricted to the
+ * columns actually needed.
+ * <p>
+ * If a cache file is set, the retrieved sheets are saved to it, along with
+ * the Drive version of the document. Later requests are served from the cache
+ * file for as long as the document's version is unchanged.
  * <p>
  * This class assumes the first row of the sheet is the list of headers to use
  * as the keys for the map.
+ * <p>
+ * The retrieved sheets can also be captured to a directory, and later
+ * replayed from it without contacting Google, for repeatable offline runs.
+ * <p>
+ * Once the cache file, capture directory, and replay directory (if any) have
+ * been set, sheets may be retrieved by several threads at once.
  */
 public class SheetsRetriever {
   public static final Logger log = LoggerFactory.getLogger(SheetsRetriever.class);
 
-  private final String appName;
-  private final String serviceAccountCredentialsFile;
+  private final GoogleClientFactory clientFactory;
+  private String cacheFile;
+  private String captureDirectory;
+  private String replayDirectory;
+
+  // The Drive metadata of each document, retrieved once per SheetsRetriever
+  private final Map<String, File> documents = new HashMap<>();
+
+  // The ColumnLayout of each sheet retrieved by column, keyed by document id
+  // and sheet name
+  private final Map<String, Map<String, SheetsCache.ColumnLayout>> columnLayouts = new HashMap<>();
 
   /**
-   * Constructs a SheetsRetriever object.
+   * Constructs a SheetsRetriever object, with its own GoogleClientFactory.
    *
    * @param appName
    *          the application name to provide to Google
@@ -46,24 +73,52 @@ public class SheetsRetriever {
    *          account authentication credentials.
    */
   public SheetsRetriever(String appName, String serviceAccountCredentialsFile) {
-    this.appName = appName;
-    this.serviceAccountCredentialsFile = serviceAccountCredentialsFile;
+    this(new GoogleClientFactory(appName, serviceAccountCredentialsFile));
   }
 
   /**
-   * Creates an authorized Credential object.
+   * Constructs a SheetsRetriever object.
    *
-   * @param HTTP_TRANSPORT
-   *          The network HTTP Transport.
-   * @return An authorized Credential object.
-   * @throws IOException
-   *           If the credentials.json file cannot be found.
+   * @param clientFactory
+   *          the GoogleClientFactory providing the shared Sheets API client
    */
-  private OAuth2Credentials getCredentials(final NetHttpTransport HTTP_TRANSPORT) throws IOException {
-    GoogleCredentials credential = GoogleCredentials.fromStream(
-        new FileInputStream(this.serviceAccountCredentialsFile))
-        .createScoped(Collections.singleton(SheetsScopes.SPREADSHEETS_READONLY));
-    return credential;
+  public SheetsRetriever(GoogleClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  /**
+   * Sets the file used to cache sheets between runs. Defaults to null (no
+   * cache).
+   *
+   * @param cacheFile
+   *          the path of the cache file
+   */
+  public void setCacheFile(String cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Sets the directory to capture every retrieved sheet to, so that it can
+   * later be replayed (see "setReplayDirectory"). Each sheet is written to
+   * its own compressed file. Defaults to null (no capture).
+   *
+   * @param captureDirectory
+   *          the path of the capture directory
+   */
+  public void setCaptureDirectory(String captureDirectory) {
+    this.captureDirectory = captureDirectory;
+  }
+
+  /**
+   * Sets the directory of captured sheets (see "setCaptureDirectory") to
+   * return instead of retrieving the sheets from Google. No requests are made
+   * to Google, and the cache file is not used. Defaults to null (no replay).
+   *
+   * @param replayDirectory
+   *          the path of the capture directory to replay
+   */
+  public void setReplayDirectory(String replayDirectory) {
+    this.replayDirectory = replayDirectory;
   }
 
   /**
@@ -79,16 +134,8 @@ public class SheetsRetriever {
    */
   private ValueRange getSpreadsheetCells(String spreadsheetDocId, String sheetName) {
     try {
-      // Build a new authorized API client service.
-      final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+      Sheets service = clientFactory.getSheets();
       final String spreadsheetId = spreadsheetDocId;
-      JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-      OAuth2Credentials credentials = getCredentials(HTTP_TRANSPORT);
-      HttpRequestInitializer requestInitializer = new HttpCredentialsAdapter(credentials);
-      Sheets service = new Sheets.Builder(HTTP_TRANSPORT, jsonFactory, requestInitializer)
-          .setApplicationName(this.appName)
-          .build();
-
       final String range = sheetName;
       ValueRange response = service.spreadsheets().values()
           .get(spreadsheetId, range)
@@ -101,6 +148,555 @@ public class SheetsRetriever {
     return null;
   }
 
+  /**
+   * Returns the cells of all the given sheets of the spreadsheet document,
+   * using a single "batchGet" request.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document
+   * @return a BatchGetValuesResponse containing a ValueRange for each sheet,
+   *         in the order requested, or null if the sheets could not be
+   *         retrieved.
+   */
+  private BatchGetValuesResponse getSpreadsheetCells(String spreadsheetDocId, List<String> sheetNames) {
+    try {
+      Sheets service = clientFactory.getSheets();
+      return service.spreadsheets().values()
+          .batchGet(spreadsheetDocId)
+          .setRanges(sheetNames)
+          .execute();
+    } catch (GeneralSecurityException | IOException e) {
+      log.error("Could not retrieve sheets {} from spreadsheetDocId='{}'", sheetNames, spreadsheetDocId, e);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the Drive version and modification time of the given document,
+   * retrieving them the first time the document is requested.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @return the Drive File metadata for the document, or null if it could not
+   *         be retrieved.
+   */
+  private synchronized File getDocument(String spreadsheetDocId) {
+    if (!documents.containsKey(spreadsheetDocId)) {
+      File document = null;
+      try {
+        document = clientFactory.getDrive().files().get(spreadsheetDocId)
+            .setFields("version,modifiedTime")
+            .setSupportsAllDrives(true)
+            .execute();
+      } catch (GeneralSecurityException | IOException e) {
+        log.warn("WARNING: Could not retrieve the version of spreadsheetDocId='{}'", spreadsheetDocId, e);
+      }
+      documents.put(spreadsheetDocId, document);
+    }
+    return documents.get(spreadsheetDocId);
+  }
+
+  /**
+   * Returns the cache file contents, or an empty cache if the file does not
+   * exist or cannot be read.
+   *
+   * @return the cache file contents, or an empty cache.
+   */
+  private SheetsCache loadCache() {
+    java.io.File file = new java.io.File(this.cacheFile);
+    if (file.exists()) {
+      try {
+        return SheetsCache.read(file);
+      } catch (IOException ioe) {
+        log.warn("WARNING: Unable to read sheets cache '{}'", this.cacheFile, ioe);
+      }
+    }
+    return new SheetsCache();
+  }
+
+  /**
+   * Returns a Map, keyed by sheet name, of the List of row Maps (as returned
+   * by "toMap") for each of the given sheets of the spreadsheet document.
+   * <p>
+   * The sheets are retrieved as described in "toTables", and the Maps are
+   * views of the resulting SheetTables.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document
+   * @return a Map, keyed by sheet name (in the order given), of the List of row
+   *         Maps for each sheet.
+   */
+  public Map<String, List<Map<String, String>>> toMaps(String spreadsheetDocId, List<String> sheetNames) {
+    return asMaps(toTables(spreadsheetDocId, sheetNames));
+  }
+
+  /**
+   * Returns a Map, keyed by sheet name, of the SheetTable for each of the
+   * given sheets of the spreadsheet document.
+   * <p>
+   * All the sheets are retrieved with a single request. If that request fails
+   * (for example, because one of the sheets does not exist), each sheet is
+   * retrieved separately instead, so that one missing sheet does not prevent
+   * the others from being retrieved.
+   * <p>
+   * If a cache file is set, the sheets are taken from it instead when they
+   * were cached from the current version of the document. If the document
+   * cannot be retrieved, the cached sheets are used regardless of their
+   * version.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document
+   * @return a Map, keyed by sheet name (in the order given), of the SheetTable
+   *         for each sheet.
+   */
+  public Map<String, SheetTable> toTables(String spreadsheetDocId, List<String> sheetNames) {
+    return retrieve(spreadsheetDocId, sheetNames,
+        () -> {
+          BatchGetValuesResponse response = getSpreadsheetCells(spreadsheetDocId, sheetNames);
+          return (response != null) ? toTables(sheetNames, response) : null;
+        },
+        () -> {
+          log.warn("WARNING: Retrieving sheets {} one at a time.", sheetNames);
+          Map<String, SheetTable> results = new LinkedHashMap<>();
+          for (String sheetName : sheetNames) {
+            results.put(sheetName, toTable(getSpreadsheetCells(spreadsheetDocId, sheetName)));
+          }
+          return results;
+        });
+  }
+
+  /**
+   * Returns a Map, keyed by sheet name, of the SheetTable for each of the
+   * given sheets of the spreadsheet document, with one of the sheets
+   * restricted to the columns selected from the other sheets.
+   * <p>
+   * All the sheets are retrieved with a single request, as in "toTables".
+   * The first time, the selected sheet is retrieved whole, and its header row
+   * and the selected columns are remembered (and saved to the cache file, if
+   * set, so that later runs can use them). After that, only the A1 notation
+   * ranges of those columns are requested. The header row returned with each
+   * range is checked against the remembered one, and if any column has
+   * moved, or a column that was not retrieved is now selected, the whole
+   * sheet is retrieved again, with a separate request.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document, including the
+   *          selected sheet
+   * @param selectedSheet
+   *          the name of the sheet to restrict to the selected columns
+   * @param columnSelector
+   *          returns the headers of the columns of the selected sheet to
+   *          keep, given the SheetTables of the other sheets, or null to keep
+   *          all the columns
+   * @return a Map, keyed by sheet name (in the order given), of the SheetTable
+   *         for each sheet. Columns not found in the selected sheet are
+   *         omitted.
+   */
+  public Map<String, SheetTable> toTables(String spreadsheetDocId, List<String> sheetNames, String selectedSheet,
+      Function<Map<String, SheetTable>, Collection<String>> columnSelector) {
+    // The selected sheet is cached (and captured) under its own name, as it
+    // is not the whole sheet
+    String selectedName = selectedSheet + " (selected columns)";
+    List<String> names = new ArrayList<>(sheetNames);
+    names.set(names.indexOf(selectedSheet), selectedName);
+
+    Map<String, SheetTable> tables = retrieve(spreadsheetDocId, names,
+        () -> {
+          Map<String, SheetTable> results = getSelectedColumns(spreadsheetDocId, sheetNames, selectedSheet,
+              columnSelector);
+          return (results != null) ? rename(results, selectedSheet, selectedName) : null;
+        },
+        () -> {
+          log.warn("WARNING: Retrieving sheets {} one at a time.", sheetNames);
+          Map<String, SheetTable> results = new LinkedHashMap<>();
+          for (String sheetName : sheetNames) {
+            results.put(sheetName, toTable(getSpreadsheetCells(spreadsheetDocId, sheetName)));
+          }
+          SheetTable selected = results.remove(selectedSheet);
+          results.put(selectedSheet, select(selectedSheet, selected, columnSelector.apply(results)));
+          return rename(results, selectedSheet, selectedName);
+        });
+    Map<String, SheetTable> results = new LinkedHashMap<>();
+    for (int i = 0; i < names.size(); i++) {
+      results.put(sheetNames.get(i), tables.get(names.get(i)));
+    }
+    return results;
+  }
+
+  /**
+   * Retrieves the given sheets with a single request, with the selected sheet
+   * restricted to the columns selected from the others, as described in
+   * "toTables".
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetNames
+   *          the names of the sheets within the document, including the
+   *          selected sheet
+   * @param selectedSheet
+   *          the name of the sheet to restrict to the selected columns
+   * @param columnSelector
+   *          returns the headers of the columns of the selected sheet to
+   *          keep, given the SheetTables of the other sheets
+   * @return a Map, keyed by sheet name, of the SheetTable for each sheet, or
+   *         null if the sheets could not be retrieved.
+   */
+  private Map<String, SheetTable> getSelectedColumns(String spreadsheetDocId, List<String> sheetNames,
+      String selectedSheet, Function<Map<String, SheetTable>, Collection<String>> columnSelector) {
+    List<String> otherSheets = new ArrayList<>(sheetNames);
+    otherSheets.remove(selectedSheet);
+
+    SheetsCache.ColumnLayout layout = getColumnLayout(spreadsheetDocId, selectedSheet);
+    ColumnSelection selection = (layout != null)
+        ? new ColumnSelection(selectedSheet, layout.headers, layout.columns)
+        : null;
+    // A column missing from the remembered header row may have been added
+    // since, so the whole sheet is retrieved to check
+    boolean byColumn = (selection != null) && !selection.getRanges().isEmpty()
+        && selection.getMissingColumns().isEmpty();
+    List<String> ranges = new ArrayList<>(otherSheets);
+    ranges.addAll(byColumn ? selection.getRanges() : Collections.singletonList(selectedSheet));
+
+    BatchGetValuesResponse response = getSpreadsheetCells(spreadsheetDocId, ranges);
+    if (response == null) {
+      return null;
+    }
+    List<ValueRange> valueRanges = (response.getValueRanges() != null)
+        ? response.getValueRanges()
+        : Collections.emptyList();
+    Map<String, SheetTable> results = toTables(otherSheets, response);
+    Collection<String> columns = columnSelector.apply(results);
+    List<ValueRange> selectedRanges = valueRanges.subList(Math.min(otherSheets.size(), valueRanges.size()),
+        valueRanges.size());
+
+    SheetTable table = null;
+    if (byColumn) {
+      table = selection.toTable(selectedRanges);
+      if (table == null) {
+        log.info("The columns of sheet '{}' have changed. Retrieving the whole sheet.", selectedSheet);
+      } else if ((columns == null) || !layout.columns.containsAll(columns)) {
+        log.info("Other columns of sheet '{}' are now needed. Retrieving the whole sheet.", selectedSheet);
+        table = null;
+      } else {
+        log.debug("Retrieved columns {} of sheet '{}' as {}", layout.columns, selectedSheet,
+            selection.getRanges());
+      }
+    }
+    if (table == null) {
+      ValueRange valueRange = byColumn
+          ? getSpreadsheetCells(spreadsheetDocId, selectedSheet)
+          : (selectedRanges.isEmpty() ? null : selectedRanges.get(0));
+      if (byColumn && (valueRange == null)) {
+        return null;
+      }
+      table = toTable(valueRange);
+      if ((columns != null) && !table.getHeaders().isEmpty()) {
+        SheetsCache.ColumnLayout newLayout = new SheetsCache.ColumnLayout();
+        newLayout.headers.addAll(table.getHeaders());
+        newLayout.columns.addAll(columns);
+        putColumnLayout(spreadsheetDocId, selectedSheet, newLayout);
+      }
+    }
+
+    results.put(selectedSheet, select(selectedSheet, table, columns));
+    return results;
+  }
+
+  /**
+   * Returns the remembered ColumnLayout of the given sheet, from memory or
+   * the cache file.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetName
+   *          the name of the sheet within the document
+   * @return the ColumnLayout of the given sheet, or null if it is not known.
+   */
+  private synchronized SheetsCache.ColumnLayout getColumnLayout(String spreadsheetDocId, String sheetName) {
+    Map<String, SheetsCache.ColumnLayout> layouts = columnLayouts.computeIfAbsent(spreadsheetDocId,
+        k -> new HashMap<>());
+    if (!layouts.containsKey(sheetName) && (this.cacheFile != null)) {
+      layouts.put(sheetName, loadCache().getColumnLayout(spreadsheetDocId, sheetName));
+    }
+    return layouts.get(sheetName);
+  }
+
+  /**
+   * Remembers the ColumnLayout of the given sheet. It is saved to the cache
+   * file, if set, along with the retrieved sheets.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetName
+   *          the name of the sheet within the document
+   * @param layout
+   *          the ColumnLayout of the sheet
+   */
+  private synchronized void putColumnLayout(String spreadsheetDocId, String sheetName,
+      SheetsCache.ColumnLayout layout) {
+    columnLayouts.computeIfAbsent(spreadsheetDocId, k -> new HashMap<>()).put(sheetName, layout);
+  }
+
+  /**
+   * Returns a SheetTable containing only the given columns of the given
+   * SheetTable, logging any columns that are not in it.
+   *
+   * @param sheetName
+   *          the name of the sheet the SheetTable was retrieved from
+   * @param table
+   *          the SheetTable to select the columns from
+   * @param columns
+   *          the headers of the columns to select, or null to select all the
+   *          columns
+   * @return a SheetTable containing the given columns of the given SheetTable.
+   */
+  private static SheetTable select(String sheetName, SheetTable table, Collection<String> columns) {
+    if (columns == null) {
+      return table;
+    }
+    List<String> missingColumns = new ArrayList<>();
+    for (String column : columns) {
+      if (table.getColumnIndex(column) < 0) {
+        missingColumns.add(column);
+      }
+    }
+    if (!missingColumns.isEmpty() && (table.size() > 0)) {
+      log.warn("WARNING: Columns {} were not found in sheet '{}'", missingColumns, sheetName);
+    }
+    return table.select(columns);
+  }
+
+  /**
+   * Returns a copy of the given Map, in the same order, with the given key
+   * renamed.
+   *
+   * @param tables
+   *          a Map of SheetTables
+   * @param from
+   *          the key to rename
+   * @param to
+   *          the new name of the key
+   * @return a copy of the given Map, with the given key renamed.
+   */
+  private static Map<String, SheetTable> rename(Map<String, SheetTable> tables, String from, String to) {
+    Map<String, SheetTable> results = new LinkedHashMap<>();
+    for (Map.Entry<String, SheetTable> entry : tables.entrySet()) {
+      results.put(entry.getKey().equals(from) ? to : entry.getKey(), entry.getValue());
+    }
+    return results;
+  }
+
+  /**
+   * Returns the SheetTables retrieved by the given request, using the cache
+   * file (if set) as described in "toTables". The SheetTables are captured to,
+   * or replayed from, the capture or replay directory, if set.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param names
+   *          the names the SheetTables are cached under
+   * @param request
+   *          retrieves the SheetTables, keyed by the given names. Returns null
+   *          if the request fails.
+   * @param fallback
+   *          retrieves the SheetTables if the request fails and no cached
+   *          copy is available. These are not cached.
+   * @return a Map of the SheetTables, keyed by the given names.
+   */
+  private Map<String, SheetTable> retrieve(String spreadsheetDocId, List<String> names,
+      Supplier<Map<String, SheetTable>> request, Supplier<Map<String, SheetTable>> fallback) {
+    if (this.replayDirectory != null) {
+      return replay(names);
+    }
+    Map<String, SheetTable> results = retrieveLive(spreadsheetDocId, names, request, fallback);
+    if (this.captureDirectory != null) {
+      capture(results);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the SheetTables retrieved by the given request, or from the cache
+   * file, with the parameters described in "retrieve".
+   */
+  private Map<String, SheetTable> retrieveLive(String spreadsheetDocId, List<String> names,
+      Supplier<Map<String, SheetTable>> request, Supplier<Map<String, SheetTable>> fallback) {
+    SheetsCache cache = null;
+    File document = null;
+    if (this.cacheFile != null) {
+      cache = loadCache();
+      document = getDocument(spreadsheetDocId);
+      if ((document != null) && (document.getVersion() != null)) {
+        Map<String, SheetTable> cached = cache.get(spreadsheetDocId, document.getVersion().toString(), names);
+        if (cached != null) {
+          log.info("Using cached sheets {} (document version {}, modified {})", names,
+              document.getVersion(), document.getModifiedTime());
+          return cached;
+        }
+      }
+    }
+
+    Map<String, SheetTable> results = request.get();
+    if (results == null) {
+      Map<String, SheetTable> stale = (cache != null)
+          ? cache.getAnyVersion(spreadsheetDocId, names)
+          : null;
+      if (stale != null) {
+        log.warn("WARNING: Using cached sheets {} from document version {}, which may be out of date.",
+            names, cache.version);
+        return stale;
+      }
+      return fallback.get();
+    }
+
+    if ((cache != null) && (document != null) && (document.getVersion() != null)) {
+      saveCache(spreadsheetDocId, document, results);
+    }
+    return results;
+  }
+
+  /**
+   * Writes each of the given SheetTables to its own file in the capture
+   * directory.
+   *
+   * @param tables
+   *          the SheetTables to capture, keyed by the names they were
+   *          retrieved under
+   */
+  private void capture(Map<String, SheetTable> tables) {
+    java.io.File dir = new java.io.File(this.captureDirectory);
+    dir.mkdirs();
+    ObjectMapper objectMapper = new ObjectMapper();
+    for (Map.Entry<String, SheetTable> entry : tables.entrySet()) {
+      java.io.File file = getCaptureFile(dir, entry.getKey());
+      try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+        objectMapper.writeValue(out, entry.getValue());
+      } catch (IOException ioe) {
+        log.warn("WARNING: Unable to capture sheet '{}' to '{}'", entry.getKey(), file, ioe);
+      }
+    }
+  }
+
+  /**
+   * Returns the SheetTables with the given names from the replay directory.
+   * A SheetTable that was not captured is returned as an empty SheetTable.
+   *
+   * @param names
+   *          the names the SheetTables were retrieved under
+   * @return a Map of the SheetTables, keyed by the given names.
+   */
+  private Map<String, SheetTable> replay(List<String> names) {
+    java.io.File dir = new java.io.File(this.replayDirectory);
+    ObjectMapper objectMapper = new ObjectMapper();
+    Map<String, SheetTable> results = new LinkedHashMap<>();
+    for (String name : names) {
+      java.io.File file = getCaptureFile(dir, name);
+      SheetTable table = new SheetTable(Collections.emptyList(), Collections.emptyList());
+      try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+        table = objectMapper.readValue(in, SheetTable.class);
+      } catch (IOException ioe) {
+        log.error("ERROR: Unable to replay sheet '{}' from '{}'", name, file, ioe);
+      }
+      results.put(name, table);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the file in the given capture directory holding the SheetTable
+   * with the given name.
+   *
+   * @param dir
+   *          the capture directory
+   * @param name
+   *          the name the SheetTable was retrieved under
+   * @return the file in the given capture directory holding the SheetTable.
+   */
+  private static java.io.File getCaptureFile(java.io.File dir, String name) {
+    try {
+      return new java.io.File(dir, URLEncoder.encode(name, "UTF-8") + ".json.gz");
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Adds the given SheetTables, and the known column layouts of the
+   * document, to the cache file.
+   * <p>
+   * The cache file is read again first, so that sheets saved by concurrent
+   * requests since it was last read are not lost.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param document
+   *          the Drive File metadata for the document
+   * @param results
+   *          the SheetTables to cache, keyed by the names to cache them under
+   */
+  private synchronized void saveCache(String spreadsheetDocId, File document, Map<String, SheetTable> results) {
+    SheetsCache cache = loadCache();
+    cache.put(spreadsheetDocId, document.getVersion().toString(),
+        String.valueOf(document.getModifiedTime()), results);
+    for (Map.Entry<String, SheetsCache.ColumnLayout> entry : columnLayouts.getOrDefault(spreadsheetDocId,
+        Collections.emptyMap()).entrySet()) {
+      if (entry.getValue() != null) {
+        cache.putColumnLayout(spreadsheetDocId, entry.getKey(), entry.getValue());
+      }
+    }
+    try {
+      cache.write(new java.io.File(this.cacheFile));
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write sheets cache '{}'", this.cacheFile, ioe);
+    }
+  }
+
+  /**
+   * Returns a Map, keyed by sheet name, of the List of row Maps (as returned
+   * by "toMap") for each ValueRange in the given "batchGet" response.
+   *
+   * @param sheetNames
+   *          the names of the sheets requested, in the order requested
+   * @param response
+   *          the BatchGetValuesResponse containing a ValueRange for each
+   *          sheet, in the order requested
+   * @return a Map, keyed by sheet name (in the order given), of the List of row
+   *         Maps for each sheet.
+   */
+  public Map<String, List<Map<String, String>>> toMaps(List<String> sheetNames, BatchGetValuesResponse response) {
+    return asMaps(toTables(sheetNames, response));
+  }
+
+  /**
+   * Returns a Map, keyed by sheet name, of the SheetTable for each ValueRange
+   * in the given "batchGet" response.
+   *
+   * @param sheetNames
+   *          the names of the sheets requested, in the order requested
+   * @param response
+   *          the BatchGetValuesResponse containing a ValueRange for each
+   *          sheet, in the order requested
+   * @return a Map, keyed by sheet name (in the order given), of the SheetTable
+   *         for each sheet.
+   */
+  public Map<String, SheetTable> toTables(List<String> sheetNames, BatchGetValuesResponse response) {
+    List<ValueRange> valueRanges = (response != null) ? response.getValueRanges() : null;
+    Map<String, SheetTable> results = new LinkedHashMap<>();
+    for (int i = 0; i < sheetNames.size(); i++) {
+      ValueRange valueRange = ((valueRanges != null) && (i < valueRanges.size())) ? valueRanges.get(i) : null;
+      results.put(sheetNames.get(i), toTable(valueRange));
+    }
+    return results;
+  }
+
   /**
    * Returns a List containing a Map for each row in the given sheet of the
    * spreadsheet document.
@@ -117,8 +713,26 @@ public class SheetsRetriever {
    *         the map.
    */
   public List<Map<String, String>> toMap(String spreadsheetDocId, String sheetName) {
+    return toTable(spreadsheetDocId, sheetName).asMaps();
+  }
+
+  /**
+   * Returns a SheetTable containing the cells of the given sheet of the
+   * spreadsheet document.
+   *
+   * @param spreadsheetDocId
+   *          the document id (from the URL) of the document
+   * @param sheetName
+   *          the name of the sheet within the document
+   * @return a SheetTable containing the cells of the given sheet of the
+   *         spreadsheet document.
+   */
+  public SheetTable toTable(String spreadsheetDocId, String sheetName) {
+    if ((this.cacheFile != null) || (this.captureDirectory != null) || (this.replayDirectory != null)) {
+      return toTables(spreadsheetDocId, Collections.singletonList(sheetName)).get(sheetName);
+    }
     ValueRange valueRange = getSpreadsheetCells(spreadsheetDocId, sheetName);
-    return toMap(valueRange);
+    return toTable(valueRange);
   }
 
   /**
@@ -133,35 +747,55 @@ public class SheetsRetriever {
    *         uses the first row as the keys for the map.
    */
   public List<Map<String, String>> toMap(ValueRange valueRange) {
-    List<Map<String, String>> results = new ArrayList<>();
-
-    if (valueRange == null) {
-      return results;
-    }
+    return toTable(valueRange).asMaps();
+  }
 
-    List<List<Object>> values = valueRange.getValues();
+  /**
+   * Returns a SheetTable containing the cells in the given ValueRange.
+   * <p>
+   * This method assumes that the headers are in the first row of the
+   * ValueRange. Cells beyond the last header are ignored.
+   *
+   * @param valueRange
+   *          the ValueRange containing the spreadsheet cells.
+   * @return a SheetTable containing the cells in the ValueRange, which is
+   *         empty if the ValueRange is null or has no cells.
+   */
+  public SheetTable toTable(ValueRange valueRange) {
+    List<List<Object>> values = (valueRange != null) ? valueRange.getValues() : null;
     if (values == null || values.isEmpty()) {
-      return results;
+      return new SheetTable(Collections.emptyList(), Collections.emptyList());
     }
 
     List<String> headerRow = new ArrayList<>();
-    for (List<Object> row : values) {
-      List<String> rowValues = new ArrayList<>();
-      for (Object col : row) {
-        rowValues.add((String) col);
-        log.debug((String) col);
-      }
-      if (headerRow.isEmpty()) {
-        headerRow.addAll(rowValues);
-        log.debug("\n");
-        continue;
-      }
-      Map<String, String> rowMap = new HashMap<>();
-      for (int i = 0; i < rowValues.size(); i++) {
-        rowMap.put(headerRow.get(i), rowValues.get(i));
+    for (Object col : values.get(0)) {
+      headerRow.add((String) col);
+    }
+    log.debug("Headers: {}", headerRow);
+
+    List<String[]> rows = new ArrayList<>(values.size() - 1);
+    for (List<Object> row : values.subList(1, values.size())) {
+      String[] rowValues = new String[Math.min(row.size(), headerRow.size())];
+      for (int i = 0; i < rowValues.length; i++) {
+        rowValues[i] = (String) row.get(i);
       }
-      results.add(rowMap);
-      log.debug("\n");
+      rows.add(rowValues);
+    }
+    return new SheetTable(headerRow, rows);
+  }
+
+  /**
+   * Returns the List of row Map views of each of the given SheetTables.
+   *
+   * @param tables
+   *          a Map of SheetTables, keyed by sheet name
+   * @return a Map, keyed by sheet name (in the same order), of the List of row
+   *         Maps for each sheet.
+   */
+  private static Map<String, List<Map<String, String>>> asMaps(Map<String, SheetTable> tables) {
+    Map<String, List<Map<String, String>>> results = new LinkedHashMap<>();
+    for (Map.Entry<String, SheetTable> entry : tables.entrySet()) {
+      results.put(entry.getKey(), entry.getValue().asMaps());
     }
     return results;
   }
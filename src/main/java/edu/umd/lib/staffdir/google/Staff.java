@@ -15,54 +15,55 @@ public class Staff {
    * Converts the raw List of Maps from SheetsRetriever into a Map of Maps,
    * indexed by uid.
    *
-   * @param rawOrganizationsList
+   * @param rawStaffMap
    *          the raw List of Map<String, String> from SheetsRetriever
    * @param uidField
    *          the key in the map designating the uid.
    */
   public Staff(List<Map<String, String>> rawStaffMap, String uidField) {
-    this.staffMap = createStaffMap(rawStaffMap, uidField);
+    this(SheetTable.fromMaps(rawStaffMap), uidField);
   }
 
   /**
-   * Converts the given List of Maps into a Map of Maps, keyed by the uid.
+   * Indexes the rows of the given SheetTable by uid.
+   * <p>
+   * Every value in the table is "trimmed" in place by the "String.trim()"
+   * method, because there is occasionally extra whitespace when users
+   * copy-and-paste entries into the source spreadsheet. The Maps returned by
+   * "get" are views of the table rows, rather than copies.
    *
-   * @param rawStaffMap
-   *          the List of Maps to convert
+   * @param staffTable
+   *          the SheetTable from SheetsRetriever
    * @param uidField
-   *          the key in the Map to use to retrieve the uid.
-   * @return a Map of Maps, keyed by the uid.
-   *
+   *          the header of the column containing the uid.
    */
-  private static Map<String, Map<String, String>> createStaffMap(
-      List<Map<String, String>> rawStaffMap, String uidField) {
-    Map<String, Map<String, String>> results = new HashMap<>();
-
-    for (Map<String, String> entry : rawStaffMap) {
-      String uid = entry.get(uidField).trim();
-      Map<String, String> trimmedEntries = trimMap(entry);
-      results.put(uid, trimmedEntries);
-    }
-    return results;
+  public Staff(SheetTable staffTable, String uidField) {
+    this.staffMap = createStaffMap(staffTable, uidField);
   }
 
   /**
-   * Returns a Map where every entry in the given Map has been "trimmed" by the
-   * "String.trim()" method.
+   * Converts the given SheetTable into a Map of row Maps, keyed by the uid.
+   * Rows without a uid are skipped.
    *
-   * This is done because there is occasionally extra whitespace when users
-   * copy-and-paste entries into the source spreadsheet.
+   * @param staffTable
+   *          the SheetTable to convert
+   * @param uidField
+   *          the header of the column containing the uid.
+   * @return a Map of Maps, keyed by the uid.
    *
-   * @param rawMap
-   *          the Map to trim
-   * @return the trimmed map
    */
-  private static Map<String, String> trimMap(Map<String, String> rawMap) {
-    Map<String, String> trimmedMap = new HashMap<>();
-    for (String key : rawMap.keySet()) {
-      trimmedMap.put(key, rawMap.get(key).trim());
+  private static Map<String, Map<String, String>> createStaffMap(SheetTable staffTable, String uidField) {
+    Map<String, Map<String, String>> results = new HashMap<>();
+
+    staffTable.trim();
+    int uidColumn = staffTable.getColumnIndex(uidField);
+    for (int row = 0; row < staffTable.size(); row++) {
+      String uid = staffTable.get(row, uidColumn);
+      if (uid != null) {
+        results.put(uid, staffTable.getRowMap(row));
+      }
     }
-    return trimmedMap;
+    return results;
   }
 
   /**
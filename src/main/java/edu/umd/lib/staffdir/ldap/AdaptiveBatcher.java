@@ -0,0 +1,189 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Divides a collection of uids into LDAP filter queries, adjusting the number
+ * of uids in each query based on how the server responds.
+ * <p>
+ * The batch size grows while queries complete well within the target latency,
+ * and shrinks when a query exceeds it. A server size-limit error lowers the
+ * ceiling on the batch size and the affected uids are queued again in smaller
+ * batches. Independently of the batch size, no filter is allowed to exceed
+ * the configured byte budget.
+ * <p>
+ * This class is thread-safe, so that a single batcher can feed several
+ * concurrent searches.
+ */
+class AdaptiveBatcher {
+  public static final Logger log = LoggerFactory.getLogger(AdaptiveBatcher.class);
+
+  /**
+   * A single batch of uids, and the LDAP filter query for them.
+   */
+  static class Batch {
+    private final List<String> uids;
+    private final String filter;
+
+    Batch(List<String> uids, String filter) {
+      this.uids = Collections.unmodifiableList(uids);
+      this.filter = filter;
+    }
+
+    /**
+     * @return the uids in this batch
+     */
+    public List<String> getUids() {
+      return uids;
+    }
+
+    /**
+     * @return the LDAP filter query for the uids in this batch
+     */
+    public String getFilter() {
+      return filter;
+    }
+
+    /**
+     * @return the number of uids in this batch
+     */
+    public int size() {
+      return uids.size();
+    }
+  }
+
+  private final Deque<String> pending;
+  private final int minBatchSize;
+  private final long targetLatencyMillis;
+  private final int maxFilterBytes;
+
+  private int maxBatchSize;
+  private int batchSize;
+
+  /**
+   * Constructs an AdaptiveBatcher.
+   *
+   * @param uids
+   *          the uids to divide into batches
+   * @param initialBatchSize
+   *          the number of uids to include in the first batch
+   * @param maxBatchSize
+   *          the largest number of uids to include in a batch
+   * @param maxFilterBytes
+   *          the largest size, in UTF-8 bytes, of a batch filter
+   * @param targetLatencyMillis
+   *          the number of milliseconds a batch query should take
+   */
+  public AdaptiveBatcher(Collection<String> uids, int initialBatchSize, int maxBatchSize, int maxFilterBytes,
+      long targetLatencyMillis) {
+    this.pending = new ArrayDeque<>(uids);
+    this.minBatchSize = 1;
+    this.maxBatchSize = Math.max(minBatchSize, maxBatchSize);
+    this.batchSize = Math.max(minBatchSize, Math.min(initialBatchSize, this.maxBatchSize));
+    this.maxFilterBytes = maxFilterBytes;
+    this.targetLatencyMillis = targetLatencyMillis;
+  }
+
+  /**
+   * Returns the next batch of uids, or null if all uids have been handed out.
+   * <p>
+   * The batch contains up to the current batch size number of uids, limited
+   * so that its filter does not exceed the byte budget. A batch always
+   * contains at least one uid.
+   *
+   * @return the next batch of uids, or null if all uids have been handed out.
+   */
+  public synchronized Batch nextBatch() {
+    if (pending.isEmpty()) {
+      return null;
+    }
+
+    List<String> uids = new ArrayList<>();
+    int filterBytes = Ldap.getQueryFilter(uids).getBytes(StandardCharsets.UTF_8).length;
+    while (!pending.isEmpty() && (uids.size() < batchSize)) {
+      int clauseBytes = Ldap.getUidClause(pending.peek()).getBytes(StandardCharsets.UTF_8).length;
+      if (!uids.isEmpty() && ((filterBytes + clauseBytes) > maxFilterBytes)) {
+        break;
+      }
+      uids.add(pending.pop());
+      filterBytes += clauseBytes;
+    }
+    return new Batch(uids, Ldap.getQueryFilter(uids));
+  }
+
+  /**
+   * Records that the given batch completed successfully in the given number of
+   * milliseconds, growing or shrinking the batch size accordingly.
+   *
+   * @param batch
+   *          the batch that completed
+   * @param latencyMillis
+   *          the number of milliseconds the batch query took
+   */
+  public synchronized void recordSuccess(Batch batch, long latencyMillis) {
+    if (latencyMillis > targetLatencyMillis) {
+      int newSize = Math.max(minBatchSize, Math.min(batchSize, batch.size()) / 2);
+      if (newSize < batchSize) {
+        log.debug("Batch of {} took {} ms. Reducing batch size to {}.", batch.size(), latencyMillis, newSize);
+        batchSize = newSize;
+      }
+    } else if ((latencyMillis * 2 < targetLatencyMillis) && (batch.size() >= batchSize)) {
+      // Only grow when a full-sized batch was comfortably fast
+      int newSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 4));
+      if (newSize > batchSize) {
+        log.debug("Batch of {} took {} ms. Increasing batch size to {}.", batch.size(), latencyMillis, newSize);
+        batchSize = newSize;
+      }
+    }
+  }
+
+  /**
+   * Records that the given batch exceeded the server's size limit. The batch
+   * size ceiling is lowered, and the batch's uids are queued again to be
+   * retrieved in smaller batches.
+   *
+   * @param batch
+   *          the batch that exceeded the size limit
+   * @return true if the uids were queued again, false if the batch could not
+   *         be made any smaller.
+   */
+  public synchronized boolean recordSizeLimitExceeded(Batch batch) {
+    if (batch.size() <= minBatchSize) {
+      return false;
+    }
+
+    maxBatchSize = Math.max(minBatchSize, batch.size() / 2);
+    batchSize = Math.min(batchSize, maxBatchSize);
+    log.debug("Batch of {} exceeded the server size limit. Limiting batch size to {}.", batch.size(),
+        maxBatchSize);
+
+    List<String> uids = batch.getUids();
+    for (int i = uids.size() - 1; i >= 0; i--) {
+      pending.push(uids.get(i));
+    }
+    return true;
+  }
+
+  /**
+   * @return the current batch size
+   */
+  public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return the number of uids not yet handed out in a batch
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+}
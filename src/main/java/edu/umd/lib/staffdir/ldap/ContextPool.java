@@ -0,0 +1,54 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.Closeable;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * A source of bound LDAP contexts, which are borrowed for a single operation
+ * and then handed back.
+ */
+interface ContextPool extends Closeable {
+  /**
+   * Returns a bound LdapContext, blocking if the pool's limit on contexts in
+   * use has been reached.
+   * <p>
+   * Every context returned by this method must be handed back using either
+   * "release" or "invalidate".
+   *
+   * @return a bound LdapContext
+   * @throws NamingException
+   *           if a new context cannot be created
+   */
+  LdapContext borrow() throws NamingException;
+
+  /**
+   * Returns the given context to the pool so that it can be reused.
+   *
+   * @param ctx
+   *          the LdapContext to return
+   */
+  void release(LdapContext ctx);
+
+  /**
+   * Discards the given context, typically because a communication error
+   * occurred while using it.
+   *
+   * @param ctx
+   *          the LdapContext to discard
+   */
+  void invalidate(LdapContext ctx);
+
+  /**
+   * @return the total number of contexts bound by this pool since it was
+   *         created.
+   */
+  int getContextsCreated();
+
+  /**
+   * Closes the connections held by the pool.
+   */
+  @Override
+  void close();
+}
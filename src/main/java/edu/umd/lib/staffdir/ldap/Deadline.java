@@ -0,0 +1,63 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation should be finished, used to bound the
+ * total time spent retrieving entries from LDAP.
+ * <p>
+ * This class is immutable, and so is thread-safe.
+ */
+class Deadline {
+  /**
+   * A Deadline that never expires.
+   */
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE, 0);
+
+  private final long expiresAtNanos;
+  private final long budgetMillis;
+
+  private Deadline(long expiresAtNanos, long budgetMillis) {
+    this.expiresAtNanos = expiresAtNanos;
+    this.budgetMillis = budgetMillis;
+  }
+
+  /**
+   * Returns a Deadline expiring the given number of milliseconds from now, or
+   * NONE if the given number of milliseconds is not positive.
+   *
+   * @param millis
+   *          the number of milliseconds from now the deadline expires, or 0
+   *          for no deadline
+   * @return a Deadline expiring the given number of milliseconds from now.
+   */
+  public static Deadline afterMillis(long millis) {
+    if (millis <= 0) {
+      return NONE;
+    }
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), millis);
+  }
+
+  /**
+   * @return true if this deadline has passed, false otherwise
+   */
+  public boolean isExpired() {
+    return (this != NONE) && (System.nanoTime() - expiresAtNanos >= 0);
+  }
+
+  /**
+   * @return the number of milliseconds until this deadline expires (0 if it
+   *         already has), or Long.MAX_VALUE if it never expires
+   */
+  public long getRemainingMillis() {
+    if (this == NONE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+  }
+
+  @Override
+  public String toString() {
+    return (this == NONE) ? "none" : budgetMillis + " ms";
+  }
+}
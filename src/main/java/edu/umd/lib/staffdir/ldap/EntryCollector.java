@@ -0,0 +1,298 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts LDAP search results into Maps of attribute values, keeping only the
+ * entries for the requested uids.
+ * <p>
+ * Each entry is passed to a consumer as soon as it has been converted, once
+ * per uid. The entries themselves are only kept if requested, so that callers
+ * streaming the results do not need to hold all of them in memory.
+ * <p>
+ * The latest "modifyTimestamp" of the collected entries is also tracked, for
+ * use as the starting point of the next incremental retrieval.
+ * <p>
+ * This class is thread-safe, so that a single collector can be shared by
+ * several concurrent searches.
+ */
+class EntryCollector {
+  public static final Logger log = LoggerFactory.getLogger(EntryCollector.class);
+
+  /**
+   * The operational attribute holding the time an entry was last modified.
+   */
+  public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+  private final Set<String> uids;
+  private final String[] attributes;
+  private final BiConsumer<String, Map<String, String>> consumer;
+  private final Map<String, Map<String, String>> results;
+  private final Set<String> collectedUids = ConcurrentHashMap.newKeySet();
+  private final Map<String, String> failures = new ConcurrentHashMap<>();
+  private String highWaterMark;
+  private boolean unusableTimestampLogged = false;
+
+  /**
+   * Constructs an EntryCollector.
+   *
+   * @param uids
+   *          the Set of uids to collect entries for
+   * @param attributes
+   *          the LDAP attributes to include in each converted entry
+   * @param consumer
+   *          called with the uid and converted entry the first time an entry
+   *          is collected for each uid
+   * @param retainEntries
+   *          true if the entries should be kept, to be returned by
+   *          {@link #getResults()}, false otherwise
+   */
+  public EntryCollector(Set<String> uids, String[] attributes, BiConsumer<String, Map<String, String>> consumer,
+      boolean retainEntries) {
+    this.uids = uids;
+    this.attributes = attributes;
+    this.consumer = consumer;
+    this.results = retainEntries ? new ConcurrentHashMap<>() : null;
+  }
+
+  /**
+   * Converts and collects the given search result attributes, if they are for
+   * one of the requested uids.
+   *
+   * @param attrs
+   *          the Attributes of a single search result
+   * @return true if the entry was collected, false otherwise.
+   */
+  public boolean add(Attributes attrs) {
+    try {
+      String uid = getAttrValue(attrs.get("uid"));
+      if ((uid == null) || !uids.contains(uid)) {
+        return false;
+      }
+
+      accept(uid, asMap(attrs));
+      updateHighWaterMark(getAttrValue(attrs.get(MODIFY_TIMESTAMP)));
+      return true;
+    } catch (NamingException ne) {
+      log.error("ERROR: Error processing LDAP parameters", ne);
+      return false;
+    }
+  }
+
+  /**
+   * Adds an already-converted entry, such as one from a previous retrieval.
+   *
+   * @param uid
+   *          the uid of the entry
+   * @param entry
+   *          the Map of LDAP attribute values for the entry
+   */
+  public void put(String uid, Map<String, String> entry) {
+    accept(uid, entry);
+  }
+
+  /**
+   * Returns true if an entry has been collected for the given uid, false
+   * otherwise.
+   *
+   * @param uid
+   *          the uid to check
+   * @return true if an entry has been collected for the given uid, false
+   *         otherwise.
+   */
+  public boolean contains(String uid) {
+    return collectedUids.contains(uid);
+  }
+
+  /**
+   * Records that the lookup of the given uids failed, so that their absence
+   * from the results is not mistaken for them not being in LDAP.
+   *
+   * @param uids
+   *          the uids whose lookup failed
+   * @param reason
+   *          a description of the error
+   */
+  public void markFailed(Collection<String> uids, String reason) {
+    for (String uid : uids) {
+      failures.put(uid, reason);
+    }
+  }
+
+  /**
+   * @return the Set of uids whose lookup failed, and which have not been
+   *         collected
+   */
+  public Set<String> getFailedUids() {
+    return getFailures().keySet();
+  }
+
+  /**
+   * @return a (sorted) Map of the uids whose lookup failed, and which have not
+   *         been collected, to a description of the error
+   */
+  public Map<String, String> getFailures() {
+    Map<String, String> failed = new TreeMap<>(failures);
+    failed.keySet().removeAll(collectedUids);
+    return failed;
+  }
+
+  /**
+   * @return the number of entries collected
+   */
+  public int size() {
+    return collectedUids.size();
+  }
+
+  /**
+   * @return the Set of uids that entries have been collected for
+   */
+  public Set<String> getCollectedUids() {
+    return collectedUids;
+  }
+
+  /**
+   * @return a Map, keyed by uid, of the entries collected, or an empty Map if
+   *         the entries are not being retained
+   */
+  public Map<String, Map<String, String>> getResults() {
+    return (results != null) ? results : Collections.emptyMap();
+  }
+
+  /**
+   * @return the latest "modifyTimestamp" of the entries collected, or null if
+   *         none of the entries had one.
+   */
+  public synchronized String getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Returns the later of the two given LDAP generalized time values, either of
+   * which may be null.
+   * <p>
+   * Fractional seconds are discarded, so the returned value may be slightly
+   * earlier than the actual time, which is safe when used as the lower bound
+   * of a "modifyTimestamp" search.
+   *
+   * @param time1
+   *          an LDAP generalized time value, or null
+   * @param time2
+   *          an LDAP generalized time value, or null
+   * @return the later of the two given values, or null if both are null.
+   */
+  protected static String latest(String time1, String time2) {
+    String normalized1 = normalize(time1);
+    String normalized2 = normalize(time2);
+    if (normalized1 == null) {
+      return normalized2;
+    }
+    if (normalized2 == null) {
+      return normalized1;
+    }
+    return (normalized1.compareTo(normalized2) >= 0) ? normalized1 : normalized2;
+  }
+
+  /**
+   * Returns the given LDAP generalized time truncated to whole seconds, in
+   * "yyyyMMddHHmmssZ" form, or null if the value is not in UTC.
+   *
+   * @param time
+   *          an LDAP generalized time value, or null
+   * @return the given time truncated to whole seconds, or null.
+   */
+  private static String normalize(String time) {
+    if ((time == null) || (time.length() < 15) || !time.endsWith("Z")) {
+      return null;
+    }
+    return time.substring(0, 14) + "Z";
+  }
+
+  /**
+   * Keeps the given entry (if entries are being retained), and passes it to
+   * the consumer if it is the first entry collected for the uid.
+   *
+   * @param uid
+   *          the uid of the entry
+   * @param entry
+   *          the Map of LDAP attribute values for the entry
+   */
+  private void accept(String uid, Map<String, String> entry) {
+    if (results != null) {
+      results.put(uid, entry);
+    }
+    if (collectedUids.add(uid)) {
+      consumer.accept(uid, entry);
+    }
+  }
+
+  /**
+   * Records the given "modifyTimestamp" value, if it is later than any seen so
+   * far.
+   *
+   * @param modifyTimestamp
+   *          the "modifyTimestamp" of a collected entry, or null
+   */
+  private synchronized void updateHighWaterMark(String modifyTimestamp) {
+    if ((modifyTimestamp != null) && (normalize(modifyTimestamp) == null) && !unusableTimestampLogged) {
+      log.warn("WARNING: Ignoring LDAP modifyTimestamp '{}', which is not a UTC (\"Z\") time. Entries with "
+          + "such timestamps cannot be retrieved incrementally.", modifyTimestamp);
+      unusableTimestampLogged = true;
+    }
+    highWaterMark = latest(highWaterMark, modifyTimestamp);
+  }
+
+  /**
+   * Converts the given Attributes into a Map, keyed by the LDAP attribute name,
+   * containing the LDAP attribute value.
+   *
+   * @param attrs
+   *          the Attributes to use in creating the person Map.
+   * @return a Map, keyed by the LDAP attribute name, containing the LDAP
+   *         attribute value.
+   * @throws NamingException
+   *           if a naming exception occurs when retrieving the values.
+   */
+  private Map<String, String> asMap(Attributes attrs) throws NamingException {
+    Map<String, String> result = new HashMap<>();
+    for (String key : attributes) {
+      result.put(key, getAttrValue(attrs.get(key)));
+    }
+    return result;
+  }
+
+  /**
+   * Returns a String representing the value of the given attribute.
+   *
+   * @param attr
+   *          the attribute to retrieve the value of
+   * @return a String representing the value of the given attribute.
+   * @throws NamingException
+   *           if a naming exception occurs when retrieving the values.
+   */
+  private static String getAttrValue(Attribute attr) throws NamingException {
+    if (attr == null) {
+      return null;
+    }
+
+    Object obj = attr.get();
+    if (obj == null) {
+      return null;
+    }
+    return obj.toString();
+  }
+}
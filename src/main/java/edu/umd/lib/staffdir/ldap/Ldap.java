@@ -1,22 +1,49 @@
 package edu.umd.lib.staffdir.ldap;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.Name;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.InvalidAttributeValueException;
+import javax.naming.directory.InvalidAttributesException;
+import javax.naming.directory.InvalidSearchFilterException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 
 import org.slf4j.Logger;
@@ -33,14 +60,81 @@ public class Ldap {
   private String bindDn;
   private String credentials;
   private String searchBaseDn;
+  private int parallelism = 1;
+  private int pipelineDepth = 0;
+  private int pipelineConnections = 1;
+  private int sweepThreshold = Integer.MAX_VALUE;
+  private String sweepFilter = "(uid=*)";
+  private int pageSize = 500;
+  private int batchSize = 50;
+  private int maxBatchSize = 500;
+  private int maxFilterBytes = 16384;
+  private long batchTargetMillis = 2000;
+  private String batchSizeFile;
+  private String snapshotFile;
+  private long fullRefreshIntervalHours = 168;
+  private boolean forceFullRefresh = false;
+  private String cacheFile;
+  private String captureFile;
+  private String replayFile;
+  private long cacheTtlMinutes = 240;
+  private long negativeCacheTtlMinutes = 30;
+  private long replicaCooldownMillis = ReplicaSet.DEFAULT_COOLDOWN_MILLIS;
+  private int maxRetries = 3;
+  private long retryBackoffMillis = 500;
+  private long connectTimeoutMillis = 10_000;
+  private long readTimeoutMillis = 60_000;
+  private long deadlineSeconds = 900;
+  private long slowBatchMillis = 5000;
 
-  // Specifies the LDAP attributes to return
-  private static final String[] LDAP_ATTRIBUTES = {
+  // The longest time to wait before retrying a failed batch query
+  private static final long MAX_RETRY_BACKOFF_MILLIS = 30_000;
+
+  // How much earlier than the full refresh interval a full retrieval is
+  // performed, so that a run scheduled at the same time each day is not
+  // skipped because the previous full retrieval started a little later
+  private static final long FULL_REFRESH_TOLERANCE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // The reason recorded for uids not looked up before the deadline
+  private static final String DEADLINE_EXCEEDED = "Deadline exceeded";
+
+  // The reason recorded for uids not looked up because LDAP could not be
+  // reached, or null while it can be
+  private volatile String unavailable;
+
+  // The uids whose lookup failed in the last retrieval, and why
+  private Map<String, String> failures = Collections.emptyMap();
+
+  // The time by which the current retrieval must finish
+  private Deadline deadline = Deadline.NONE;
+
+  // The measurements of the searches in the last retrieval
+  private LdapMetrics metrics = new LdapMetrics(0);
+
+  // The LDAP attributes returned, unless others are specified
+  private static final String[] DEFAULT_ATTRIBUTES = {
       "uid", "sn", "givenName", "telephoneNumber", "mail",
       "umOfficialTitle", "umDisplayTitle", "umPrimaryCampusRoom", "umPrimaryCampusBuilding",
       "umCatStatus", "umOptionalTitle"
   };
 
+  // Specifies the LDAP attributes to return
+  private String[] attributes = DEFAULT_ATTRIBUTES;
+
+  /**
+   * The successful attempt of a search: the replica that answered it, and
+   * how long that attempt took, excluding any failed attempts before it.
+   */
+  private static class SearchAttempt {
+    private final ReplicaSet.Replica replica;
+    private final long millis;
+
+    SearchAttempt(ReplicaSet.Replica replica, long millis) {
+      this.replica = replica;
+      this.millis = millis;
+    }
+  }
+
   public Ldap(String ldapUrl, String authentication, String bindDn, String credentials,
       String searchBaseDn) {
     this.ldapUrl = ldapUrl;
@@ -50,6 +144,347 @@ public class Ldap {
     this.searchBaseDn = searchBaseDn;
   }
 
+  /**
+   * Sets the LDAP attributes to retrieve for each person. The "uid" attribute
+   * is always retrieved. Defaults to the attributes used by the standard
+   * output document mappings.
+   *
+   * @param attributes
+   *          the LDAP attributes to retrieve
+   */
+  public void setAttributes(Collection<String> attributes) {
+    Set<String> uniqueAttributes = new LinkedHashSet<>();
+    uniqueAttributes.add("uid");
+    uniqueAttributes.addAll(attributes);
+    this.attributes = uniqueAttributes.toArray(new String[0]);
+  }
+
+  /**
+   * Sets the maximum number of batch queries to perform concurrently. Each
+   * concurrent query uses its own bound connection. Defaults to 1 (sequential
+   * queries).
+   *
+   * @param parallelism
+   *          the maximum number of batch queries to perform concurrently
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1.");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Sets the number of batch queries to keep outstanding at once by pipelining
+   * them over a small number of shared connections (see
+   * "setPipelineConnections"), instead of opening a connection for each
+   * concurrent query. When greater than 1, this takes the place of the
+   * "parallelism" setting. Defaults to 0 (no pipelining).
+   *
+   * @param pipelineDepth
+   *          the number of batch queries to keep outstanding at once
+   */
+  public void setPipelineDepth(int pipelineDepth) {
+    this.pipelineDepth = pipelineDepth;
+  }
+
+  /**
+   * Sets the number of connections to each LDAP server that pipelined batch
+   * queries are shared across. Defaults to 1.
+   *
+   * @param pipelineConnections
+   *          the number of connections to share pipelined queries across
+   */
+  public void setPipelineConnections(int pipelineConnections) {
+    if (pipelineConnections < 1) {
+      throw new IllegalArgumentException("pipelineConnections must be at least 1.");
+    }
+    this.pipelineConnections = pipelineConnections;
+  }
+
+  /**
+   * Sets the number of requested uids at or above which a single paged search
+   * over the search base (a "sweep") is used instead of batches of uid
+   * queries. Defaults to Integer.MAX_VALUE (sweeps are never used).
+   *
+   * @param sweepThreshold
+   *          the number of uids at or above which a sweep is used
+   */
+  public void setSweepThreshold(int sweepThreshold) {
+    this.sweepThreshold = sweepThreshold;
+  }
+
+  /**
+   * Sets the server-side LDAP filter used to restrict the entries returned by
+   * a sweep. Defaults to "(uid=*)".
+   *
+   * @param sweepFilter
+   *          the LDAP filter used by a sweep
+   */
+  public void setSweepFilter(String sweepFilter) {
+    this.sweepFilter = sweepFilter;
+  }
+
+  /**
+   * Sets the number of entries requested in each page of a sweep. Defaults to
+   * 500.
+   *
+   * @param pageSize
+   *          the number of entries requested in each page of a sweep
+   */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1.");
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Sets the number of uids to include in the first batch query. Defaults to
+   * 50.
+   * <p>
+   * The batch size is adjusted as queries complete, based on how long they
+   * take and whether the server size limit is exceeded.
+   *
+   * @param batchSize
+   *          the number of uids to include in the first batch query
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1.");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the largest number of uids to include in a batch query. Defaults to
+   * 500.
+   *
+   * @param maxBatchSize
+   *          the largest number of uids to include in a batch query
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be at least 1.");
+    }
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Sets the largest size, in bytes, of a batch query filter. Defaults to
+   * 16384.
+   *
+   * @param maxFilterBytes
+   *          the largest size, in bytes, of a batch query filter
+   */
+  public void setMaxFilterBytes(int maxFilterBytes) {
+    this.maxFilterBytes = maxFilterBytes;
+  }
+
+  /**
+   * Sets the number of milliseconds a batch query should take. Batches are
+   * made smaller when queries take longer than this, and larger when queries
+   * take less than half this time. Defaults to 2000.
+   *
+   * @param batchTargetMillis
+   *          the number of milliseconds a batch query should take
+   */
+  public void setBatchTargetMillis(long batchTargetMillis) {
+    this.batchTargetMillis = batchTargetMillis;
+  }
+
+  /**
+   * Sets the file used to record the batch size chosen for each LDAP server,
+   * keyed by the URL of the server, so that the next run against it can
+   * start from it. Defaults to null (the batch size is not recorded).
+   *
+   * @param batchSizeFile
+   *          the path of the file used to record batch sizes
+   */
+  public void setBatchSizeFile(String batchSizeFile) {
+    this.batchSizeFile = batchSizeFile;
+  }
+
+  /**
+   * Sets the file used to store the entries from the last retrieval. When set,
+   * subsequent retrievals only request the entries modified since then.
+   * Defaults to null (every retrieval is a full retrieval).
+   *
+   * @param snapshotFile
+   *          the path of the file used to store the last retrieval
+   */
+  public void setSnapshotFile(String snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
+
+  /**
+   * Sets the number of hours after which a full retrieval is performed, even
+   * if a snapshot is available. The interval is measured from the start of
+   * the previous full retrieval, and a full retrieval is also performed when
+   * less than an hour of the interval remains, so that runs scheduled
+   * at the same time each day perform a full retrieval at the configured
+   * interval. Defaults to 168 (one week).
+   *
+   * @param fullRefreshIntervalHours
+   *          the number of hours between full retrievals
+   */
+  public void setFullRefreshIntervalHours(long fullRefreshIntervalHours) {
+    this.fullRefreshIntervalHours = fullRefreshIntervalHours;
+  }
+
+  /**
+   * Sets whether the next retrieval should be a full retrieval, regardless of
+   * any snapshot. Defaults to false.
+   *
+   * @param forceFullRefresh
+   *          true to perform a full retrieval, false otherwise
+   */
+  public void setForceFullRefresh(boolean forceFullRefresh) {
+    this.forceFullRefresh = forceFullRefresh;
+  }
+
+  /**
+   * Sets the number of milliseconds that an LDAP server that has failed is
+   * avoided, when more than one LDAP URL is configured. Defaults to 60000.
+   *
+   * @param replicaCooldownMillis
+   *          the number of milliseconds a failed LDAP server is avoided
+   */
+  public void setReplicaCooldownMillis(long replicaCooldownMillis) {
+    this.replicaCooldownMillis = replicaCooldownMillis;
+  }
+
+  /**
+   * Sets the number of times a failed batch query is retried before the batch
+   * is split up to isolate the uids causing the failure, or, if the LDAP
+   * servers cannot be reached, the retrieval is abandoned. Defaults to 3.
+   *
+   * @param maxRetries
+   *          the number of times a failed batch query is retried
+   */
+  public void setMaxRetries(int maxRetries) {
+    if (maxRetries < 0) {
+      throw new IllegalArgumentException("maxRetries must not be negative.");
+    }
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait before the first retry of a failed
+   * batch query. The wait doubles with each subsequent retry, up to 30
+   * seconds. Defaults to 500.
+   *
+   * @param retryBackoffMillis
+   *          the number of milliseconds to wait before the first retry
+   */
+  public void setRetryBackoffMillis(long retryBackoffMillis) {
+    this.retryBackoffMillis = retryBackoffMillis;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait for a connection to an LDAP server
+   * to be established, or 0 to wait indefinitely. Defaults to 10000.
+   *
+   * @param connectTimeoutMillis
+   *          the number of milliseconds to wait for a connection
+   */
+  public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait for each response from an LDAP
+   * server, or 0 to wait indefinitely. Defaults to 60000.
+   *
+   * @param readTimeoutMillis
+   *          the number of milliseconds to wait for each response
+   */
+  public void setReadTimeoutMillis(long readTimeoutMillis) {
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Sets the number of seconds a call to "getUsers" may spend retrieving
+   * entries, or 0 for no limit. Once the deadline has passed, no further
+   * searches or retries are started, and the uids not yet retrieved are
+   * reported as failures. A search already in progress at the deadline may
+   * take up to the read timeout to finish. Defaults to 900 (15 minutes).
+   *
+   * @param deadlineSeconds
+   *          the number of seconds a call to "getUsers" may take
+   */
+  public void setDeadlineSeconds(long deadlineSeconds) {
+    this.deadlineSeconds = deadlineSeconds;
+  }
+
+  /**
+   * Sets the number of milliseconds above which a batch query is logged as
+   * slow, or 0 to not log slow batches. Defaults to 5000.
+   *
+   * @param slowBatchMillis
+   *          the number of milliseconds above which a batch query is slow
+   */
+  public void setSlowBatchMillis(long slowBatchMillis) {
+    this.slowBatchMillis = slowBatchMillis;
+  }
+
+  /**
+   * Sets the file used to cache entries between runs. When set, entries that
+   * were retrieved within the cache time-to-live are served from the cache
+   * instead of LDAP. Defaults to null (no cache).
+   *
+   * @param cacheFile
+   *          the path of the cache file
+   */
+  public void setCacheFile(String cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Sets the number of minutes a cached entry remains valid. Defaults to 240.
+   *
+   * @param cacheTtlMinutes
+   *          the number of minutes a cached entry remains valid
+   */
+  public void setCacheTtlMinutes(long cacheTtlMinutes) {
+    this.cacheTtlMinutes = cacheTtlMinutes;
+  }
+
+  /**
+   * Sets the number of minutes that a uid not found in LDAP is remembered as
+   * not found. Defaults to 30.
+   *
+   * @param negativeCacheTtlMinutes
+   *          the number of minutes a "not found" uid is remembered
+   */
+  public void setNegativeCacheTtlMinutes(long negativeCacheTtlMinutes) {
+    this.negativeCacheTtlMinutes = negativeCacheTtlMinutes;
+  }
+
+  /**
+   * Sets the file to capture the entries (and failures) of each retrieval to,
+   * so that it can later be replayed (see "setReplayFile"). Defaults to null
+   * (no capture).
+   *
+   * @param captureFile
+   *          the path of the capture file
+   */
+  public void setCaptureFile(String captureFile) {
+    this.captureFile = captureFile;
+  }
+
+  /**
+   * Sets the capture file (see "setCaptureFile") to return entries from,
+   * instead of retrieving them from LDAP. No LDAP connections are made, and
+   * the snapshot and cache files are not used. Defaults to null (no replay).
+   *
+   * @param replayFile
+   *          the path of the capture file to replay
+   */
+  public void setReplayFile(String replayFile) {
+    this.replayFile = replayFile;
+  }
+
   /**
    * Returns a list of Strings, which represent LDAP filter queries for multiple
    * uids.
@@ -72,28 +507,54 @@ public class Ldap {
     }
 
     Iterator<String> uidIter = uids.iterator();
-    int currentSize = 0;
-
     while (uidIter.hasNext()) {
-      StringBuilder sb = new StringBuilder("(|");
-      while (uidIter.hasNext() && (currentSize < batchSize)) {
-        String uid = uidIter.next();
-        sb.append("(uid=" + uid + ")");
-        currentSize++;
+      List<String> batch = new ArrayList<>();
+      while (uidIter.hasNext() && (batch.size() < batchSize)) {
+        batch.add(uidIter.next());
       }
-      sb.append(")");
-      queryBatches.add(sb.toString());
-      currentSize = 0;
+      queryBatches.add(getQueryFilter(batch));
     }
     return queryBatches;
   }
 
+  /**
+   * Returns an LDAP filter query matching any of the given uids.
+   *
+   * @param uids
+   *          the uids to query
+   * @return an LDAP filter query matching any of the given uids.
+   */
+  protected static String getQueryFilter(Collection<String> uids) {
+    StringBuilder sb = new StringBuilder("(|");
+    for (String uid : uids) {
+      sb.append(getUidClause(uid));
+    }
+    sb.append(")");
+    return sb.toString();
+  }
+
+  /**
+   * Returns the LDAP filter clause matching the given uid.
+   *
+   * @param uid
+   *          the uid to query
+   * @return the LDAP filter clause matching the given uid.
+   */
+  protected static String getUidClause(String uid) {
+    return "(uid=" + uid + ")";
+  }
+
   /**
    * Returns a Map, keyed by uid, where each value is a Map containing the LDAP
    * attributes for that person (keyed by LDAP attribute).
    * <p>
    * Note: If a uid is not found in LDAP, the returned Map will not contain an
    * entry for that person.
+   * <p>
+   * If a snapshot file has been configured, and a full refresh is not due,
+   * only the entries modified since the last retrieval (and the entries for
+   * uids not in the snapshot) are requested from LDAP. The remaining entries
+   * are taken from the snapshot, unless they are no longer in LDAP.
    *
    * @param uids
    *          the Set of LDAP uids to query
@@ -101,142 +562,1110 @@ public class Ldap {
    *         attributes for that person (keyed by LDAP attribute).
    */
   public Map<String, Map<String, String>> getUsers(Set<String> uids) {
-    Map<String, Map<String, String>> results = new HashMap<>();
-    Hashtable<String, Object> env = createLdapContext();
-    int batchSize = 50;
-    List<String> queryBatches = getQueryBatches(uids, batchSize);
-    for (String uidBatchQuery : queryBatches) {
-      List<SearchResult> searchResults = performSearch(env, this.searchBaseDn, uidBatchQuery);
-      for (SearchResult searchResult : searchResults) {
-        Map<String, String> m = asMap(searchResult);
-        String uid = m.get("uid");
-        results.put(uid, m);
-      }
-    }
+    Map<String, Map<String, String>> results = new ConcurrentHashMap<>();
+    getUsers(uids, results::put);
     return results;
   }
 
   /**
-   * Returns a Hashtable representing the LDAP environment context
+   * Retrieves the LDAP entries for the given uids, passing each one to the
+   * given consumer as soon as it has been received and converted, instead of
+   * collecting them all into a Map first.
+   * <p>
+   * The consumer is called at most once per uid, and is not called for uids
+   * that are not found in LDAP. When more than one search runs concurrently,
+   * the consumer is called from several threads, so it must be thread-safe.
    *
-   * @param ldapUrl
-   *          the LDAP URL
-   * @param authentication
-   *          the LDAP authentication mechanism
-   * @param bindDn
-   *          the DN to use for authentication
-   * @param credentials
-   *          the password associated with the bind DN
-   * @return a Hashtable representing the LDAP environment context
+   * @param uids
+   *          the Set of LDAP uids to query
+   * @param consumer
+   *          called with the uid and a Map containing the LDAP attributes for
+   *          that person (keyed by LDAP attribute)
    */
-  private Hashtable<String, Object> createLdapContext() {
-    // Set up the environment for creating the initial context
-    Hashtable<String, Object> env = new Hashtable<String, Object>(11);
-    env.put(Context.INITIAL_CONTEXT_FACTORY,
-        "com.sun.jndi.ldap.LdapCtxFactory");
-    env.put(Context.PROVIDER_URL, this.ldapUrl);
-    env.put(Context.SECURITY_AUTHENTICATION, this.authentication);
-    env.put(Context.SECURITY_PRINCIPAL, this.bindDn);
-    env.put(Context.SECURITY_CREDENTIALS, this.credentials);
-    return env;
+  public void getUsers(Set<String> uids, BiConsumer<String, Map<String, String>> consumer) {
+    this.failures = Collections.emptyMap();
+    this.deadline = Deadline.afterMillis(TimeUnit.SECONDS.toMillis(this.deadlineSeconds));
+    this.unavailable = null;
+    this.metrics = new LdapMetrics(this.slowBatchMillis);
+    if ((uids == null) || uids.isEmpty()) {
+      return;
+    }
+    if (this.replayFile != null) {
+      replayUsers(uids, consumer);
+      return;
+    }
+
+    // The entries only need to be held once the search is complete if they
+    // are being written to the snapshot, cache, or capture file
+    boolean retainEntries = (this.snapshotFile != null) || (this.cacheFile != null) || (this.captureFile != null);
+    EntryCollector collector = new EntryCollector(uids, this.attributes, consumer, retainEntries);
+    long startMillis = System.currentTimeMillis();
+    LdapCache cache = loadCache();
+    Set<String> cachedUids = new HashSet<>();
+    Set<String> uncachedUids = uids;
+    if ((cache != null) && !this.forceFullRefresh) {
+      uncachedUids = new LinkedHashSet<>();
+      for (String uid : uids) {
+        LdapCache.CacheEntry cacheEntry = cache.get(uid, startMillis);
+        if (cacheEntry == null) {
+          uncachedUids.add(uid);
+          continue;
+        }
+        cachedUids.add(uid);
+        if (!cacheEntry.isNegative()) {
+          collector.put(uid, cacheEntry.entry);
+        }
+      }
+    }
+
+    LdapSnapshot snapshot = loadSnapshot();
+    boolean fullRefresh = (snapshot == null);
+    if (!uncachedUids.isEmpty()) {
+      // Bind once per thread, and reuse the connections for every query
+      try (ReplicaSet replicas = new ReplicaSet(getLdapUrls(), this::createContextPool,
+          this.replicaCooldownMillis)) {
+        replicas.probe();
+        if (fullRefresh) {
+          fetchUsers(replicas, uncachedUids, collector);
+        } else {
+          fullRefresh = !fetchChangedUsers(replicas, uncachedUids, snapshot, collector);
+        }
+        log.debug("Retrieved {} LDAP entries using {} bound context(s).", collector.size() - cachedUids.size(),
+            replicas.getContextsCreated());
+        if (replicas.size() > 1) {
+          replicas.logStatistics();
+        }
+        this.metrics.logSummary();
+      }
+    }
+
+    saveSnapshot(snapshot, collector, fullRefresh, cachedUids, startMillis);
+    if (cache != null) {
+      saveCache(cache, uncachedUids, collector, startMillis);
+      log.info("LDAP cache: {}", cache.getStatistics());
+    }
+
+    this.failures = collector.getFailures();
+    if (this.captureFile != null) {
+      captureUsers(collector);
+    }
+    if (!this.failures.isEmpty()) {
+      log.error("ERROR: Unable to retrieve the LDAP entries for {} uid(s):", this.failures.size());
+      for (Map.Entry<String, String> failure : this.failures.entrySet()) {
+        log.error("ERROR:   {}: {}", failure.getKey(), failure.getValue());
+      }
+    }
+    if (this.failures.containsValue(DEADLINE_EXCEEDED)) {
+      int notRetrieved = Collections.frequency(this.failures.values(), DEADLINE_EXCEEDED);
+      log.error("ERROR: LDAP retrieval deadline of {} exceeded. {} of {} uid(s) were not looked up.",
+          this.deadline, notRetrieved, uids.size());
+    }
   }
 
   /**
-   * Performs the LDAP search, returning a (possible empty) List of
-   * SearchResults.
+   * Writes the entries and failures of the retrieval to the capture file.
    *
-   * @param env
-   *          the Hashtable representing the LDAP environment context
-   * @param searchBaseDn
-   *          the base DN at which to start the search.
-   * @param uid
-   *          the uid for the user to return
-   * @return a (posssibly empty) List of SearchResults for the given uidQuery.
+   * @param collector
+   *          the EntryCollector holding the retrieved entries
    */
-  private static List<SearchResult> performSearch(Hashtable<String, Object> env, String searchBaseDn, String uidQuery) {
-    List<SearchResult> searchResults = new ArrayList<>();
+  private void captureUsers(EntryCollector collector) {
+    LdapCapture capture = new LdapCapture();
+    capture.attributes = Arrays.asList(this.attributes);
+    capture.entries.putAll(collector.getResults());
+    capture.failures.putAll(this.failures);
+    try {
+      capture.write(new File(this.captureFile));
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write LDAP capture '{}'", this.captureFile, ioe);
+    }
+  }
 
+  /**
+   * Passes the captured entries for the given uids from the replay file to
+   * the given consumer, and sets the failures to the captured failures of
+   * those uids.
+   *
+   * @param uids
+   *          the Set of LDAP uids to query
+   * @param consumer
+   *          called with the uid and a Map containing the LDAP attributes for
+   *          that person (keyed by LDAP attribute)
+   */
+  private void replayUsers(Set<String> uids, BiConsumer<String, Map<String, String>> consumer) {
+    LdapCapture capture;
     try {
-      // Create the initial context
-      InitialLdapContext ctx = new InitialLdapContext(env, null);
+      capture = LdapCapture.read(new File(this.replayFile));
+    } catch (IOException ioe) {
+      log.error("ERROR: Unable to read LDAP capture '{}'", this.replayFile, ioe);
+      return;
+    }
+    if (!capture.attributes.equals(Arrays.asList(this.attributes))) {
+      log.warn("WARNING: LDAP capture '{}' was retrieved with different attributes: {}", this.replayFile,
+          capture.attributes);
+    }
 
-      Name name = new LdapName(searchBaseDn);
-      SearchControls searchControls = new SearchControls();
-      searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-      String[] returningAttributes = LDAP_ATTRIBUTES;
-      searchControls.setReturningAttributes(returningAttributes);
+    Map<String, String> replayedFailures = new TreeMap<>();
+    int replayed = 0;
+    for (String uid : uids) {
+      Map<String, String> entry = capture.entries.get(uid);
+      if (entry != null) {
+        consumer.accept(uid, entry);
+        replayed++;
+      } else if (capture.failures.containsKey(uid)) {
+        replayedFailures.put(uid, capture.failures.get(uid));
+      }
+    }
+    this.failures = replayedFailures;
+    log.info("Replayed {} LDAP entries from '{}'", replayed, this.replayFile);
+  }
 
-      // Perform lookup and cast to target type
-      String query = uidQuery;
-      NamingEnumeration<SearchResult> results = ctx.search(name, query, searchControls);
-      while ((results != null) && results.hasMore()) {
-        SearchResult sr = results.next();
-        searchResults.add(sr);
+  /**
+   * Returns the uids whose lookup failed during the most recent call to
+   * "getUsers", even after retrying, mapped to a description of the error.
+   * These uids are missing from the results because of an error, not because
+   * they are not in LDAP.
+   *
+   * @return a (sorted) Map of the uids whose lookup failed, to a description
+   *         of the error.
+   */
+  public Map<String, String> getFailures() {
+    return this.failures;
+  }
+
+  /**
+   * @return the timing and volume measurements of the LDAP searches performed
+   *         by the most recent call to "getUsers"
+   */
+  public LdapMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Retrieves the entries for the given uids from LDAP, using either a paged
+   * sweep or batch queries depending on the number of uids.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param uids
+   *          the Set of LDAP uids to query
+   * @param collector
+   *          the EntryCollector to add entries to
+   */
+  private void fetchUsers(ReplicaSet replicas, Set<String> uids, EntryCollector collector) {
+    if (uids.isEmpty()) {
+      return;
+    }
+
+    Set<String> remainingUids = uids;
+    if (uids.size() >= this.sweepThreshold) {
+      if (sweepUsers(replicas, uids, this.sweepFilter, collector)) {
+        return;
       }
+      // Fall back to batch queries for anything the sweep did not return
+      remainingUids = new HashSet<>(uids);
+      remainingUids.removeAll(collector.getCollectedUids());
+    }
+
+    // Start from the batch size recorded for the server expected to answer
+    // the searches
+    String preferredUrl = replicas.select(Collections.emptySet()).getUrl();
+    AdaptiveBatcher batcher = new AdaptiveBatcher(remainingUids, loadBatchSize(preferredUrl), this.maxBatchSize,
+        this.maxFilterBytes, this.batchTargetMillis);
+    Map<String, Integer> batchSizes = new ConcurrentHashMap<>();
+    int estimatedBatches = (remainingUids.size() + batcher.getBatchSize() - 1) / batcher.getBatchSize();
+    int concurrency = (this.pipelineDepth > 1) ? this.pipelineDepth : this.parallelism;
+    int numThreads = Math.min(concurrency, estimatedBatches);
+    if (numThreads <= 1) {
+      searchBatches(replicas, batcher, collector, batchSizes);
+    } else {
+      searchBatchesConcurrently(replicas, batcher, numThreads, collector, batchSizes);
+    }
+    saveBatchSizes(batchSizes);
+    log.debug("Final LDAP batch size: {}", batcher.getBatchSize());
+  }
+
+  /**
+   * Retrieves only the entries modified since the given snapshot was taken,
+   * and the entries for uids that are not in the snapshot. All other entries
+   * are copied from the snapshot, if they are still in LDAP.
+   * <p>
+   * A "modifyTimestamp" search does not return deleted entries (or entries
+   * moved out of the search base), so the uids of the entries still present
+   * are listed using a paged search returning only the "uid" attribute, and
+   * snapshot entries that are missing from it are dropped.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param uids
+   *          the Set of LDAP uids to query
+   * @param snapshot
+   *          the LdapSnapshot from the previous retrieval
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @return true if the incremental retrieval succeeded, false if a full
+   *         retrieval was performed instead.
+   */
+  private boolean fetchChangedUsers(ReplicaSet replicas, Set<String> uids, LdapSnapshot snapshot,
+      EntryCollector collector) {
+    String changedFilter = String.format("(&%s(%s>=%s))",
+        this.sweepFilter, EntryCollector.MODIFY_TIMESTAMP, snapshot.highWaterMark);
+    if (!sweepUsers(replicas, uids, changedFilter, collector)) {
+      log.warn("WARNING: Unable to retrieve modified LDAP entries. Performing a full retrieval.");
+      fetchUsers(replicas, uids, collector);
+      return false;
+    }
+    log.info("Retrieved {} LDAP entries modified since {}", collector.size(), snapshot.highWaterMark);
+
+    EntryCollector presentUids = new EntryCollector(uids, new String[] { "uid" }, (uid, entry) -> {
+    }, false);
+    if (!sweepUsers(replicas, uids, this.sweepFilter, new String[] { "uid" }, presentUids)) {
+      log.warn("WARNING: Unable to list the uids in LDAP to detect deleted entries. Performing a full retrieval.");
+      fetchUsers(replicas, uids, collector);
+      return false;
+    }
 
-      // Close the context when we're done
-      ctx.close();
+    Set<String> newUids = new HashSet<>();
+    for (String uid : uids) {
+      if (!collector.contains(uid) && !snapshot.entries.containsKey(uid)) {
+        newUids.add(uid);
+      }
+    }
+    log.info("Retrieving {} LDAP entries not in the snapshot", newUids.size());
+    fetchUsers(replicas, newUids, collector);
+
+    int deleted = 0;
+    for (String uid : uids) {
+      if (!collector.contains(uid) && snapshot.entries.containsKey(uid)) {
+        if (presentUids.contains(uid)) {
+          collector.put(uid, snapshot.entries.get(uid));
+        } else {
+          deleted++;
+        }
+      }
+    }
+    if (deleted > 0) {
+      log.info("Dropped {} LDAP entries from the snapshot that are no longer in LDAP", deleted);
+    }
+    return true;
+  }
+
+  /**
+   * Retrieves all the entries matching the given filter using a paged search,
+   * adding the entries for the requested uids to the given collector.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param uids
+   *          the Set of LDAP uids requested
+   * @param filter
+   *          the LDAP filter query to perform
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @return true if the sweep completed, false if it failed.
+   */
+  private boolean sweepUsers(ReplicaSet replicas, Set<String> uids, String filter, EntryCollector collector) {
+    return sweepUsers(replicas, uids, filter, getReturningAttributes(), collector);
+  }
+
+  /**
+   * Retrieves the given attributes of all the entries matching the given
+   * filter using a paged search, adding the entries for the requested uids to
+   * the given collector.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param uids
+   *          the Set of LDAP uids requested
+   * @param filter
+   *          the LDAP filter query to perform
+   * @param returningAttributes
+   *          the LDAP attributes to return
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @return true if the sweep completed, false if it failed.
+   */
+  private boolean sweepUsers(ReplicaSet replicas, Set<String> uids, String filter, String[] returningAttributes,
+      EntryCollector collector) {
+    PagedSweep sweep = new PagedSweep(this.searchBaseDn, filter, this.pageSize, returningAttributes,
+        this.deadline);
+    ReplicaSet.Replica replica = replicas.select(Collections.emptySet());
+    ContextPool pool = replica.getPool();
+    LdapMetrics.BatchStats stats = new LdapMetrics.BatchStats("paged sweep on " + replica, uids.size());
+    LdapContext ctx = null;
+    long start = System.nanoTime();
+    try {
+      ctx = pool.borrow();
+      stats.addConnectTime(System.nanoTime() - start);
+      long searchStart = System.nanoTime();
+      int pages = sweep.search(ctx, searchResult -> {
+        stats.addEntry(searchResult);
+        collector.add(searchResult.getAttributes());
+      });
+      stats.addSearchTime(System.nanoTime() - searchStart);
+      log.debug("Paged LDAP sweep collected {} of {} uids in {} page(s).", collector.size(), uids.size(), pages);
+      replicas.recordSuccess(replica, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / pages);
+      return true;
     } catch (NamingException e) {
-      log.error("ERROR: Lookup failed.", e);
+      log.warn("WARNING: Paged LDAP sweep on {} failed.", replica, e);
+      if (isConnectionFailure(e)) {
+        replicas.recordFailure(replica);
+      }
+      if (ctx != null) {
+        pool.invalidate(ctx);
+        ctx = null;
+      }
+      return false;
+    } finally {
+      if (ctx != null) {
+        pool.release(ctx);
+      }
+      this.metrics.record(stats);
     }
-    return searchResults;
   }
 
   /**
-   * Converts the given SearchResult into a Map, keyed by the LDAP attribute
-   * name, containing the LDAP attribute value.
+   * Returns the snapshot from the previous retrieval, or null if a full
+   * retrieval should be performed, because there is no usable snapshot, a
+   * full refresh was requested, or the full refresh interval has elapsed.
    *
-   * @param searchResults
-   *          the List of SearchResults to convert
-   * @return a Map, keyed by the LDAP attribute name, containing the LDAP
-   *         attribute value.
+   * @return the snapshot from the previous retrieval, or null if a full
+   *         retrieval should be performed.
    */
-  private static Map<String, String> asMap(SearchResult searchResult) {
-    return asMap(searchResult.getAttributes());
+  private LdapSnapshot loadSnapshot() {
+    if ((this.snapshotFile == null) || this.forceFullRefresh) {
+      return null;
+    }
+
+    File file = new File(this.snapshotFile);
+    if (!file.exists()) {
+      log.info("No LDAP snapshot at '{}'. Performing a full retrieval.", this.snapshotFile);
+      return null;
+    }
+
+    try {
+      LdapSnapshot snapshot = LdapSnapshot.read(file);
+      long ageMillis = System.currentTimeMillis() - snapshot.lastFullRefreshMillis;
+      if (ageMillis + FULL_REFRESH_TOLERANCE_MILLIS >= TimeUnit.HOURS.toMillis(this.fullRefreshIntervalHours)) {
+        log.info("Last full LDAP retrieval was {} hours ago. Performing a full retrieval.",
+            TimeUnit.MILLISECONDS.toHours(ageMillis));
+        return null;
+      }
+      if (snapshot.highWaterMark == null) {
+        log.warn("WARNING: LDAP snapshot at '{}' has no usable modifyTimestamp, as none of its entries had "
+            + "a UTC (\"Z\") timestamp. Performing a full retrieval.", this.snapshotFile);
+        return null;
+      }
+      if (!snapshot.attributes.equals(Arrays.asList(this.attributes))) {
+        log.info("LDAP snapshot at '{}' is not usable. Performing a full retrieval.", this.snapshotFile);
+        return null;
+      }
+      return snapshot;
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to read LDAP snapshot '{}'. Performing a full retrieval.", this.snapshotFile, ioe);
+      return null;
+    }
   }
 
   /**
-   * Converts the given Attributes into a Map, keyed by the LDAP attribute name,
-   * containing the LDAP attribute value.
+   * Stores the collected entries as the snapshot for the next retrieval.
    *
-   * @param attrs
-   *          the Attributes to use in creating the person Map.
-   * @return a Map, keyed by the LDAP attribute name, containing the LDAP
-   *         attribute value.
+   * @param previous
+   *          the snapshot the retrieval was based on, or null for a full
+   *          retrieval
+   * @param collector
+   *          the EntryCollector holding the retrieved entries
+   * @param fullRefresh
+   *          true if all the entries were retrieved from LDAP, false otherwise
+   * @param cachedUids
+   *          the uids that were served from the cache, rather than LDAP
+   * @param startMillis
+   *          the time (in milliseconds since the epoch) the retrieval started
    */
-  private static Map<String, String> asMap(Attributes attrs) {
-    Map<String, String> result = new HashMap<>();
+  private void saveSnapshot(LdapSnapshot previous, EntryCollector collector, boolean fullRefresh,
+      Set<String> cachedUids, long startMillis) {
+    if (this.snapshotFile == null) {
+      return;
+    }
+
+    LdapSnapshot snapshot = new LdapSnapshot();
+    snapshot.attributes = Arrays.asList(this.attributes);
+    snapshot.entries = new HashMap<>(collector.getResults());
+    // Cached entries may predate the high water mark, so they are only kept
+    // as they were in the previous snapshot
+    for (String uid : cachedUids) {
+      snapshot.entries.remove(uid);
+      if (!fullRefresh && previous.entries.containsKey(uid)) {
+        snapshot.entries.put(uid, previous.entries.get(uid));
+      }
+    }
+    if (fullRefresh) {
+      snapshot.lastFullRefreshMillis = startMillis;
+      snapshot.highWaterMark = collector.getHighWaterMark();
+      if ((snapshot.highWaterMark == null) && !snapshot.entries.isEmpty()) {
+        log.warn("WARNING: None of the LDAP entries had a UTC (\"Z\") modifyTimestamp, so the next "
+            + "retrieval will also be a full retrieval.");
+      }
+    } else {
+      snapshot.lastFullRefreshMillis = previous.lastFullRefreshMillis;
+      snapshot.highWaterMark = EntryCollector.latest(previous.highWaterMark, collector.getHighWaterMark());
+    }
+
     try {
-      for (String key : LDAP_ATTRIBUTES) {
-        result.put(key, getAttrValue(attrs.get(key)));
+      snapshot.write(new File(this.snapshotFile));
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write LDAP snapshot '{}'", this.snapshotFile, ioe);
+    }
+  }
+
+  /**
+   * Returns the on-disk entry cache, or null if no cache file has been
+   * configured.
+   *
+   * @return the on-disk entry cache, or null if no cache file has been
+   *         configured.
+   */
+  private LdapCache loadCache() {
+    if (this.cacheFile == null) {
+      return null;
+    }
+
+    LdapCache cache = new LdapCache();
+    File file = new File(this.cacheFile);
+    if (file.exists()) {
+      try {
+        LdapCache storedCache = LdapCache.read(file);
+        if (storedCache.attributes.equals(Arrays.asList(this.attributes))) {
+          cache = storedCache;
+        } else {
+          log.info("LDAP attributes have changed. Ignoring LDAP cache '{}'", this.cacheFile);
+        }
+      } catch (IOException ioe) {
+        log.warn("WARNING: Unable to read LDAP cache '{}'", this.cacheFile, ioe);
       }
+    }
+    cache.attributes = Arrays.asList(this.attributes);
+    cache.setTtls(TimeUnit.MINUTES.toMillis(this.cacheTtlMinutes),
+        TimeUnit.MINUTES.toMillis(this.negativeCacheTtlMinutes));
+    return cache;
+  }
+
+  /**
+   * Adds the results of the lookups of the given uids to the cache, and
+   * writes it to disk. Uids that were not found are cached as "not found",
+   * unless their lookup failed.
+   *
+   * @param cache
+   *          the LdapCache to update
+   * @param lookedUpUids
+   *          the uids that were looked up in LDAP
+   * @param collector
+   *          the EntryCollector holding the retrieved entries
+   * @param nowMillis
+   *          the time the retrieval started, in milliseconds since the epoch
+   */
+  private void saveCache(LdapCache cache, Set<String> lookedUpUids, EntryCollector collector, long nowMillis) {
+    Set<String> failedUids = collector.getFailedUids();
+    Map<String, Map<String, String>> results = collector.getResults();
+    for (String uid : lookedUpUids) {
+      if (results.containsKey(uid)) {
+        cache.put(uid, results.get(uid), nowMillis);
+      } else if (!failedUids.contains(uid)) {
+        cache.put(uid, null, nowMillis);
+      }
+    }
+    cache.prune(nowMillis);
+
+    try {
+      cache.write(new File(this.cacheFile));
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write LDAP cache '{}'", this.cacheFile, ioe);
+    }
+  }
 
-    } catch (NamingException ne) {
-      log.error("ERROR: Error processing LDAP parameters", ne);
-      return result;
+  /**
+   * Returns the LDAP attributes to request in each search. The
+   * "modifyTimestamp" operational attribute is included when a snapshot is
+   * being kept.
+   *
+   * @return the LDAP attributes to request in each search.
+   */
+  private String[] getReturningAttributes() {
+    if (this.snapshotFile == null) {
+      return this.attributes;
     }
+    String[] returningAttributes = Arrays.copyOf(this.attributes, this.attributes.length + 1);
+    returningAttributes[this.attributes.length] = EntryCollector.MODIFY_TIMESTAMP;
+    return returningAttributes;
+  }
+
+  /**
+   * Runs the given number of concurrent workers, each performing batch queries
+   * from the given batcher until none remain.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param batcher
+   *          the AdaptiveBatcher providing the batch queries
+   * @param numThreads
+   *          the number of queries to perform concurrently
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @param batchSizes
+   *          the Map to record the batch size reached on each server in,
+   *          keyed by server URL
+   */
+  private void searchBatchesConcurrently(ReplicaSet replicas, AdaptiveBatcher batcher, int numThreads,
+      EntryCollector collector, Map<String, Integer> batchSizes) {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(() -> searchBatches(replicas, batcher, collector, batchSizes)));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ee) {
+          log.error("ERROR: Lookup failed.", ee.getCause());
+        }
+      }
+    } catch (InterruptedException ie) {
+      log.error("ERROR: Interrupted waiting for LDAP lookups.", ie);
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-    return result;
+  /**
+   * Performs batch queries from the given batcher until none remain, adding
+   * each entry found to the given collector.
+   * <p>
+   * The time taken by the successful attempt of each query is reported back
+   * to the batcher, so that it can adjust the size of subsequent batches. The
+   * time spent on failed attempts, and waiting to retry them, is not included,
+   * as it says nothing about how long a batch of that size takes.
+   * <p>
+   * A batch query that fails is retried with exponential backoff. If it still
+   * fails because the server rejected something in the query, the batch is
+   * bisected to isolate the uids causing the failure, so that the entries for
+   * the rest of the batch are still retrieved. If it still fails because no
+   * LDAP server could be reached, the remaining batches are not attempted, and
+   * their uids are recorded as failed. Any other failure is recorded for the
+   * uids of the batch.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param batcher
+   *          the AdaptiveBatcher providing the batch queries
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @param batchSizes
+   *          the Map to record the batch size reached on each server in,
+   *          keyed by server URL
+   */
+  private void searchBatches(ReplicaSet replicas, AdaptiveBatcher batcher, EntryCollector collector,
+      Map<String, Integer> batchSizes) {
+    AdaptiveBatcher.Batch batch;
+    while ((batch = batcher.nextBatch()) != null) {
+      if (this.deadline.isExpired()) {
+        collector.markFailed(batch.getUids(), DEADLINE_EXCEEDED);
+        continue;
+      }
+      if (this.unavailable != null) {
+        collector.markFailed(batch.getUids(), this.unavailable);
+        continue;
+      }
+      LdapMetrics.BatchStats stats = new LdapMetrics.BatchStats("batch", batch.size());
+      try {
+        SearchAttempt attempt = searchWithRetry(replicas, batch.getFilter(), collector, stats);
+        batcher.recordSuccess(batch, attempt.millis);
+        batchSizes.put(attempt.replica.getUrl(), batcher.getBatchSize());
+      } catch (SizeLimitExceededException slee) {
+        if (!batcher.recordSizeLimitExceeded(batch)) {
+          log.error("ERROR: Lookup of {} exceeded the server size limit.", batch.getUids(), slee);
+          collector.markFailed(batch.getUids(), describe(slee));
+        }
+      } catch (NamingException e) {
+        if (!isDataError(e)) {
+          log.error("ERROR: Lookup of {} uids failed.", batch.size(), e);
+          markFailed(batch.getUids(), collector, e);
+          continue;
+        }
+        if (batch.size() > 1) {
+          log.warn("WARNING: Lookup of {} uids failed. Splitting the batch to isolate the failure.",
+              batch.size(), e);
+        }
+        bisect(replicas, batch.getUids(), collector, e, stats);
+      } finally {
+        this.metrics.record(stats);
+      }
+    }
   }
 
   /**
-   * Returns a String representing the value of the given attribute.
+   * Performs the batch query for the given filter, retrying it with
+   * exponential backoff if it fails. Queries exceeding the server size limit,
+   * or rejected as invalid, are not retried, as they would fail again. No
+   * retry is made that would start after the deadline, or once another query
+   * has found that LDAP cannot be reached.
    *
-   * @param attr
-   *          the attribute to retrieve the value of
-   * @return a String representing the value of the given attribute.
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param filter
+   *          the LDAP filter query to perform
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @param stats
+   *          the BatchStats to record the searches in
+   * @return the successful attempt of the query
    * @throws NamingException
-   *           if a naming exception occurs when retrieving the values.
+   *           if the query still fails after the configured number of retries
    */
-  private static String getAttrValue(Attribute attr) throws NamingException {
-    if (attr == null) {
-      return null;
+  private SearchAttempt searchWithRetry(ReplicaSet replicas, String filter, EntryCollector collector,
+      LdapMetrics.BatchStats stats) throws NamingException {
+    int attempt = 0;
+    while (true) {
+      try {
+        return performSearch(replicas, this.searchBaseDn, filter, getReturningAttributes(),
+            searchResult -> collector.add(searchResult.getAttributes()), this.deadline, stats);
+      } catch (SizeLimitExceededException slee) {
+        throw slee;
+      } catch (NamingException e) {
+        long backoffMillis = getRetryBackoffMillis(attempt);
+        if ((attempt >= this.maxRetries) || (backoffMillis >= this.deadline.getRemainingMillis())
+            || isDataError(e) || (this.unavailable != null)) {
+          throw e;
+        }
+        attempt++;
+        log.warn("WARNING: Lookup failed: {}. Retrying in {} ms (retry {} of {}).", describe(e), backoffMillis,
+            attempt, this.maxRetries);
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
     }
+  }
 
-    Object obj = attr.get();
-    if (obj == null) {
-      return null;
+  /**
+   * Returns the number of milliseconds to wait before the given retry, which
+   * doubles with each retry up to a fixed maximum. A random jitter of up to
+   * half the wait is subtracted, so that concurrent queries that failed
+   * together do not all retry at the same moment.
+   *
+   * @param attempt
+   *          the number of retries already made
+   * @return the number of milliseconds to wait before the next retry.
+   */
+  private long getRetryBackoffMillis(int attempt) {
+    long backoffMillis = Math.min(MAX_RETRY_BACKOFF_MILLIS, this.retryBackoffMillis << Math.min(attempt, 20));
+    return backoffMillis - ThreadLocalRandom.current().nextLong((backoffMillis / 2) + 1);
+  }
+
+  /**
+   * Retrieves the given uids, whose batch query was rejected by the server,
+   * by splitting them in half and querying each half separately. Halves that
+   * are rejected are split again, until the uids that fail on their own are
+   * found. Those uids are recorded as failed in the collector.
+   * <p>
+   * The halves are not retried, as the whole batch has already been retried.
+   * A half that fails for any other reason is not split, as the failure has
+   * nothing to do with its uids, and its uids are recorded as failed.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform searches on
+   * @param uids
+   *          the uids whose batch query failed
+   * @param collector
+   *          the EntryCollector to add entries to
+   * @param cause
+   *          the error from the failed batch query
+   * @param stats
+   *          the BatchStats to record the searches in
+   */
+  private void bisect(ReplicaSet replicas, List<String> uids, EntryCollector collector, NamingException cause,
+      LdapMetrics.BatchStats stats) {
+    if (this.deadline.isExpired()) {
+      collector.markFailed(uids, DEADLINE_EXCEEDED);
+      return;
+    }
+    if (this.unavailable != null) {
+      collector.markFailed(uids, this.unavailable);
+      return;
+    }
+    if (uids.size() == 1) {
+      log.error("ERROR: Lookup of '{}' failed.", uids.get(0), cause);
+      collector.markFailed(uids, describe(cause));
+      return;
+    }
+
+    int middle = uids.size() / 2;
+    for (List<String> half : Arrays.asList(uids.subList(0, middle), uids.subList(middle, uids.size()))) {
+      try {
+        performSearch(replicas, this.searchBaseDn, getQueryFilter(half), getReturningAttributes(),
+            searchResult -> collector.add(searchResult.getAttributes()), this.deadline, stats);
+      } catch (NamingException e) {
+        if (isDataError(e) || (e instanceof SizeLimitExceededException)) {
+          bisect(replicas, half, collector, e, stats);
+        } else {
+          log.error("ERROR: Lookup of {} uids failed.", half.size(), e);
+          markFailed(half, collector, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the given uids as failed because of the given error. If the error
+   * means LDAP cannot be reached, no further searches are started, and the
+   * uids of any remaining batches are also recorded as failed.
+   *
+   * @param uids
+   *          the uids whose lookup failed
+   * @param collector
+   *          the EntryCollector to record the failure in
+   * @param cause
+   *          the error from the failed query
+   */
+  private void markFailed(List<String> uids, EntryCollector collector, NamingException cause) {
+    collector.markFailed(uids, describe(cause));
+    if (isConnectionFailure(cause) && (this.unavailable == null)) {
+      this.unavailable = "LDAP unavailable: " + describe(cause);
+      log.error("ERROR: Unable to reach LDAP. No further LDAP lookups will be attempted.");
+    }
+  }
+
+  /**
+   * Returns true if the given error means that the LDAP server could not be
+   * reached, or did not respond in time, rather than that it rejected the
+   * search.
+   *
+   * @param ne
+   *          the NamingException to check
+   * @return true if the given error is a connection or availability failure,
+   *         false otherwise.
+   */
+  private static boolean isConnectionFailure(NamingException ne) {
+    if ((ne instanceof CommunicationException) || (ne instanceof ServiceUnavailableException)) {
+      return true;
+    }
+    // JNDI reports a read timeout as a plain NamingException
+    String message = ne.getMessage();
+    return (ne.getClass() == NamingException.class) && (message != null) && message.contains("read timed out");
+  }
+
+  /**
+   * Returns true if the given error means that the server rejected the query
+   * because of something in it, such as an invalid uid, so that splitting up
+   * the query can isolate the cause.
+   *
+   * @param ne
+   *          the NamingException to check
+   * @return true if the given error is caused by the query, false otherwise.
+   */
+  private static boolean isDataError(NamingException ne) {
+    return (ne instanceof InvalidSearchFilterException) || (ne instanceof InvalidAttributeValueException)
+        || (ne instanceof InvalidAttributesException) || (ne instanceof InvalidNameException);
+  }
+
+  /**
+   * Returns a short description of the given error, for the failure list.
+   *
+   * @param ne
+   *          the NamingException to describe
+   * @return a short description of the given error.
+   */
+  private static String describe(NamingException ne) {
+    String explanation = ne.getExplanation();
+    return ne.getClass().getSimpleName() + ((explanation != null) ? ": " + explanation : "");
+  }
+
+  /**
+   * Returns the batch size recorded by the previous run against the given
+   * LDAP server, or the configured initial batch size if there is none.
+   *
+   * @param url
+   *          the URL of the LDAP server
+   * @return the batch size to start with
+   */
+  private int loadBatchSize(String url) {
+    if (this.batchSizeFile == null) {
+      return this.batchSize;
+    }
+
+    File file = new File(this.batchSizeFile);
+    if (!file.exists()) {
+      return this.batchSize;
+    }
+
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+      String value = props.getProperty(url);
+      if (value != null) {
+        log.debug("Using recorded batch size of {} for '{}'", value, url);
+        return Integer.parseInt(value.trim());
+      }
+    } catch (IOException | NumberFormatException e) {
+      log.warn("WARNING: Unable to read batch size from '{}'", this.batchSizeFile, e);
+    }
+    return this.batchSize;
+  }
+
+  /**
+   * Records the given batch sizes, so that they can be used as the starting
+   * batch size for the next run against each LDAP server. The sizes recorded
+   * for other servers are kept.
+   *
+   * @param chosenBatchSizes
+   *          the batch sizes to record, keyed by LDAP server URL
+   */
+  private void saveBatchSizes(Map<String, Integer> chosenBatchSizes) {
+    if ((this.batchSizeFile == null) || chosenBatchSizes.isEmpty()) {
+      return;
+    }
+
+    File file = new File(this.batchSizeFile);
+    Properties props = new Properties();
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        props.load(in);
+      } catch (IOException ioe) {
+        log.warn("WARNING: Unable to read batch size from '{}'", this.batchSizeFile, ioe);
+      }
+    }
+
+    for (Map.Entry<String, Integer> chosenBatchSize : chosenBatchSizes.entrySet()) {
+      props.setProperty(chosenBatchSize.getKey(), Integer.toString(chosenBatchSize.getValue()));
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      props.store(out, "LDAP batch sizes, keyed by LDAP URL");
+    } catch (IOException ioe) {
+      log.warn("WARNING: Unable to write batch size to '{}'", this.batchSizeFile, ioe);
+    }
+  }
+
+  /**
+   * Returns the configured LDAP server URLs, in order of preference.
+   *
+   * @return the configured LDAP server URLs, in order of preference.
+   */
+  private List<String> getLdapUrls() {
+    return Arrays.asList(this.ldapUrl.trim().split("[\\s,]+"));
+  }
+
+  /**
+   * Returns the pool of bound contexts to use for the given LDAP server. When
+   * pipelining is enabled, concurrent searches share a small number of
+   * connections. Otherwise each concurrent search has its own connection.
+   *
+   * @param url
+   *          the URL of the LDAP server
+   * @return the pool of bound contexts to use for the given LDAP server.
+   */
+  private ContextPool createContextPool(String url) {
+    if (this.pipelineDepth > 1) {
+      return new PipelinedContextPool(createLdapContext(url), this.pipelineConnections, this.pipelineDepth);
+    }
+    return new LdapContextPool(createLdapContext(url), this.parallelism);
+  }
+
+  /**
+   * Returns a Hashtable representing the LDAP environment context
+   *
+   * @param url
+   *          the URL of the LDAP server
+   * @return a Hashtable representing the LDAP environment context
+   */
+  private Hashtable<String, Object> createLdapContext(String url) {
+    // Set up the environment for creating the initial context
+    Hashtable<String, Object> env = new Hashtable<String, Object>(11);
+    env.put(Context.INITIAL_CONTEXT_FACTORY,
+        "com.sun.jndi.ldap.LdapCtxFactory");
+    env.put(Context.PROVIDER_URL, url);
+    env.put(Context.SECURITY_AUTHENTICATION, this.authentication);
+    env.put(Context.SECURITY_PRINCIPAL, this.bindDn);
+    env.put(Context.SECURITY_CREDENTIALS, this.credentials);
+    if (this.connectTimeoutMillis > 0) {
+      env.put("com.sun.jndi.ldap.connect.timeout", Long.toString(this.connectTimeoutMillis));
+    }
+    if (this.readTimeoutMillis > 0) {
+      env.put("com.sun.jndi.ldap.read.timeout", Long.toString(this.readTimeoutMillis));
+    }
+    return env;
+  }
+
+  /**
+   * Performs the LDAP search on the best available replica, passing each
+   * SearchResult to the given consumer as it is read from the connection.
+   * <p>
+   * If the search fails on one replica because the server could not be
+   * reached or did not respond in time, it is retried on each of the others in
+   * turn, and only fails if every replica fails, or the deadline passes.
+   * Results received before a failure are passed to the consumer again by the
+   * retry. Any other error, such as an exceeded size limit or an invalid
+   * filter, would fail on every replica, so it is thrown straight away without
+   * counting against the replica.
+   *
+   * @param replicas
+   *          the ReplicaSet to perform the search on
+   * @param searchBaseDn
+   *          the base DN at which to start the search.
+   * @param uidQuery
+   *          the LDAP filter query to perform
+   * @param returningAttributes
+   *          the LDAP attributes to return
+   * @param consumer
+   *          the Consumer to pass each SearchResult to
+   * @param deadline
+   *          the Deadline after which no other replica is tried
+   * @param stats
+   *          the BatchStats to record the search in
+   * @return the successful attempt of the search
+   * @throws NamingException
+   *           if the search fails on every replica tried
+   */
+  private static SearchAttempt performSearch(ReplicaSet replicas, String searchBaseDn, String uidQuery,
+      String[] returningAttributes, Consumer<SearchResult> consumer, Deadline deadline,
+      LdapMetrics.BatchStats stats) throws NamingException {
+    Set<ReplicaSet.Replica> tried = new HashSet<>();
+    NamingException lastException = null;
+    ReplicaSet.Replica replica;
+    while ((replica = replicas.select(tried)) != null) {
+      if ((lastException != null) && deadline.isExpired()) {
+        break;
+      }
+      tried.add(replica);
+      try {
+        long millis = TimeUnit.NANOSECONDS.toMillis(
+            performSearch(replica.getPool(), searchBaseDn, uidQuery, returningAttributes, consumer, stats));
+        replicas.recordSuccess(replica, millis);
+        return new SearchAttempt(replica, millis);
+      } catch (NamingException e) {
+        if (!isConnectionFailure(e)) {
+          // The search itself was rejected, which is not the fault of the server
+          throw e;
+        }
+        replicas.recordFailure(replica);
+        lastException = e;
+        if ((tried.size() < replicas.size()) && !deadline.isExpired()) {
+          log.warn("WARNING: Lookup on {} failed. Trying another LDAP server.", replica, e);
+        }
+      }
+    }
+    throw lastException;
+  }
+
+  /**
+   * Performs the LDAP search using a context from the given pool, passing each
+   * SearchResult to the given consumer as it is read from the connection.
+   * <p>
+   * If the pooled context has lost its connection to the server, it is
+   * discarded and the search is retried once on a newly bound context. Results
+   * received before the connection was lost are passed to the consumer again
+   * by the retry.
+   *
+   * @param pool
+   *          the ContextPool to borrow a context from
+   * @param searchBaseDn
+   *          the base DN at which to start the search.
+   * @param uidQuery
+   *          the LDAP filter query to perform
+   * @param returningAttributes
+   *          the LDAP attributes to return
+   * @param consumer
+   *          the Consumer to pass each SearchResult to
+   * @param stats
+   *          the BatchStats to record the search in
+   * @return the number of nanoseconds taken by the successful attempt
+   * @throws NamingException
+   *           if the search fails
+   */
+  private static long performSearch(ContextPool pool, String searchBaseDn, String uidQuery,
+      String[] returningAttributes, Consumer<SearchResult> consumer, LdapMetrics.BatchStats stats)
+      throws NamingException {
+    try {
+      return searchOnce(pool, searchBaseDn, uidQuery, returningAttributes, consumer, stats);
+    } catch (CommunicationException | ServiceUnavailableException e) {
+      log.warn("WARNING: LDAP connection lost. Reconnecting and retrying.", e);
+      return searchOnce(pool, searchBaseDn, uidQuery, returningAttributes, consumer, stats);
+    }
+  }
+
+  /**
+   * Performs a single LDAP search attempt using a context from the given pool.
+   *
+   * @param pool
+   *          the ContextPool to borrow a context from
+   * @param searchBaseDn
+   *          the base DN at which to start the search.
+   * @param uidQuery
+   *          the LDAP filter query to perform
+   * @param returningAttributes
+   *          the LDAP attributes to return
+   * @param consumer
+   *          the Consumer to pass each SearchResult to
+   * @param stats
+   *          the BatchStats to record the connect, search, and result
+   *          measurements in
+   * @return the number of nanoseconds taken to obtain a context and perform
+   *         the search
+   * @throws NamingException
+   *           if the search fails
+   */
+  private static long searchOnce(ContextPool pool, String searchBaseDn, String uidQuery,
+      String[] returningAttributes, Consumer<SearchResult> consumer, LdapMetrics.BatchStats stats)
+      throws NamingException {
+    long connectStart = System.nanoTime();
+    LdapContext ctx;
+    try {
+      ctx = pool.borrow();
+    } catch (NamingException e) {
+      // Count the attempt, although the search could not be sent
+      stats.addConnectTime(System.nanoTime() - connectStart);
+      stats.addSearchTime(0);
+      throw e;
+    }
+    long searchStart = System.nanoTime();
+    stats.addConnectTime(searchStart - connectStart);
+    try {
+      Name name = new LdapName(searchBaseDn);
+      SearchControls searchControls = new SearchControls();
+      searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      searchControls.setReturningAttributes(returningAttributes);
+
+      // Perform lookup and cast to target type
+      String query = uidQuery;
+      NamingEnumeration<SearchResult> results = ctx.search(name, query, searchControls);
+      try {
+        while ((results != null) && results.hasMore()) {
+          SearchResult searchResult = results.next();
+          stats.addEntry(searchResult);
+          consumer.accept(searchResult);
+        }
+      } finally {
+        if (results != null) {
+          results.close();
+        }
+      }
+      return System.nanoTime() - connectStart;
+    } catch (NamingException e) {
+      if (isConnectionFailure(e)) {
+        // The connection is no longer usable (or, after a read timeout, may
+        // still deliver the abandoned results), so don't return it to the
+        // pool
+        pool.invalidate(ctx);
+        ctx = null;
+      }
+      throw e;
+    } finally {
+      stats.addSearchTime(System.nanoTime() - searchStart);
+      if (ctx != null) {
+        pool.release(ctx);
+      }
     }
-    return obj.toString();
   }
 }
@@ -0,0 +1,229 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An on-disk cache of LDAP entries, keyed by uid.
+ * <p>
+ * Entries expire after a time-to-live. Uids that were not found in LDAP are
+ * also cached ("negative" entries), usually with a shorter time-to-live, so
+ * that re-running a retrieval does not repeat the lookups for them either.
+ * <p>
+ * Hits, misses, and expirations are counted for reporting at the end of a run.
+ */
+public class LdapCache {
+  /**
+   * A single cached lookup result.
+   */
+  public static class CacheEntry {
+    /**
+     * The time (in milliseconds since the epoch) the entry was retrieved.
+     */
+    public long fetchedMillis;
+
+    /**
+     * The LDAP attributes for the person (keyed by LDAP attribute), or null
+     * if the uid was not found in LDAP.
+     */
+    public Map<String, String> entry;
+
+    /**
+     * @return true if the uid was not found in LDAP, false otherwise.
+     */
+    @JsonIgnore
+    public boolean isNegative() {
+      return entry == null;
+    }
+  }
+
+  /**
+   * The LDAP attributes included in each entry.
+   */
+  public List<String> attributes = new ArrayList<>();
+
+  /**
+   * The cached lookup results, keyed by uid.
+   */
+  public Map<String, CacheEntry> entries = new HashMap<>();
+
+  @JsonIgnore
+  private long ttlMillis;
+  @JsonIgnore
+  private long negativeTtlMillis;
+  @JsonIgnore
+  private int hits;
+  @JsonIgnore
+  private int negativeHits;
+  @JsonIgnore
+  private int misses;
+  @JsonIgnore
+  private int expirations;
+
+  /**
+   * Sets the time-to-live of cached entries.
+   *
+   * @param ttlMillis
+   *          the number of milliseconds an entry remains valid
+   * @param negativeTtlMillis
+   *          the number of milliseconds a "not found" entry remains valid
+   */
+  public void setTtls(long ttlMillis, long negativeTtlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+  }
+
+  /**
+   * Returns the unexpired CacheEntry for the given uid, or null if there is
+   * none, updating the cache statistics.
+   *
+   * @param uid
+   *          the uid to look up
+   * @param nowMillis
+   *          the current time, in milliseconds since the epoch
+   * @return the unexpired CacheEntry for the given uid, or null if there is
+   *         none.
+   */
+  public CacheEntry get(String uid, long nowMillis) {
+    CacheEntry cacheEntry = entries.get(uid);
+    if (cacheEntry == null) {
+      misses++;
+      return null;
+    }
+
+    if (isExpired(cacheEntry, nowMillis)) {
+      entries.remove(uid);
+      expirations++;
+      misses++;
+      return null;
+    }
+
+    hits++;
+    if (cacheEntry.isNegative()) {
+      negativeHits++;
+    }
+    return cacheEntry;
+  }
+
+  /**
+   * Adds the given lookup result to the cache.
+   *
+   * @param uid
+   *          the uid that was looked up
+   * @param entry
+   *          the LDAP attributes for the person, or null if the uid was not
+   *          found in LDAP
+   * @param nowMillis
+   *          the current time, in milliseconds since the epoch
+   */
+  public void put(String uid, Map<String, String> entry, long nowMillis) {
+    CacheEntry cacheEntry = new CacheEntry();
+    cacheEntry.fetchedMillis = nowMillis;
+    cacheEntry.entry = entry;
+    entries.put(uid, cacheEntry);
+  }
+
+  /**
+   * Removes all expired entries from the cache.
+   *
+   * @param nowMillis
+   *          the current time, in milliseconds since the epoch
+   */
+  public void prune(long nowMillis) {
+    Iterator<CacheEntry> iter = entries.values().iterator();
+    while (iter.hasNext()) {
+      if (isExpired(iter.next(), nowMillis)) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * @return a one-line summary of the cache statistics for this run
+   */
+  @JsonIgnore
+  public String getStatistics() {
+    return String.format("%d hits (%d not found), %d misses, %d expirations",
+        hits, negativeHits, misses, expirations);
+  }
+
+  /**
+   * @return the number of cache hits (including "not found" hits)
+   */
+  @JsonIgnore
+  public int getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of cache misses (including expirations)
+   */
+  @JsonIgnore
+  public int getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of entries found to be expired
+   */
+  @JsonIgnore
+  public int getExpirations() {
+    return expirations;
+  }
+
+  /**
+   * Returns true if the given entry has outlived its time-to-live, false
+   * otherwise.
+   *
+   * @param cacheEntry
+   *          the entry to check
+   * @param nowMillis
+   *          the current time, in milliseconds since the epoch
+   * @return true if the given entry has outlived its time-to-live, false
+   *         otherwise.
+   */
+  private boolean isExpired(CacheEntry cacheEntry, long nowMillis) {
+    long ttl = cacheEntry.isNegative() ? negativeTtlMillis : ttlMillis;
+    return (nowMillis - cacheEntry.fetchedMillis) >= ttl;
+  }
+
+  /**
+   * Returns the LdapCache stored in the given file.
+   *
+   * @param file
+   *          the file to read
+   * @return the LdapCache stored in the given file.
+   * @throws IOException
+   *           if an I/O error occurs, or the file cannot be parsed
+   */
+  public static LdapCache read(File file) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    return objectMapper.readValue(file, LdapCache.class);
+  }
+
+  /**
+   * Writes this cache to the given file, by way of a temporary file so that an
+   * interrupted write does not leave a truncated cache behind.
+   *
+   * @param file
+   *          the file to write
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public void write(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    ObjectMapper objectMapper = new ObjectMapper();
+    objectMapper.writeValue(tempFile, this);
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
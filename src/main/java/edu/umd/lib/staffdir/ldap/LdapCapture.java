@@ -0,0 +1,74 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The complete result of an LDAP retrieval, captured so that it can be
+ * replayed later without contacting the LDAP server, for repeatable offline
+ * runs. The capture is stored as gzip-compressed JSON.
+ */
+public class LdapCapture {
+  /**
+   * The LDAP attributes requested in each search.
+   */
+  public List<String> attributes = new ArrayList<>();
+
+  /**
+   * The entries, keyed by uid, where each value is a Map containing the LDAP
+   * attributes for that person (keyed by LDAP attribute).
+   */
+  public Map<String, Map<String, String>> entries = new TreeMap<>();
+
+  /**
+   * The uids whose lookup failed, mapped to a description of the error.
+   */
+  public Map<String, String> failures = new TreeMap<>();
+
+  /**
+   * Returns the LdapCapture stored in the given file.
+   *
+   * @param file
+   *          the file to read
+   * @return the LdapCapture stored in the given file.
+   * @throws IOException
+   *           if an I/O error occurs, or the file cannot be parsed
+   */
+  public static LdapCapture read(File file) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+      return objectMapper.readValue(in, LdapCapture.class);
+    }
+  }
+
+  /**
+   * Writes this capture to the given file, creating its directory if needed.
+   *
+   * @param file
+   *          the file to write
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public void write(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory '" + dir + "'");
+    }
+    ObjectMapper objectMapper = new ObjectMapper();
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+      objectMapper.writeValue(out, this);
+    }
+  }
+}
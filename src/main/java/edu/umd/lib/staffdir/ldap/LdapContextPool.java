@@ -0,0 +1,258 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of bound LDAP contexts.
+ * <p>
+ * Creating an InitialLdapContext requires a TCP connection, an optional TLS
+ * handshake, and a bind. This pool allows those costs to be paid once and then
+ * shared by all the searches performed during a single retrieval.
+ * <p>
+ * Contexts that have been idle for longer than the health check interval are
+ * checked (by reading the root DSE) before being handed out, and are replaced
+ * with a freshly bound context if the check fails.
+ */
+class LdapContextPool implements ContextPool {
+  public static final Logger log = LoggerFactory.getLogger(LdapContextPool.class);
+
+  /**
+   * The default number of milliseconds a context may be idle before it is
+   * health checked when borrowed.
+   */
+  public static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 30_000;
+
+  private final Hashtable<String, Object> env;
+  private final int maxSize;
+  private final long healthCheckIntervalMillis;
+
+  private final Deque<PooledContext> idle = new ArrayDeque<>();
+  private int totalContexts = 0;
+  private int contextsCreated = 0;
+  private boolean closed = false;
+
+  /**
+   * Constructs an LdapContextPool.
+   *
+   * @param env
+   *          the Hashtable representing the LDAP environment context
+   * @param maxSize
+   *          the maximum number of bound contexts to hold open at one time
+   */
+  public LdapContextPool(Hashtable<String, Object> env, int maxSize) {
+    this(env, maxSize, DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Constructs an LdapContextPool.
+   *
+   * @param env
+   *          the Hashtable representing the LDAP environment context
+   * @param maxSize
+   *          the maximum number of bound contexts to hold open at one time
+   * @param healthCheckIntervalMillis
+   *          the number of milliseconds a context may be idle before it is
+   *          checked on borrow
+   */
+  public LdapContextPool(Hashtable<String, Object> env, int maxSize, long healthCheckIntervalMillis) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1.");
+    }
+    this.env = env;
+    this.maxSize = maxSize;
+    this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+  }
+
+  /**
+   * Returns a bound LdapContext from the pool, creating one if necessary. This
+   * method blocks if the maximum number of contexts are already in use.
+   * <p>
+   * Every context returned by this method must be handed back using either
+   * "release" or "invalidate".
+   *
+   * @return a bound LdapContext
+   * @throws NamingException
+   *           if a new context cannot be created
+   */
+  @Override
+  public LdapContext borrow() throws NamingException {
+    while (true) {
+      PooledContext pooled = null;
+      synchronized (this) {
+        if (closed) {
+          throw new IllegalStateException("LdapContextPool is closed.");
+        }
+        if (!idle.isEmpty()) {
+          pooled = idle.pop();
+        } else if (totalContexts < maxSize) {
+          totalContexts++;
+        } else {
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for an LDAP context.", ie);
+          }
+          continue;
+        }
+      }
+
+      if (pooled == null) {
+        return createContext();
+      }
+
+      long idleMillis = System.currentTimeMillis() - pooled.lastUsed;
+      if ((idleMillis < healthCheckIntervalMillis) || isHealthy(pooled.ctx)) {
+        return pooled.ctx;
+      }
+
+      log.info("Discarding stale LDAP context after {} ms idle.", idleMillis);
+      closeQuietly(pooled.ctx);
+      return createContext();
+    }
+  }
+
+  /**
+   * Returns the given context to the pool so that it can be reused.
+   *
+   * @param ctx
+   *          the LdapContext to return
+   */
+  @Override
+  public void release(LdapContext ctx) {
+    synchronized (this) {
+      if (!closed) {
+        idle.push(new PooledContext(ctx));
+        notifyAll();
+        return;
+      }
+      totalContexts--;
+    }
+    closeQuietly(ctx);
+  }
+
+  /**
+   * Closes and discards the given context, typically because a communication
+   * error occurred while using it. A replacement context is created on the
+   * next borrow.
+   *
+   * @param ctx
+   *          the LdapContext to discard
+   */
+  @Override
+  public void invalidate(LdapContext ctx) {
+    closeQuietly(ctx);
+    synchronized (this) {
+      totalContexts--;
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the total number of contexts bound by this pool since it was
+   *         created.
+   */
+  @Override
+  public synchronized int getContextsCreated() {
+    return contextsCreated;
+  }
+
+  /**
+   * Closes all idle contexts. Contexts currently borrowed are closed when they
+   * are released.
+   */
+  @Override
+  public void close() {
+    Deque<PooledContext> toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = new ArrayDeque<>(idle);
+      totalContexts -= idle.size();
+      idle.clear();
+      notifyAll();
+    }
+    for (PooledContext pooled : toClose) {
+      closeQuietly(pooled.ctx);
+    }
+  }
+
+  /**
+   * Creates and binds a new LdapContext. The slot for the context must already
+   * have been reserved by the caller.
+   *
+   * @return a newly bound LdapContext
+   * @throws NamingException
+   *           if the context cannot be created
+   */
+  private LdapContext createContext() throws NamingException {
+    try {
+      LdapContext ctx = new InitialLdapContext(env, null);
+      synchronized (this) {
+        contextsCreated++;
+      }
+      return ctx;
+    } catch (NamingException | RuntimeException e) {
+      synchronized (this) {
+        totalContexts--;
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns true if the given context can still communicate with the server,
+   * false otherwise.
+   *
+   * @param ctx
+   *          the LdapContext to check
+   * @return true if the given context can still communicate with the server,
+   *         false otherwise.
+   */
+  private static boolean isHealthy(LdapContext ctx) {
+    try {
+      // Reading the root DSE is cheap, and does not depend on the search base
+      ctx.getAttributes("", new String[] { "supportedLDAPVersion" });
+      return true;
+    } catch (NamingException ne) {
+      log.debug("LDAP context failed health check.", ne);
+      return false;
+    }
+  }
+
+  /**
+   * Closes the given context, logging (but otherwise ignoring) any errors.
+   *
+   * @param ctx
+   *          the LdapContext to close
+   */
+  private static void closeQuietly(LdapContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException ne) {
+      log.debug("Error closing LDAP context.", ne);
+    }
+  }
+
+  /**
+   * An idle context, along with the time it was last returned to the pool.
+   */
+  private static class PooledContext {
+    final LdapContext ctx;
+    final long lastUsed;
+
+    PooledContext(LdapContext ctx) {
+      this.ctx = ctx;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timing and volume measurements for the LDAP searches performed by a single
+ * retrieval, for tuning the batch size and parallelism.
+ * <p>
+ * Each batch query (and paged sweep) is measured individually by a
+ * {@link BatchStats}, and then added to the aggregate histograms. Batches
+ * slower than a threshold are logged as they complete.
+ * <p>
+ * This class is thread-safe, so that a single instance can be shared by
+ * several concurrent searches.
+ */
+public class LdapMetrics {
+  public static final Logger log = LoggerFactory.getLogger(LdapMetrics.class);
+
+  /**
+   * The measurements for a single batch query, including any retries.
+   * <p>
+   * JNDI binds as part of opening a connection, so the connect and bind time
+   * are measured together, as the time taken to obtain a bound context from
+   * the pool. This is close to zero when a pooled connection is reused.
+   * <p>
+   * Each batch is measured by a single thread, so this class is not
+   * thread-safe.
+   */
+  public static class BatchStats {
+    private final String description;
+    private final int uids;
+    private long connectNanos = 0;
+    private long searchNanos = 0;
+    private int searches = 0;
+    private int entries = 0;
+    private long bytes = 0;
+
+    /**
+     * Constructs a BatchStats.
+     *
+     * @param description
+     *          a short description of the batch, for logging
+     * @param uids
+     *          the number of uids requested by the batch
+     */
+    public BatchStats(String description, int uids) {
+      this.description = description;
+      this.uids = uids;
+    }
+
+    /**
+     * Records the time taken to obtain a bound context for a search.
+     *
+     * @param nanos
+     *          the number of nanoseconds taken
+     */
+    public void addConnectTime(long nanos) {
+      connectNanos += nanos;
+    }
+
+    /**
+     * Records a search attempt, and the time taken to perform the search and
+     * read its results.
+     *
+     * @param nanos
+     *          the number of nanoseconds taken
+     */
+    public void addSearchTime(long nanos) {
+      searches++;
+      searchNanos += nanos;
+    }
+
+    /**
+     * Records a single search result, and the size of its attribute values.
+     *
+     * @param searchResult
+     *          the SearchResult returned by the server
+     */
+    public void addEntry(SearchResult searchResult) {
+      entries++;
+      try {
+        NamingEnumeration<? extends Attribute> attrs = searchResult.getAttributes().getAll();
+        while (attrs.hasMore()) {
+          Attribute attr = attrs.next();
+          for (int i = 0; i < attr.size(); i++) {
+            Object value = attr.get(i);
+            if (value instanceof byte[]) {
+              bytes += ((byte[]) value).length;
+            } else if (value != null) {
+              bytes += value.toString().getBytes(StandardCharsets.UTF_8).length;
+            }
+          }
+        }
+      } catch (NamingException ne) {
+        log.debug("Unable to measure LDAP search result.", ne);
+      }
+    }
+
+    /**
+     * @return the number of milliseconds spent obtaining bound contexts
+     */
+    public long getConnectMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(connectNanos);
+    }
+
+    /**
+     * @return the number of milliseconds spent searching
+     */
+    public long getSearchMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(searchNanos);
+    }
+
+    /**
+     * @return the number of searches attempted, including any retries
+     */
+    public int getSearches() {
+      return searches;
+    }
+
+    /**
+     * @return the number of entries returned
+     */
+    public int getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return the number of bytes of attribute values returned
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d uids, %d search(es), connect/bind %d ms, search %d ms, %d entries, %d bytes",
+          description, uids, searches, getConnectMillis(), getSearchMillis(), entries, bytes);
+    }
+  }
+
+  /**
+   * A histogram of non-negative values, using power-of-two buckets. Bucket 0
+   * counts zeros, and bucket n counts values from 2^(n-1) up to (but not
+   * including) 2^n.
+   * <p>
+   * This class is not thread-safe.
+   */
+  static class Histogram {
+    private final String name;
+    private final long[] buckets = new long[64];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    Histogram(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Records the given value.
+     *
+     * @param value
+     *          the value to record
+     */
+    public void record(long value) {
+      long nonNegative = Math.max(0, value);
+      buckets[64 - Long.numberOfLeadingZeros(nonNegative)]++;
+      count++;
+      sum += nonNegative;
+      max = Math.max(max, nonNegative);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the recorded values,
+     * which is the top of the bucket the percentile falls in (or the largest
+     * value, if that is lower).
+     *
+     * @param percentile
+     *          the percentile to return, from 1 to 100
+     * @return an upper bound of the given percentile of the recorded values,
+     *         or 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile) {
+      long rank = (long) Math.ceil((percentile / 100) * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if ((seen >= rank) && (seen > 0)) {
+          return (i == 0) ? 0 : Math.min(max, (1L << i) - 1);
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%s: count %d, mean %d, p50 <= %d, p90 <= %d, p99 <= %d, max %d", name, count,
+          (count > 0) ? sum / count : 0, getPercentile(50), getPercentile(90), getPercentile(99), max));
+      String separator = " [";
+      for (int i = 0; i < buckets.length; i++) {
+        if (buckets[i] > 0) {
+          sb.append(separator).append((i == 0) ? "0" : "<" + (1L << i)).append(": ").append(buckets[i]);
+          separator = ", ";
+        }
+      }
+      if (count > 0) {
+        sb.append("]");
+      }
+      return sb.toString();
+    }
+  }
+
+  private final long slowBatchMillis;
+  private final Histogram connectMillis = new Histogram("connect/bind ms");
+  private final Histogram searchMillis = new Histogram("search ms");
+  private final Histogram entries = new Histogram("entries");
+  private final Histogram bytes = new Histogram("bytes");
+  private int slowBatches = 0;
+  private long searches = 0;
+
+  /**
+   * Constructs an LdapMetrics.
+   *
+   * @param slowBatchMillis
+   *          the total number of milliseconds above which a batch is logged
+   *          as slow, or 0 to not log slow batches
+   */
+  public LdapMetrics(long slowBatchMillis) {
+    this.slowBatchMillis = slowBatchMillis;
+  }
+
+  /**
+   * Adds the measurements of the given completed batch to the histograms,
+   * logging the batch if it was slow.
+   *
+   * @param stats
+   *          the measurements of the completed batch
+   */
+  public void record(BatchStats stats) {
+    long totalMillis = stats.getConnectMillis() + stats.getSearchMillis();
+    boolean slow = (slowBatchMillis > 0) && (totalMillis > slowBatchMillis);
+    synchronized (this) {
+      connectMillis.record(stats.getConnectMillis());
+      searchMillis.record(stats.getSearchMillis());
+      entries.record(stats.getEntries());
+      bytes.record(stats.getBytes());
+      searches += stats.getSearches();
+      if (slow) {
+        slowBatches++;
+      }
+    }
+
+    if (slow) {
+      log.warn("WARNING: Slow LDAP batch ({} ms) {}", totalMillis, stats);
+    } else {
+      log.debug("LDAP batch {}", stats);
+    }
+  }
+
+  /**
+   * @return the number of batches recorded
+   */
+  public synchronized long getBatchCount() {
+    return searchMillis.getCount();
+  }
+
+  /**
+   * @return the number of searches attempted by all the batches recorded,
+   *         including any retries
+   */
+  public synchronized long getSearchCount() {
+    return searches;
+  }
+
+  /**
+   * @return the number of batches logged as slow
+   */
+  public synchronized int getSlowBatchCount() {
+    return slowBatches;
+  }
+
+  /**
+   * @return the histogram of the time spent searching in each batch
+   */
+  synchronized Histogram getSearchMillis() {
+    return searchMillis;
+  }
+
+  /**
+   * Logs the aggregate histograms for all the batches recorded.
+   */
+  public synchronized void logSummary() {
+    if (getBatchCount() == 0) {
+      return;
+    }
+    log.info("LDAP batches: {} ({} slow)", getBatchCount(), slowBatches);
+    for (Histogram histogram : new Histogram[] { connectMillis, searchMillis, entries, bytes }) {
+      log.info("LDAP batch {}", histogram);
+    }
+  }
+}
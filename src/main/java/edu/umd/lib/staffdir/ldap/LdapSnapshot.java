@@ -0,0 +1,72 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The result of the last successful LDAP retrieval, stored locally so that the
+ * next retrieval only needs to request the entries that have changed.
+ */
+public class LdapSnapshot {
+  /**
+   * The latest "modifyTimestamp" (in LDAP generalized time) of the entries in
+   * this snapshot.
+   */
+  public String highWaterMark;
+
+  /**
+   * The time (in milliseconds since the epoch) the last full retrieval that
+   * this snapshot is based on started.
+   */
+  public long lastFullRefreshMillis;
+
+  /**
+   * The LDAP attributes included in each entry.
+   */
+  public List<String> attributes = new ArrayList<>();
+
+  /**
+   * The entries, keyed by uid, where each value is a Map containing the LDAP
+   * attributes for that person (keyed by LDAP attribute).
+   */
+  public Map<String, Map<String, String>> entries = new HashMap<>();
+
+  /**
+   * Returns the LdapSnapshot stored in the given file.
+   *
+   * @param file
+   *          the file to read
+   * @return the LdapSnapshot stored in the given file.
+   * @throws IOException
+   *           if an I/O error occurs, or the file cannot be parsed
+   */
+  public static LdapSnapshot read(File file) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    return objectMapper.readValue(file, LdapSnapshot.class);
+  }
+
+  /**
+   * Writes this snapshot to the given file. The snapshot is first written to a
+   * temporary file, which then replaces the given file, so that an
+   * interrupted write does not leave a truncated snapshot behind.
+   *
+   * @param file
+   *          the file to write
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public void write(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    ObjectMapper objectMapper = new ObjectMapper();
+    objectMapper.writeValue(tempFile, this);
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
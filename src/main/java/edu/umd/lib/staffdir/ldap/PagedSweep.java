@@ -0,0 +1,156 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves every entry under the search base matching a single filter, using
+ * the RFC 2696 "Simple Paged Results" control.
+ * <p>
+ * This is an alternative to OR-ing together batches of "(uid=...)" clauses,
+ * which is more efficient when most of the entries under the search base are
+ * needed. Entries are streamed to a Consumer a page at a time, so that the
+ * caller can join them against the requested uids without holding the whole
+ * result set.
+ */
+class PagedSweep {
+  public static final Logger log = LoggerFactory.getLogger(PagedSweep.class);
+
+  private final String searchBaseDn;
+  private final String filter;
+  private final int pageSize;
+  private final String[] returningAttributes;
+  private final Deadline deadline;
+
+  /**
+   * Constructs a PagedSweep.
+   *
+   * @param searchBaseDn
+   *          the base DN at which to start the search.
+   * @param filter
+   *          the server-side LDAP filter restricting the entries returned
+   * @param pageSize
+   *          the number of entries to request in each page
+   * @param returningAttributes
+   *          the LDAP attributes to return for each entry
+   * @param deadline
+   *          the Deadline after which no further pages are requested
+   */
+  public PagedSweep(String searchBaseDn, String filter, int pageSize, String[] returningAttributes,
+      Deadline deadline) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1.");
+    }
+    this.searchBaseDn = searchBaseDn;
+    this.filter = filter;
+    this.pageSize = pageSize;
+    this.returningAttributes = returningAttributes;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Performs the paged search on the given context, passing each entry to the
+   * given Consumer as it is received.
+   * <p>
+   * The request controls of the context are cleared when this method returns,
+   * so that the context can be reused for ordinary searches.
+   *
+   * @param ctx
+   *          the bound LdapContext to search with
+   * @param consumer
+   *          the Consumer to pass each SearchResult to
+   * @return the number of pages retrieved
+   * @throws TimeLimitExceededException
+   *           if the deadline passes before the last page is retrieved
+   * @throws NamingException
+   *           if the search fails
+   */
+  public int search(LdapContext ctx, Consumer<SearchResult> consumer) throws NamingException {
+    Name name = new LdapName(searchBaseDn);
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchControls.setReturningAttributes(returningAttributes);
+
+    int pages = 0;
+    byte[] cookie = null;
+    try {
+      do {
+        ctx.setRequestControls(new Control[] { createPagedResultsControl(cookie) });
+        NamingEnumeration<SearchResult> results = ctx.search(name, filter, searchControls);
+        try {
+          while ((results != null) && results.hasMore()) {
+            consumer.accept(results.next());
+          }
+        } finally {
+          if (results != null) {
+            results.close();
+          }
+        }
+        pages++;
+        cookie = getCookie(ctx.getResponseControls());
+        log.debug("Retrieved page {} of paged LDAP search.", pages);
+        if ((cookie != null) && (cookie.length > 0) && deadline.isExpired()) {
+          throw new TimeLimitExceededException("Deadline exceeded after " + pages + " page(s).");
+        }
+      } while ((cookie != null) && (cookie.length > 0));
+    } finally {
+      ctx.setRequestControls(null);
+    }
+    return pages;
+  }
+
+  /**
+   * Returns a PagedResultsControl for the given cookie.
+   *
+   * @param cookie
+   *          the cookie returned by the server for the previous page, or null
+   *          for the first page
+   * @return a PagedResultsControl for the given cookie.
+   * @throws NamingException
+   *           if the control cannot be encoded
+   */
+  private PagedResultsControl createPagedResultsControl(byte[] cookie) throws NamingException {
+    try {
+      return new PagedResultsControl(pageSize, cookie, Control.CRITICAL);
+    } catch (IOException ioe) {
+      NamingException ne = new NamingException("Unable to encode paged results control.");
+      ne.setRootCause(ioe);
+      throw ne;
+    }
+  }
+
+  /**
+   * Returns the paged results cookie from the given response controls, or
+   * null if there is no cookie (indicating the last page has been returned).
+   *
+   * @param responseControls
+   *          the response controls from the most recent search
+   * @return the paged results cookie, or null if there is no cookie.
+   */
+  private static byte[] getCookie(Control[] responseControls) {
+    if (responseControls == null) {
+      return null;
+    }
+    for (Control control : responseControls) {
+      if (control instanceof PagedResultsResponseControl) {
+        return ((PagedResultsResponseControl) control).getCookie();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,187 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool which shares a small number of bound connections among many
+ * concurrent borrowers.
+ * <p>
+ * LDAP allows a client to send several requests on a connection without
+ * waiting for the earlier responses, which are matched to their requests by
+ * message id. The JNDI LDAP provider does this for contexts derived (using
+ * "newInstance") from the same bound context, as they share its connection.
+ * Each borrower is given its own derived context, so searches are pipelined
+ * over the shared connections instead of each needing a connection (and a
+ * bind) of its own.
+ * <p>
+ * The number of contexts in use at one time, and therefore the number of
+ * outstanding searches, is limited to the given pipeline depth.
+ */
+class PipelinedContextPool implements ContextPool {
+  public static final Logger log = LoggerFactory.getLogger(PipelinedContextPool.class);
+
+  private final Hashtable<String, Object> env;
+  private final LdapContext[] connections;
+  private final Semaphore permits;
+
+  // The connection each borrowed context was derived from
+  private final Map<LdapContext, LdapContext> borrowed = new IdentityHashMap<>();
+  private int nextConnection = 0;
+  private int contextsCreated = 0;
+  private boolean closed = false;
+
+  /**
+   * Constructs a PipelinedContextPool.
+   *
+   * @param env
+   *          the Hashtable representing the LDAP environment context
+   * @param numConnections
+   *          the number of bound connections to share
+   * @param pipelineDepth
+   *          the maximum number of contexts in use at one time
+   */
+  public PipelinedContextPool(Hashtable<String, Object> env, int numConnections, int pipelineDepth) {
+    if (numConnections < 1) {
+      throw new IllegalArgumentException("numConnections must be at least 1.");
+    }
+    if (pipelineDepth < 1) {
+      throw new IllegalArgumentException("pipelineDepth must be at least 1.");
+    }
+    this.env = env;
+    this.connections = new LdapContext[numConnections];
+    this.permits = new Semaphore(pipelineDepth);
+  }
+
+  /**
+   * Returns a context sharing one of the pooled connections, binding the
+   * connection first if necessary. The connections are used in rotation.
+   * This method blocks if the pipeline depth has been reached.
+   *
+   * @return a context sharing one of the pooled connections
+   * @throws NamingException
+   *           if a connection cannot be bound
+   */
+  @Override
+  public LdapContext borrow() throws NamingException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for an LDAP context.", ie);
+    }
+
+    try {
+      synchronized (this) {
+        if (closed) {
+          throw new IllegalStateException("PipelinedContextPool is closed.");
+        }
+        int index = nextConnection;
+        nextConnection = (nextConnection + 1) % connections.length;
+        if (connections[index] == null) {
+          connections[index] = new InitialLdapContext(env, null);
+          contextsCreated++;
+        }
+        LdapContext connection = connections[index];
+        LdapContext ctx = connection.newInstance(null);
+        borrowed.put(ctx, connection);
+        return ctx;
+      }
+    } catch (NamingException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes the given derived context, leaving its connection open for the
+   * other borrowers.
+   *
+   * @param ctx
+   *          the LdapContext to return
+   */
+  @Override
+  public void release(LdapContext ctx) {
+    synchronized (this) {
+      borrowed.remove(ctx);
+    }
+    closeQuietly(ctx);
+    permits.release();
+  }
+
+  /**
+   * Closes the given derived context, and the connection it was derived from,
+   * so that the connection is bound again on the next borrow. Other contexts
+   * still using the connection will fail, and be invalidated in turn.
+   *
+   * @param ctx
+   *          the LdapContext to discard
+   */
+  @Override
+  public void invalidate(LdapContext ctx) {
+    LdapContext connection;
+    synchronized (this) {
+      connection = borrowed.remove(ctx);
+      for (int i = 0; i < connections.length; i++) {
+        if ((connection != null) && (connections[i] == connection)) {
+          log.info("Discarding broken pipelined LDAP connection.");
+          connections[i] = null;
+        }
+      }
+    }
+    closeQuietly(ctx);
+    if (connection != null) {
+      closeQuietly(connection);
+    }
+    permits.release();
+  }
+
+  @Override
+  public synchronized int getContextsCreated() {
+    return contextsCreated;
+  }
+
+  /**
+   * Closes the shared connections. Contexts still borrowed keep their
+   * connection open until they are handed back.
+   */
+  @Override
+  public void close() {
+    LdapContext[] toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = connections.clone();
+      for (int i = 0; i < connections.length; i++) {
+        connections[i] = null;
+      }
+    }
+    for (LdapContext connection : toClose) {
+      if (connection != null) {
+        closeQuietly(connection);
+      }
+    }
+  }
+
+  /**
+   * Closes the given context, logging (but otherwise ignoring) any errors.
+   *
+   * @param ctx
+   *          the LdapContext to close
+   */
+  private static void closeQuietly(LdapContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException ne) {
+      log.debug("Error closing LDAP context.", ne);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of interchangeable LDAP servers (replicas), each with its own pool of
+ * bound contexts.
+ * <p>
+ * The latency and error rate of each replica are tracked as exponentially
+ * weighted moving averages. Searches are routed to the healthy replica with
+ * the lowest latency. A replica that fails is considered unhealthy for a
+ * cooldown period, after which it is tried again.
+ * <p>
+ * This class is thread-safe.
+ */
+class ReplicaSet implements Closeable {
+  public static final Logger log = LoggerFactory.getLogger(ReplicaSet.class);
+
+  /**
+   * The default number of milliseconds a failed replica is avoided.
+   */
+  public static final long DEFAULT_COOLDOWN_MILLIS = 60_000;
+
+  /**
+   * The weight given to the newest sample in the moving averages.
+   */
+  private static final double SMOOTHING = 0.3;
+
+  /**
+   * A single LDAP server, and the statistics recorded for it.
+   */
+  static class Replica {
+    private final String url;
+    private final ContextPool pool;
+
+    private double latencyMillis = 0;
+    private double errorRate = 0;
+    private boolean measured = false;
+    private long unhealthyUntil = 0;
+    private int searches = 0;
+    private int failures = 0;
+
+    Replica(String url, ContextPool pool) {
+      this.url = url;
+      this.pool = pool;
+    }
+
+    /**
+     * @return the URL of the LDAP server
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return the pool of bound contexts for the LDAP server
+     */
+    public ContextPool getPool() {
+      return pool;
+    }
+
+    @Override
+    public String toString() {
+      return url;
+    }
+  }
+
+  private final List<Replica> replicas = new ArrayList<>();
+  private final long cooldownMillis;
+
+  /**
+   * Constructs a ReplicaSet.
+   *
+   * @param urls
+   *          the URLs of the LDAP servers, in order of preference
+   * @param poolFactory
+   *          returns the pool of bound contexts to use for a given server URL
+   * @param cooldownMillis
+   *          the number of milliseconds a failed replica is avoided
+   */
+  public ReplicaSet(Collection<String> urls, Function<String, ContextPool> poolFactory, long cooldownMillis) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("At least one LDAP URL is required.");
+    }
+    for (String url : urls) {
+      replicas.add(new Replica(url, poolFactory.apply(url)));
+    }
+    this.cooldownMillis = cooldownMillis;
+  }
+
+  /**
+   * Measures the latency of each replica by binding to it and reading its root
+   * DSE. Replicas that cannot be reached are marked unhealthy.
+   * <p>
+   * Probing is skipped when there is only one replica, as there is no choice
+   * to be made.
+   */
+  public void probe() {
+    if (replicas.size() < 2) {
+      return;
+    }
+
+    for (Replica replica : replicas) {
+      long start = System.nanoTime();
+      LdapContext ctx = null;
+      try {
+        ctx = replica.pool.borrow();
+        ctx.getAttributes("", new String[] { "supportedLDAPVersion" });
+        recordSuccess(replica, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.debug("LDAP server {} responded in {} ms.", replica, replica.latencyMillis);
+      } catch (NamingException ne) {
+        log.warn("WARNING: LDAP server {} is not responding.", replica, ne);
+        recordFailure(replica);
+        if (ctx != null) {
+          replica.pool.invalidate(ctx);
+          ctx = null;
+        }
+      } finally {
+        if (ctx != null) {
+          replica.pool.release(ctx);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the replica to use for the next search, excluding any that have
+   * already been tried for it.
+   * <p>
+   * Healthy replicas are preferred, lowest latency first. If every remaining
+   * replica is unhealthy, the one that will recover soonest is returned, so
+   * that a search is never abandoned without trying every server.
+   *
+   * @param tried
+   *          the replicas already tried for this search
+   * @return the replica to use for the next search, or null if every replica
+   *         has been tried.
+   */
+  public synchronized Replica select(Collection<Replica> tried) {
+    long now = System.currentTimeMillis();
+    Replica best = null;
+    for (Replica replica : replicas) {
+      if (tried.contains(replica)) {
+        continue;
+      }
+      if ((best == null) || isPreferred(replica, best, now)) {
+        best = replica;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Records that a search on the given replica succeeded.
+   *
+   * @param replica
+   *          the replica the search was performed on
+   * @param latencyMillis
+   *          the number of milliseconds the search took
+   */
+  public synchronized void recordSuccess(Replica replica, long latencyMillis) {
+    replica.searches++;
+    replica.latencyMillis = replica.measured ? average(replica.latencyMillis, latencyMillis) : latencyMillis;
+    replica.measured = true;
+    replica.errorRate = average(replica.errorRate, 0);
+  }
+
+  /**
+   * Records that a search on the given replica failed, making it unhealthy
+   * for the cooldown period.
+   *
+   * @param replica
+   *          the replica the search was performed on
+   */
+  public synchronized void recordFailure(Replica replica) {
+    replica.searches++;
+    replica.failures++;
+    replica.errorRate = average(replica.errorRate, 1);
+    replica.unhealthyUntil = System.currentTimeMillis() + cooldownMillis;
+  }
+
+  /**
+   * @return the number of replicas in this set
+   */
+  public int size() {
+    return replicas.size();
+  }
+
+  /**
+   * @return the total number of contexts bound to all the replicas
+   */
+  public int getContextsCreated() {
+    int total = 0;
+    for (Replica replica : replicas) {
+      total += replica.pool.getContextsCreated();
+    }
+    return total;
+  }
+
+  /**
+   * Logs the number of searches, failures, and average latency recorded for
+   * each replica.
+   */
+  public synchronized void logStatistics() {
+    for (Replica replica : replicas) {
+      log.info("LDAP server {}: {} searches, {} failures, {} ms average latency, {}% error rate", replica,
+          replica.searches, replica.failures, Math.round(replica.latencyMillis),
+          Math.round(replica.errorRate * 100));
+    }
+  }
+
+  /**
+   * Closes the context pools of all the replicas.
+   */
+  @Override
+  public void close() {
+    for (Replica replica : replicas) {
+      replica.pool.close();
+    }
+  }
+
+  /**
+   * Returns true if the first replica should be used in preference to the
+   * second, false otherwise.
+   *
+   * @param replica
+   *          the candidate replica
+   * @param other
+   *          the best replica found so far
+   * @param now
+   *          the current time, in milliseconds since the epoch
+   * @return true if the first replica should be used in preference to the
+   *         second, false otherwise.
+   */
+  private static boolean isPreferred(Replica replica, Replica other, long now) {
+    boolean healthy = replica.unhealthyUntil <= now;
+    boolean otherHealthy = other.unhealthyUntil <= now;
+    if (healthy != otherHealthy) {
+      return healthy;
+    }
+    if (!healthy) {
+      return replica.unhealthyUntil < other.unhealthyUntil;
+    }
+    return replica.latencyMillis < other.latencyMillis;
+  }
+
+  /**
+   * Returns the moving average updated with the given sample.
+   *
+   * @param average
+   *          the current moving average
+   * @param sample
+   *          the new sample
+   * @return the moving average updated with the given sample.
+   */
+  private static double average(double average, double sample) {
+    return (SMOOTHING * sample) + ((1 - SMOOTHING) * average);
+  }
+}
@@ -0,0 +1,68 @@
+package edu.umd.lib.staffdir;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsonUtilsTest {
+  @Test
+  public void testWriteToJson() throws Exception {
+    List<Person> persons = createPersons(3);
+    // The streamed output matches serializing the whole List at once
+    String expected = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(persons)
+        + System.lineSeparator();
+
+    File jsonFile = File.createTempFile("persons", ".json");
+    try {
+      JsonUtils.writeToJson(persons, jsonFile.getPath());
+      assertEquals(expected, new String(Files.readAllBytes(jsonFile.toPath()), StandardCharsets.UTF_8));
+
+      JsonUtils.writeToJson(persons.stream(), jsonFile.getPath());
+      assertEquals(expected, new String(Files.readAllBytes(jsonFile.toPath()), StandardCharsets.UTF_8));
+
+      List<Person> readPersons = JsonUtils.readFromJson(jsonFile.getPath());
+      assertEquals(3, readPersons.size());
+      assertEquals("user2", readPersons.get(2).uid);
+      assertEquals("Surname2", readPersons.get(2).get("LDAP", "sn"));
+
+      // No persons
+      JsonUtils.writeToJson(new ArrayList<Person>().iterator(), jsonFile.getPath());
+      assertEquals(0, JsonUtils.readFromJson(jsonFile.getPath()).size());
+    } finally {
+      jsonFile.delete();
+    }
+
+    StringWriter sw = new StringWriter();
+    try (PrintWriter out = new PrintWriter(sw)) {
+      JsonUtils.writeToJson(persons, out);
+      // The PrintWriter is left open for the caller
+      out.print("end");
+    }
+    assertEquals(expected + "end", sw.toString());
+  }
+
+  private static List<Person> createPersons(int count) {
+    List<Person> persons = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Map<String, String> ldap = new TreeMap<>();
+      ldap.put("givenName", "Given" + i);
+      ldap.put("sn", "Surname" + i);
+      Map<String, Map<String, String>> sources = new TreeMap<>();
+      sources.put("LDAP", ldap);
+      persons.add(new Person("user" + i, sources));
+    }
+    return persons;
+  }
+}
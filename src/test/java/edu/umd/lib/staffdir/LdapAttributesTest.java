@@ -0,0 +1,52 @@
+package edu.umd.lib.staffdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LdapAttributesTest {
+  private static Map<String, String> mapping(String destinationField, String source, String sourceField) {
+    Map<String, String> fieldMapping = new HashMap<>();
+    fieldMapping.put("Destination Field", destinationField);
+    fieldMapping.put("Source", source);
+    fieldMapping.put("Source Field", sourceField);
+    return fieldMapping;
+  }
+
+  @Test
+  public void testGetRequiredAttributes_derivedOnly() {
+    Set<String> attributes = LdapAttributes.getRequiredAttributes(Collections.emptyList());
+    assertEquals(Arrays.asList("givenName", "mail", "sn", "uid", "umDisplayTitle", "umOfficialTitle",
+        "umPrimaryCampusBuilding", "umPrimaryCampusRoom"), new ArrayList<>(attributes));
+  }
+
+  @Test
+  public void testGetRequiredAttributes_ldapSourceFields() {
+    List<Map<String, String>> allStaffListMappings = Arrays.asList(
+        mapping("Phone", "LDAP", "telephoneNumber"),
+        mapping("Division", "Staff", "Division"),
+        mapping("Expr1", "Derived", "givenName + sn + mail"));
+    List<Map<String, String>> drupalMappings = Arrays.asList(
+        mapping("status", "LDAP", " umCatStatus "),
+        mapping("blank", "LDAP", ""));
+
+    Set<String> attributes = LdapAttributes.getRequiredAttributes(
+        Arrays.asList(allStaffListMappings, drupalMappings));
+    assertTrue(attributes.contains("telephoneNumber"));
+    assertTrue(attributes.contains("umCatStatus"));
+    assertFalse(attributes.contains("Division"));
+    assertFalse(attributes.contains("givenName + sn + mail"));
+    assertFalse(attributes.contains(""));
+    assertFalse(attributes.contains("umOptionalTitle"));
+  }
+}
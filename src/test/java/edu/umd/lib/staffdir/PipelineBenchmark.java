@@ -0,0 +1,207 @@
+package edu.umd.lib.staffdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import edu.umd.lib.staffdir.google.FakeGoogleServer;
+import edu.umd.lib.staffdir.ldap.InMemoryLdapServer;
+
+/**
+ * Measures the end-to-end time of the "staff-retriever",
+ * "all-staff-list-builder" (including the Drive upload), and "drupal-builder"
+ * applications, run against a local stand-in for the Google Sheets and Drive
+ * APIs and an in-memory LDAP server, with 1,000 and 10,000 synthetic staff
+ * members, and several injected Google API latencies.
+ * <p>
+ * The benchmark takes several minutes, so it is skipped unless the
+ * "pipeline.benchmark" system property is "true":
+ *
+ * <pre>
+ * mvn test -Dtest=PipelineBenchmark -Dpipeline.benchmark=true
+ * </pre>
+ *
+ * The sizes and latencies (in milliseconds) may be overridden with
+ * comma-separated lists in the "pipeline.benchmark.sizes" and
+ * "pipeline.benchmark.latencies" system properties.
+ */
+public class PipelineBenchmark {
+  private static final String DEFAULT_SIZES = "1000,10000";
+  private static final String DEFAULT_LATENCIES = "0,50,200";
+  private static final int COST_CENTERS = 50;
+  private static final int UNUSED_COLUMNS = 20;
+  private static final String DOC_ID = "benchmark-doc";
+  private static final String UPLOAD_ID = "benchmark-upload";
+
+  @Test
+  public void benchmark() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("pipeline.benchmark"));
+
+    for (String size : System.getProperty("pipeline.benchmark.sizes", DEFAULT_SIZES).split(",")) {
+      int numStaff = Integer.parseInt(size.trim());
+      try (InMemoryLdapServer ldapServer = new InMemoryLdapServer(numStaff)) {
+        Map<String, List<List<Object>>> fixture = createFixture(numStaff);
+        for (String latency : System.getProperty("pipeline.benchmark.latencies", DEFAULT_LATENCIES).split(",")) {
+          run(ldapServer, fixture, numStaff, Long.parseLong(latency.trim()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs each application once, against a new Google API stand-in with the
+   * given latency, printing the elapsed time of each.
+   *
+   * @param ldapServer
+   *          the LDAP server to retrieve the staff from
+   * @param fixture
+   *          the sheets of the Google Sheets document, keyed by sheet name
+   * @param numStaff
+   *          the number of staff members in the Staff sheet
+   * @param latencyMillis
+   *          the latency to inject into each Google API response
+   */
+  private static void run(InMemoryLdapServer ldapServer, Map<String, List<List<Object>>> fixture, int numStaff,
+      long latencyMillis) throws Exception {
+    File dir = Files.createTempDirectory("pipeline-benchmark").toFile();
+    try (FakeGoogleServer googleServer = new FakeGoogleServer()) {
+      googleServer.addSheets(fixture);
+      googleServer.setLatencyMillis(latencyMillis);
+      File configFile = writeConfig(dir, googleServer, ldapServer);
+      String config = configFile.getPath();
+      String persons = new File(dir, "persons.json").getPath();
+      String allStaffList = new File(dir, "All Staff List.xlsx").getPath();
+      String drupal = new File(dir, "drupal.json").getPath();
+
+      long retrieverNanos = time(() -> StaffRetriever.main(
+          new String[] { "--config", config, "--output", persons }));
+      int retrieverRequests = googleServer.getRequests().size();
+      assertEquals(numStaff, JsonUtils.readFromJson(persons).size());
+
+      long allStaffListNanos = time(() -> AllStaffListBuilder.main(
+          new String[] { "--config", config, "--input", persons, "--output", allStaffList,
+              "--upload", "true", "--uploadId", UPLOAD_ID }));
+      assertTrue(googleServer.getUploads().containsKey(UPLOAD_ID));
+      assertEquals(new File(allStaffList).length(), googleServer.getUploads().get(UPLOAD_ID).length);
+
+      long drupalNanos = time(() -> DrupalBuilder.main(
+          new String[] { "--config", config, "--input", persons, "--output", drupal }));
+      assertTrue(new File(drupal).length() > 0);
+
+      System.out.println(String.format(
+          "%6d staff  latency %4d ms  staff-retriever %8.1f ms (%d requests)  "
+              + "all-staff-list-builder %8.1f ms  drupal-builder %8.1f ms  total %8.1f ms",
+          numStaff, latencyMillis, toMillis(retrieverNanos), retrieverRequests, toMillis(allStaffListNanos),
+          toMillis(drupalNanos), toMillis(retrieverNanos + allStaffListNanos + drupalNanos)));
+    } finally {
+      try (Stream<File> files = Files.walk(dir.toPath()).map(Path::toFile)) {
+        files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+      }
+    }
+  }
+
+  /**
+   * Writes the service account credentials file and the configuration
+   * properties file for the given servers to the given directory.
+   *
+   * @return the configuration properties file
+   */
+  private static File writeConfig(File dir, FakeGoogleServer googleServer, InMemoryLdapServer ldapServer)
+      throws IOException {
+    File credentialsFile = new File(dir, "service-account.json");
+    googleServer.writeCredentialsFile(credentialsFile);
+
+    Properties props = new Properties();
+    props.setProperty("appName", "staffdirectory-ldap-benchmark");
+    props.setProperty("serviceAccountCredentialsFile", credentialsFile.getPath());
+    props.setProperty("spreadsheetDocId", DOC_ID);
+    props.setProperty("googleRootUrl", googleServer.getRootUrl());
+    props.setProperty("ldap.url", ldapServer.getUrl());
+    props.setProperty("ldap.authentication", "simple");
+    props.setProperty("ldap.bindDn", InMemoryLdapServer.BIND_DN);
+    props.setProperty("ldap.credentials", InMemoryLdapServer.PASSWORD);
+    props.setProperty("ldap.searchBaseDn", InMemoryLdapServer.SEARCH_BASE_DN);
+
+    File configFile = new File(dir, "config.properties");
+    try (OutputStream out = new FileOutputStream(configFile)) {
+      props.store(out, null);
+    }
+    return configFile;
+  }
+
+  /**
+   * Returns the sheets of a synthetic Google Sheets document with the given
+   * number of staff members, whose uids match those of the InMemoryLdapServer
+   * entries. The mapping sheets are those used by the generator tests.
+   *
+   * @param numStaff
+   *          the number of staff members in the Staff sheet
+   * @return the sheets of the document, keyed by sheet name
+   */
+  private static Map<String, List<List<Object>>> createFixture(int numStaff) throws Exception {
+    Map<String, List<List<Object>>> sheets = new LinkedHashMap<>();
+
+    List<Object> staffHeaders = new ArrayList<>(Arrays.asList("Directory ID", "Name", "Cost Center", "Appt Fte",
+        "Faculty Perm Status", "Functional Title"));
+    for (int c = 0; c < UNUSED_COLUMNS; c++) {
+      staffHeaders.add("Unused " + c);
+    }
+    List<List<Object>> staff = new ArrayList<>();
+    staff.add(staffHeaders);
+    for (int i = 0; i < numStaff; i++) {
+      List<Object> row = new ArrayList<>(Arrays.asList(InMemoryLdapServer.getUid(i), "Surname" + i + ", Given" + i,
+          getCostCenter(i % COST_CENTERS), "1.0", "Perm", (i % 3 == 0) ? "Functional Title " + i : ""));
+      for (int c = 0; c < UNUSED_COLUMNS; c++) {
+        row.add("Unused value " + i + "-" + c);
+      }
+      staff.add(row);
+    }
+    sheets.put("Staff", staff);
+
+    List<List<Object>> organization = new ArrayList<>();
+    organization.add(Arrays.asList("Cost Center", "Division Code", "Division", "Department", "Unit", "Location"));
+    for (int i = 0; i < COST_CENTERS; i++) {
+      organization.add(Arrays.asList(getCostCenter(i), "D" + (i % 5), "Division " + (i % 5),
+          "Department " + (i % 10), "Unit " + i, "McKeldin Library"));
+    }
+    sheets.put("Organization", organization);
+
+    sheets.put("All Staff List Mapping",
+        TestUtils.rowsFromCsvFile("src/test/resources/excel/allStaffFieldMappings.csv"));
+    sheets.put("Drupal Mapping", TestUtils.rowsFromCsvFile("src/test/resources/drupal/drupalMappings.csv"));
+    sheets.put("CategoryStatus", TestUtils.rowsFromCsvFile("src/test/resources/excel/categoryStatusMap.csv"));
+    return sheets;
+  }
+
+  private static String getCostCenter(int index) {
+    return String.valueOf(100000 + index);
+  }
+
+  private static long time(Runnable runnable) {
+    long start = System.nanoTime();
+    runnable.run();
+    return System.nanoTime() - start;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,45 @@
+package edu.umd.lib.staffdir;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StaffColumnsTest {
+  private static Map<String, String> mapping(String destinationField, String source, String sourceField) {
+    Map<String, String> fieldMapping = new HashMap<>();
+    fieldMapping.put("Destination Field", destinationField);
+    fieldMapping.put("Source", source);
+    fieldMapping.put("Source Field", sourceField);
+    return fieldMapping;
+  }
+
+  @Test
+  public void testGetRequiredColumns() {
+    List<Map<String, String>> allStaffListMappings = Arrays.asList(
+        mapping("Phone", "LDAP", "telephoneNumber"),
+        mapping("Employee Type", "Staff", " Employee Type "),
+        mapping("Division", "Organization", "Division"));
+    List<Map<String, String>> drupalMappings = Arrays.asList(
+        mapping("directory_id", "Staff", "Directory ID"),
+        mapping("blank", "Staff", ""));
+
+    Set<String> columns = StaffColumns.getRequiredColumns(Arrays.asList("Directory ID", "Cost Center"),
+        Arrays.asList(allStaffListMappings, drupalMappings));
+    assertEquals(Arrays.asList("Cost Center", "Directory ID", "Employee Type", "Functional Title"),
+        new ArrayList<>(columns));
+  }
+
+  @Test
+  public void testGetRequiredColumns_derivedOnly() {
+    Set<String> columns = StaffColumns.getRequiredColumns(Collections.emptyList(), Collections.emptyList());
+    assertEquals(Collections.singletonList("Functional Title"), new ArrayList<>(columns));
+  }
+}
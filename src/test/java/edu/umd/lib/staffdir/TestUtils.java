@@ -38,4 +38,26 @@ public class TestUtils {
 
     return records;
   }
+
+  /**
+   * Converts a CSV file into a List of rows, each a List of cell values,
+   * including the header line, in the form returned by the Google Sheets API.
+   *
+   * @param filename
+   *          the filename of the CSV file.
+   * @return a List of the rows in the given CSV file.
+   * @throws Exception
+   *           if an Exception occurs
+   */
+  public static List<List<Object>> rowsFromCsvFile(String filename) throws Exception {
+    List<List<Object>> rows = new ArrayList<>();
+    try (Reader in = new FileReader(filename)) {
+      for (CSVRecord csvRecord : CSVFormat.EXCEL.parse(in)) {
+        List<Object> row = new ArrayList<>();
+        csvRecord.forEach(row::add);
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
 }
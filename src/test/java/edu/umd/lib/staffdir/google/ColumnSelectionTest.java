@@ -0,0 +1,81 @@
+package edu.umd.lib.staffdir.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+public class ColumnSelectionTest {
+  private static final List<String> HEADER_ROW = Arrays.asList(
+      "Directory ID", "First Name", "Last Name", "Cost Center", "Functional Title", "Notes");
+
+  private static ValueRange valueRange(List<?>... rows) {
+    ValueRange valueRange = new ValueRange();
+    @SuppressWarnings("unchecked")
+    List<List<Object>> values = Arrays.asList((List<Object>[]) rows);
+    valueRange.setValues(values);
+    return valueRange;
+  }
+
+  @Test
+  public void testToColumnLetters() {
+    assertEquals("A", ColumnSelection.toColumnLetters(0));
+    assertEquals("Z", ColumnSelection.toColumnLetters(25));
+    assertEquals("AA", ColumnSelection.toColumnLetters(26));
+    assertEquals("AZ", ColumnSelection.toColumnLetters(51));
+    assertEquals("BA", ColumnSelection.toColumnLetters(52));
+    assertEquals("ZZ", ColumnSelection.toColumnLetters(701));
+    assertEquals("AAA", ColumnSelection.toColumnLetters(702));
+  }
+
+  @Test
+  public void testGetRanges() {
+    ColumnSelection selection = new ColumnSelection("Staff", HEADER_ROW,
+        Arrays.asList("Functional Title", "Directory ID", "Cost Center", "Not a column"));
+    assertEquals(Arrays.asList("'Staff'!A:A", "'Staff'!D:E"), selection.getRanges());
+    assertEquals(Collections.singletonList("Not a column"), selection.getMissingColumns());
+
+    selection = new ColumnSelection("Bob's Sheet", HEADER_ROW, Arrays.asList("Directory ID"));
+    assertEquals(Arrays.asList("'Bob''s Sheet'!A:A"), selection.getRanges());
+  }
+
+  @Test
+  public void testToTable() {
+    ColumnSelection selection = new ColumnSelection("Staff", HEADER_ROW,
+        Arrays.asList("Directory ID", "Cost Center", "Functional Title"));
+    SheetTable table = selection.toTable(Arrays.asList(
+        valueRange(
+            Arrays.asList("Directory ID"),
+            Arrays.asList("jsmith"),
+            Arrays.asList("jdoe"),
+            Arrays.asList("mjones")),
+        // Trailing empty cells and rows are omitted
+        valueRange(
+            Arrays.asList("Cost Center", "Functional Title"),
+            Arrays.asList("12345", "Librarian"),
+            Arrays.asList("45678"))));
+
+    assertEquals(Arrays.asList("Directory ID", "Cost Center", "Functional Title"), table.getHeaders());
+    assertEquals(3, table.size());
+    assertEquals("Librarian", table.get(0, "Functional Title"));
+    assertEquals("45678", table.get(1, "Cost Center"));
+    assertNull(table.get(1, "Functional Title"));
+    assertEquals("mjones", table.get(2, "Directory ID"));
+    assertNull(table.get(2, "Cost Center"));
+  }
+
+  @Test
+  public void testToTable_columnsMoved() {
+    ColumnSelection selection = new ColumnSelection("Staff", HEADER_ROW, Arrays.asList("Cost Center"));
+    assertNull(selection.toTable(Arrays.asList(
+        valueRange(Arrays.asList("Last Name"), Arrays.asList("Smith")))));
+    assertNull(selection.toTable(Arrays.asList(new ValueRange())));
+    assertNull(selection.toTable(null));
+  }
+}
@@ -0,0 +1,69 @@
+package edu.umd.lib.staffdir.google;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+public class DriveUploaderTest {
+  @Test
+  public void testUpdateFile() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    File outputFile = File.createTempFile("all-staff-list", ".xlsx");
+    try (FakeGoogleServer server = new FakeGoogleServer()) {
+      server.writeCredentialsFile(credentialsFile);
+      byte[] contents = "Not really a spreadsheet".getBytes(StandardCharsets.UTF_8);
+      Files.write(outputFile.toPath(), contents);
+
+      GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+          credentialsFile.getPath());
+      clientFactory.setRootUrl(server.getRootUrl());
+      clientFactory.setScopes(GoogleClientFactory.UPLOAD_SCOPES);
+      DriveUploader uploader = new DriveUploader(clientFactory);
+
+      assertEquals("upload-id", uploader.UpdateFile(outputFile.getPath(), "upload-id"));
+      assertTrue(server.getUploads().containsKey("upload-id"));
+      assertArrayEquals(contents, server.getUploads().get("upload-id"));
+      assertEquals(Arrays.asList(GoogleClientFactory.UPLOAD_SCOPES), server.getTokenScopes());
+    } finally {
+      credentialsFile.delete();
+      outputFile.delete();
+    }
+  }
+
+  @Test
+  public void testUpdateFileWithReadOnlyScopes() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    File outputFile = File.createTempFile("all-staff-list", ".xlsx");
+    try (FakeGoogleServer server = new FakeGoogleServer()) {
+      server.writeCredentialsFile(credentialsFile);
+      Files.write(outputFile.toPath(), "Not really a spreadsheet".getBytes(StandardCharsets.UTF_8));
+
+      GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+          credentialsFile.getPath());
+      clientFactory.setRootUrl(server.getRootUrl());
+      DriveUploader uploader = new DriveUploader(clientFactory);
+
+      try {
+        uploader.UpdateFile(outputFile.getPath(), "upload-id");
+        fail("Upload should require the drive scope");
+      } catch (GoogleJsonResponseException e) {
+        assertEquals(403, e.getStatusCode());
+      }
+      assertTrue(server.getUploads().isEmpty());
+      assertEquals(Arrays.asList(GoogleClientFactory.READ_ONLY_SCOPES), server.getTokenScopes());
+    } finally {
+      credentialsFile.delete();
+      outputFile.delete();
+    }
+  }
+}
@@ -1,12 +1,18 @@
 package edu.umd.lib.staffdir.google;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -132,4 +138,85 @@ public class OrganizationTest {
     assertEquals("032200", Organization.getDepartmentCostCenter("032211"));
   }
 
+  @Test
+  public void testHierarchy() {
+    Map<String, String> unitWithoutDepartment = new HashMap<>();
+    unitWithoutDepartment.put("Cost Center", "034405");
+    unitWithoutDepartment.put("Unit", "Mail Room");
+    rawOrganizationList.add(unitWithoutDepartment);
+    Organization organization = new Organization(rawOrganizationList, "Cost Center");
+
+    assertNull(organization.getParent("030000"));
+    assertEquals("030000", organization.getParent("031800"));
+    assertEquals("032200", organization.getParent("032211"));
+    assertEquals("030000", organization.getParent("034405"));
+    assertNull(organization.getParent("999999"));
+
+    assertEquals(Arrays.asList("032200", "030000"), organization.getAncestors("032211"));
+    assertTrue(organization.getAncestors("030000").isEmpty());
+
+    assertEquals(Arrays.asList("031800", "032200", "034405"), organization.getChildren("030000"));
+    assertEquals(Arrays.asList("032211"), organization.getChildren("032200"));
+    assertTrue(organization.getChildren("032211").isEmpty());
+    assertTrue(organization.getChildren("999999").isEmpty());
+
+    assertEquals(Arrays.asList("032211", "034405"),
+        organization.getDescendants("030000", Organization.Type.UNIT));
+    assertEquals(Arrays.asList("031800", "032200"),
+        organization.getDescendants("030000", Organization.Type.DEPARTMENT));
+
+    // A unit without a department is populated from its division only
+    Map<String, String> entry = organization.getOrganization("034405");
+    assertEquals("Dean's Office", entry.get("Division"));
+    assertEquals("Mail Room", entry.get("Unit"));
+    assertNull(entry.get("Department"));
+  }
+
+  @Test
+  public void testInvalidCostCenters() {
+    assertEquals(-1, Organization.parseCode(null));
+    assertEquals(-1, Organization.parseCode("12345"));
+    assertEquals(-1, Organization.parseCode("12A456"));
+    assertEquals(32211, Organization.parseCode("032211"));
+    assertEquals("032211", Organization.toCostCenter(32211));
+    assertNull(Organization.getType(""));
+
+    Map<String, String> invalid = new HashMap<>();
+    invalid.put("Cost Center", "N/A");
+    invalid.put("Division", "Unknown");
+    rawOrganizationList.add(invalid);
+    Organization organization = new Organization(rawOrganizationList, "Cost Center");
+    assertEquals("Unknown", organization.getOrganization("N/A").get("Division"));
+    assertNull(organization.getParent("N/A"));
+    assertEquals(Arrays.asList("031800", "032200"), organization.getChildren("030000"));
+  }
+
+  @Test
+  public void testGetOrganization() {
+    Organization organization = new Organization(rawOrganizationList, "Cost Center");
+    Map<String, Map<String, String>> costCentersMap = Organization.getCostCentersMap(rawOrganizationList,
+        "Cost Center");
+
+    // The same view is shared by every lookup
+    Map<String, String> entry = organization.getOrganization("032211");
+    assertSame(entry, organization.getOrganization("032211"));
+    assertNull(organization.getOrganization("999999"));
+
+    // The view matches the populated copy, with its keys in sorted order
+    assertEquals(Organization.populateEntry("032211", costCentersMap), entry);
+    assertEquals(new ArrayList<>(new TreeMap<>(entry).keySet()), new ArrayList<>(entry.keySet()));
+    assertTrue(entry.containsKey("Division"));
+    assertFalse(entry.containsKey("Not a field"));
+
+    // The division information is taken from the division row
+    rawOrganizationList.get(0).put("Division", "Renamed");
+    assertEquals("Renamed", entry.get("Division"));
+
+    try {
+      entry.put("Division", "Changed");
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException uoe) {
+      // Expected
+    }
+  }
 }
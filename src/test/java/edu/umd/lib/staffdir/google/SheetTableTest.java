@@ -0,0 +1,106 @@
+package edu.umd.lib.staffdir.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SheetTableTest {
+  private static SheetTable createTable() {
+    List<String[]> rows = Arrays.asList(
+        new String[] { "jsmith", "12345", "Library IT" },
+        // Trailing empty cells are omitted by the Sheets API
+        new String[] { "jdoe", " 45678 " });
+    return new SheetTable(Arrays.asList("Directory ID", "Cost Center", "Title"), rows);
+  }
+
+  @Test
+  public void testGet() {
+    SheetTable table = createTable();
+    assertEquals(2, table.size());
+    assertEquals(1, table.getColumnIndex("Cost Center"));
+    assertEquals(-1, table.getColumnIndex("Not a header"));
+
+    assertEquals("12345", table.get(0, 1));
+    assertEquals("Library IT", table.get(0, "Title"));
+    assertNull(table.get(1, "Title"));
+    assertNull(table.get(1, -1));
+    assertNull(table.get(0, "Not a header"));
+
+    table.trim();
+    assertEquals("45678", table.get(1, "Cost Center"));
+  }
+
+  @Test
+  public void testSelect() {
+    SheetTable table = createTable().select(Arrays.asList("Title", "Directory ID", "Not a header"));
+    assertEquals(Arrays.asList("Directory ID", "Title"), table.getHeaders());
+    assertEquals(2, table.size());
+    assertEquals("jsmith", table.get(0, "Directory ID"));
+    assertEquals("Library IT", table.get(0, "Title"));
+    assertNull(table.get(1, "Title"));
+    assertNull(table.get(0, "Cost Center"));
+  }
+
+  @Test
+  public void testRowMap() {
+    SheetTable table = createTable();
+    Map<String, String> expected = new HashMap<>();
+    expected.put("Directory ID", "jdoe");
+    expected.put("Cost Center", " 45678 ");
+
+    Map<String, String> rowMap = table.getRowMap(1);
+    assertEquals(expected, rowMap);
+    assertEquals(expected.hashCode(), rowMap.hashCode());
+    assertEquals(2, rowMap.size());
+    assertTrue(rowMap.containsKey("Cost Center"));
+    assertFalse(rowMap.containsKey("Title"));
+
+    List<Map<String, String>> maps = table.asMaps();
+    assertEquals(2, maps.size());
+    assertEquals("Library IT", maps.get(0).get("Title"));
+    assertEquals(expected, maps.get(1));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testRowMap_readOnly() {
+    createTable().getRowMap(0).put("Title", "Changed");
+  }
+
+  @Test
+  public void testRowMap_duplicateHeaders() {
+    SheetTable table = new SheetTable(Arrays.asList("Name", "Notes", "Notes"),
+        Arrays.<String[]>asList(new String[] { "a", "first", "second" }));
+    Map<String, String> expected = new HashMap<>();
+    expected.put("Name", "a");
+    expected.put("Notes", "second");
+    assertEquals(expected, table.getRowMap(0));
+  }
+
+  @Test
+  public void testFromMaps() {
+    SheetTable table = createTable();
+    SheetTable copy = SheetTable.fromMaps(table.asMaps());
+    assertEquals(table.asMaps(), copy.asMaps());
+    assertEquals("jdoe", copy.get(1, "Directory ID"));
+    assertNull(copy.get(1, "Title"));
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    SheetTable table = createTable();
+    ObjectMapper objectMapper = new ObjectMapper();
+    SheetTable read = objectMapper.readValue(objectMapper.writeValueAsString(table), SheetTable.class);
+    assertEquals(table, read);
+    assertEquals(1, read.getColumnIndex("Cost Center"));
+  }
+}
@@ -0,0 +1,109 @@
+package edu.umd.lib.staffdir.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SheetsCacheTest {
+  private static final String DOC_ID = "doc-id";
+
+  private static SheetTable rows(String value) {
+    return new SheetTable(Collections.singletonList("Header"), Collections.singletonList(new String[] { value }));
+  }
+
+  private static Map<String, SheetTable> sheets(String... namesAndValues) {
+    Map<String, SheetTable> sheets = new HashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      sheets.put(namesAndValues[i], rows(namesAndValues[i + 1]));
+    }
+    return sheets;
+  }
+
+  @Test
+  public void testGet() {
+    SheetsCache cache = new SheetsCache();
+    assertNull(cache.get(DOC_ID, "1", Arrays.asList("Staff")));
+
+    cache.put(DOC_ID, "1", "2024-01-01T00:00:00Z", sheets("Staff", "a", "Organization", "b"));
+    Map<String, SheetTable> results = cache.get(DOC_ID, "1", Arrays.asList("Organization", "Staff"));
+    assertEquals(Arrays.asList("Organization", "Staff"), Arrays.asList(results.keySet().toArray()));
+    assertEquals(rows("a"), results.get("Staff"));
+
+    // Another version, another document, or a sheet that was not cached
+    assertNull(cache.get(DOC_ID, "2", Arrays.asList("Staff")));
+    assertNull(cache.get("other-doc", "1", Arrays.asList("Staff")));
+    assertNull(cache.get(DOC_ID, "1", Arrays.asList("Staff", "CategoryStatus")));
+  }
+
+  @Test
+  public void testPut_newVersionDiscardsOldSheets() {
+    SheetsCache cache = new SheetsCache();
+    cache.put(DOC_ID, "1", null, sheets("Staff", "a", "Organization", "b"));
+    cache.put(DOC_ID, "1", null, sheets("CategoryStatus", "c"));
+    assertEquals(3, cache.sheets.size());
+
+    cache.put(DOC_ID, "2", null, sheets("Staff", "d"));
+    assertEquals(1, cache.sheets.size());
+    assertEquals(rows("d"), cache.get(DOC_ID, "2", Arrays.asList("Staff")).get("Staff"));
+    assertNull(cache.getAnyVersion(DOC_ID, Arrays.asList("Organization")));
+  }
+
+  @Test
+  public void testGetAnyVersion() {
+    SheetsCache cache = new SheetsCache();
+    cache.put(DOC_ID, "1", null, sheets("Staff", "a"));
+    assertEquals(rows("a"), cache.getAnyVersion(DOC_ID, Arrays.asList("Staff")).get("Staff"));
+    assertNull(cache.getAnyVersion("other-doc", Arrays.asList("Staff")));
+  }
+
+  @Test
+  public void testReadWrite() throws Exception {
+    File file = File.createTempFile("sheets-cache", ".json");
+    try {
+      SheetsCache cache = new SheetsCache();
+      cache.put(DOC_ID, "7", "2024-01-01T00:00:00Z", sheets("Staff", "a"));
+      SheetsCache.ColumnLayout layout = new SheetsCache.ColumnLayout();
+      layout.headers.addAll(Arrays.asList("Directory ID", "Cost Center"));
+      layout.columns.add("Directory ID");
+      cache.putColumnLayout(DOC_ID, "Staff", layout);
+      cache.write(file);
+
+      SheetsCache read = SheetsCache.read(file);
+      assertEquals("7", read.version);
+      assertEquals("2024-01-01T00:00:00Z", read.modifiedTime);
+      assertEquals(rows("a"), read.get(DOC_ID, "7", Arrays.asList("Staff")).get("Staff"));
+      assertEquals(layout.headers, read.getColumnLayout(DOC_ID, "Staff").headers);
+      assertEquals(layout.columns, read.getColumnLayout(DOC_ID, "Staff").columns);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testColumnLayouts() {
+    SheetsCache.ColumnLayout layout = new SheetsCache.ColumnLayout();
+    layout.headers.addAll(Arrays.asList("Directory ID", "Cost Center", "Name"));
+    layout.columns.addAll(Arrays.asList("Directory ID", "Name"));
+
+    SheetsCache cache = new SheetsCache();
+    assertNull(cache.getColumnLayout(DOC_ID, "Staff"));
+
+    cache.putColumnLayout(DOC_ID, "Staff", layout);
+    cache.put(DOC_ID, "1", null, sheets("Staff", "a"));
+    cache.put(DOC_ID, "2", null, sheets("Staff", "b"));
+    // Column layouts are kept across versions
+    assertEquals(layout, cache.getColumnLayout(DOC_ID, "Staff"));
+    assertNull(cache.getColumnLayout("other-doc", "Staff"));
+
+    cache.putColumnLayout("other-doc", "Staff", new SheetsCache.ColumnLayout());
+    assertNull(cache.get("other-doc", "2", Arrays.asList("Staff")));
+    assertNull(cache.getColumnLayout(DOC_ID, "Staff"));
+  }
+}
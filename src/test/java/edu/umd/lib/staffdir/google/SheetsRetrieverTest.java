@@ -2,15 +2,21 @@ package edu.umd.lib.staffdir.google;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
 
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
 import com.google.api.services.sheets.v4.model.ValueRange;
 
 public class SheetsRetrieverTest {
@@ -50,4 +56,248 @@ public class SheetsRetrieverTest {
     assertEquals("Row 2 Field 3", results.get(1).get("Header 3"));
 
   }
+
+  @Test
+  public void testToMaps() {
+    SheetsRetriever sr = new SheetsRetriever("staffdirectory-ldap-test", "not_needed.json");
+    List<String> sheetNames = Arrays.asList("Organization", "Staff", "Drupal Mapping");
+
+    ValueRange organizations = new ValueRange();
+    organizations.setValues(Arrays.asList(
+        Arrays.asList("Cost Center", "Organization"),
+        Arrays.asList("12345", "Library IT")));
+    ValueRange staff = new ValueRange();
+    staff.setValues(Arrays.asList(
+        Arrays.asList("Directory ID", "Cost Center"),
+        Arrays.asList("jsmith", "12345"),
+        Arrays.asList("jdoe", "12345")));
+    BatchGetValuesResponse response = new BatchGetValuesResponse();
+    // The last sheet is empty, so the server returns no ValueRange for it
+    response.setValueRanges(Arrays.asList(organizations, staff));
+
+    Map<String, List<Map<String, String>>> results = sr.toMaps(sheetNames, response);
+    assertEquals(sheetNames, new ArrayList<>(results.keySet()));
+    assertEquals(1, results.get("Organization").size());
+    assertEquals("Library IT", results.get("Organization").get(0).get("Organization"));
+    assertEquals(2, results.get("Staff").size());
+    assertEquals("jdoe", results.get("Staff").get(1).get("Directory ID"));
+    assertTrue(results.get("Drupal Mapping").isEmpty());
+
+    // Failed request
+    results = sr.toMaps(sheetNames, null);
+    assertEquals(3, results.size());
+    assertTrue(results.get("Staff").isEmpty());
+  }
+
+  @Test
+  public void testToTable() {
+    SheetsRetriever sr = new SheetsRetriever("staffdirectory-ldap-test", "not_needed.json");
+    assertEquals(0, sr.toTable((ValueRange) null).size());
+
+    ValueRange vr = new ValueRange();
+    vr.setValues(Arrays.asList(
+        Arrays.asList("Directory ID", "Cost Center"),
+        Arrays.asList("jsmith", "12345", "No header"),
+        Arrays.asList("jdoe")));
+    SheetTable table = sr.toTable(vr);
+    assertEquals(Arrays.asList("Directory ID", "Cost Center"), table.getHeaders());
+    assertEquals(2, table.size());
+    assertEquals("12345", table.get(0, "Cost Center"));
+    assertEquals(2, table.getRows().get(0).length);
+    assertNull(table.get(1, "Cost Center"));
+    assertEquals(1, table.asMaps().get(1).size());
+  }
+
+  @Test
+  public void testRetrieveFromServer() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    try (FakeGoogleServer server = new FakeGoogleServer()) {
+      server.addSheets(fixture());
+      server.writeCredentialsFile(credentialsFile);
+      GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+          credentialsFile.getPath());
+      clientFactory.setRootUrl(server.getRootUrl());
+      SheetsRetriever sr = new SheetsRetriever(clientFactory);
+
+      Map<String, SheetTable> tables = sr.toTables("doc-id", Arrays.asList("Organization", "Staff"));
+      assertEquals(1, tables.get("Organization").size());
+      assertEquals("Library IT", tables.get("Organization").get(0, "Organization"));
+      assertEquals(2, tables.get("Staff").size());
+      assertEquals("jdoe", tables.get("Staff").get(1, "Directory ID"));
+
+      // A missing sheet fails the batch, so each sheet is retrieved separately
+      tables = sr.toTables("doc-id", Arrays.asList("Organization", "Missing"));
+      assertEquals(1, tables.get("Organization").size());
+      assertEquals(0, tables.get("Missing").size());
+    } finally {
+      credentialsFile.delete();
+    }
+  }
+
+  @Test
+  public void testRetrieveSelectedColumnsFromServer() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    try (FakeGoogleServer server = new FakeGoogleServer()) {
+      server.addSheets(fixture());
+      server.writeCredentialsFile(credentialsFile);
+      GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+          credentialsFile.getPath());
+      clientFactory.setRootUrl(server.getRootUrl());
+      SheetsRetriever sr = new SheetsRetriever(clientFactory);
+
+      Map<String, SheetTable> tables = sr.toTables("doc-id", Arrays.asList("Organization", "Staff"), "Staff",
+          sheets -> Arrays.asList("Directory ID", "Phone", "Not a column"));
+      assertEquals(1, tables.get("Organization").size());
+      SheetTable table = tables.get("Staff");
+      assertEquals(Arrays.asList("Directory ID", "Phone"), table.getHeaders());
+      assertEquals(2, table.size());
+      assertEquals("jsmith", table.get(0, "Directory ID"));
+      assertEquals("555-1234", table.get(0, "Phone"));
+      assertNull(table.get(1, "Phone"));
+      assertNull(table.get(0, "Cost Center"));
+      // The header row is not yet known, so the whole sheet is retrieved
+      assertEquals(Arrays.asList("Organization", "Staff"), server.getRanges());
+
+      // Every column is kept if none are selected
+      tables = sr.toTables("doc-id", Arrays.asList("Organization", "Staff"), "Staff", sheets -> null);
+      assertEquals(fixture().get("Staff").get(0), tables.get("Staff").getHeaders());
+    } finally {
+      credentialsFile.delete();
+    }
+  }
+
+  @Test
+  public void testRetrieveSelectedColumnsWithCache() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    File cacheFile = File.createTempFile("sheets-cache", ".json");
+    cacheFile.delete();
+    try (FakeGoogleServer server = new FakeGoogleServer()) {
+      Map<String, List<List<Object>>> sheets = fixture();
+      sheets.put("Columns", Arrays.asList(
+          Arrays.<Object>asList("Column"),
+          Arrays.<Object>asList("Directory ID"),
+          Arrays.<Object>asList("Phone")));
+      server.addSheets(sheets);
+      server.writeCredentialsFile(credentialsFile);
+      List<String> sheetNames = Arrays.asList("Columns", "Staff");
+
+      // The first retrieval learns the header row of the Staff sheet
+      Map<String, SheetTable> tables = selectColumns(server, credentialsFile, cacheFile, sheetNames);
+      assertEquals(Arrays.asList("Directory ID", "Phone"), tables.get("Staff").getHeaders());
+      assertEquals(Arrays.asList("Columns", "Staff"), server.getRanges());
+
+      // Once the document changes, only the selected columns are retrieved
+      server.setVersion(2);
+      server.resetCounts();
+      assertEquals(tables, selectColumns(server, credentialsFile, cacheFile, sheetNames));
+      assertEquals(Arrays.asList("Columns", "'Staff'!A:A", "'Staff'!D:D"), server.getRanges());
+
+      // A column that has moved is detected, and the whole sheet retrieved
+      server.setVersion(3);
+      server.addSheets(Collections.singletonMap("Staff", Arrays.asList(
+          Arrays.<Object>asList("Phone", "Directory ID", "Cost Center", "Name"),
+          Arrays.<Object>asList("555-1234", "jsmith", "12345", "John Smith"),
+          Arrays.<Object>asList("", "jdoe", "12345", "Jane Doe"))));
+      server.resetCounts();
+      tables = selectColumns(server, credentialsFile, cacheFile, sheetNames);
+      assertEquals(Arrays.asList("Phone", "Directory ID"), tables.get("Staff").getHeaders());
+      assertEquals("jdoe", tables.get("Staff").get(1, "Directory ID"));
+      assertEquals(Arrays.asList("Columns", "'Staff'!A:A", "'Staff'!D:D", "Staff"), server.getRanges());
+
+      server.setVersion(4);
+      server.resetCounts();
+      selectColumns(server, credentialsFile, cacheFile, sheetNames);
+      assertEquals(Arrays.asList("Columns", "'Staff'!A:B"), server.getRanges());
+
+      // A newly selected column is not in the ranges, so the whole sheet is
+      // retrieved
+      server.setVersion(5);
+      server.addSheets(Collections.singletonMap("Columns", Arrays.asList(
+          Arrays.<Object>asList("Column"),
+          Arrays.<Object>asList("Directory ID"),
+          Arrays.<Object>asList("Name"))));
+      server.resetCounts();
+      tables = selectColumns(server, credentialsFile, cacheFile, sheetNames);
+      assertEquals(Arrays.asList("Directory ID", "Name"), tables.get("Staff").getHeaders());
+      assertEquals("Jane Doe", tables.get("Staff").get(1, "Name"));
+      assertEquals(Arrays.asList("Columns", "'Staff'!A:B", "Staff"), server.getRanges());
+    } finally {
+      credentialsFile.delete();
+      cacheFile.delete();
+    }
+  }
+
+  /**
+   * Retrieves the given sheets, with the "Staff" sheet restricted to the
+   * columns listed in the "Columns" sheet, using a new SheetsRetriever (as a
+   * new run would).
+   */
+  private static Map<String, SheetTable> selectColumns(FakeGoogleServer server, File credentialsFile,
+      File cacheFile, List<String> sheetNames) {
+    GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+        credentialsFile.getPath());
+    clientFactory.setRootUrl(server.getRootUrl());
+    SheetsRetriever sr = new SheetsRetriever(clientFactory);
+    sr.setCacheFile(cacheFile.getPath());
+    return sr.toTables("doc-id", sheetNames, "Staff", sheets -> {
+      List<String> columns = new ArrayList<>();
+      for (Map<String, String> row : sheets.get("Columns").asMaps()) {
+        columns.add(row.get("Column"));
+      }
+      return columns;
+    });
+  }
+
+  @Test
+  public void testCaptureAndReplay() throws Exception {
+    File credentialsFile = File.createTempFile("service-account", ".json");
+    File captureDirectory = Files.createTempDirectory("sheets-capture").toFile();
+    try {
+      Map<String, SheetTable> captured;
+      SheetTable capturedColumns;
+      try (FakeGoogleServer server = new FakeGoogleServer()) {
+        server.addSheets(fixture());
+        server.writeCredentialsFile(credentialsFile);
+        GoogleClientFactory clientFactory = new GoogleClientFactory("staffdirectory-ldap-test",
+            credentialsFile.getPath());
+        clientFactory.setRootUrl(server.getRootUrl());
+        SheetsRetriever sr = new SheetsRetriever(clientFactory);
+        sr.setCaptureDirectory(captureDirectory.getPath());
+        captured = sr.toTables("doc-id", Arrays.asList("Organization", "Staff"));
+        capturedColumns = sr.toTables("doc-id", Arrays.asList("Organization", "Staff"), "Staff",
+            sheets -> Arrays.asList("Directory ID", "Phone")).get("Staff");
+      }
+
+      // The server is no longer running, so the sheets can only come from the
+      // capture directory
+      SheetsRetriever sr = new SheetsRetriever("staffdirectory-ldap-test", "not_needed.json");
+      sr.setReplayDirectory(captureDirectory.getPath());
+      assertEquals(captured.get("Staff"), sr.toTable("doc-id", "Staff"));
+      assertEquals(captured, sr.toTables("doc-id", Arrays.asList("Organization", "Staff")));
+      assertEquals(capturedColumns, sr.toTables("doc-id", Arrays.asList("Organization", "Staff"), "Staff",
+          sheets -> Arrays.asList("Phone", "Directory ID")).get("Staff"));
+      assertEquals(2, capturedColumns.size());
+
+      // Sheets that were not captured are empty
+      assertEquals(0, sr.toTable("doc-id", "Missing").size());
+    } finally {
+      credentialsFile.delete();
+      for (File file : captureDirectory.listFiles()) {
+        file.delete();
+      }
+      captureDirectory.delete();
+    }
+  }
+
+  private static Map<String, List<List<Object>>> fixture() {
+    Map<String, List<List<Object>>> sheets = new HashMap<>();
+    sheets.put("Organization", Arrays.asList(
+        Arrays.<Object>asList("Cost Center", "Organization"),
+        Arrays.<Object>asList("12345", "Library IT")));
+    sheets.put("Staff", Arrays.asList(
+        Arrays.<Object>asList("Directory ID", "Cost Center", "Name", "Phone"),
+        Arrays.<Object>asList("jsmith", "12345", "John Smith", "555-1234"),
+        Arrays.<Object>asList("jdoe", "12345", "Jane Doe", "")));
+    return sheets;
+  }
 }
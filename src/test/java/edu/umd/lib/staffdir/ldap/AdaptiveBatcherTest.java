@@ -0,0 +1,82 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AdaptiveBatcherTest {
+  @Test
+  public void testNextBatch() {
+    AdaptiveBatcher batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(5), 2, 10, 1000, 1000);
+
+    AdaptiveBatcher.Batch batch = batcher.nextBatch();
+    assertEquals(Arrays.asList("user0", "user1"), batch.getUids());
+    assertEquals("(|(uid=user0)(uid=user1))", batch.getFilter());
+    assertEquals(2, batcher.nextBatch().size());
+    assertEquals(1, batcher.nextBatch().size());
+    assertNull(batcher.nextBatch());
+
+    // Empty uids list
+    batcher = new AdaptiveBatcher(Collections.<String>emptySet(), 2, 10, 1000, 1000);
+    assertNull(batcher.nextBatch());
+  }
+
+  @Test
+  public void testNextBatch_filterByteBudget() {
+    // "(|" + ")" is 3 bytes, and each "(uid=userN)" clause is 11 bytes
+    AdaptiveBatcher batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(5), 10, 10, 25, 1000);
+    assertEquals(2, batcher.nextBatch().size());
+
+    // A batch always contains at least one uid
+    batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(5), 10, 10, 1, 1000);
+    assertEquals(1, batcher.nextBatch().size());
+  }
+
+  @Test
+  public void testRecordSuccess() {
+    AdaptiveBatcher batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(1000), 40, 60, 100000, 1000);
+
+    // Fast, full-sized batches grow the batch size up to the maximum
+    batcher.recordSuccess(batcher.nextBatch(), 10);
+    assertEquals(50, batcher.getBatchSize());
+    batcher.recordSuccess(batcher.nextBatch(), 10);
+    batcher.recordSuccess(batcher.nextBatch(), 10);
+    assertEquals(60, batcher.getBatchSize());
+
+    // Batches within the target latency do not change the batch size
+    batcher.recordSuccess(batcher.nextBatch(), 900);
+    assertEquals(60, batcher.getBatchSize());
+
+    // Slow batches shrink the batch size
+    batcher.recordSuccess(batcher.nextBatch(), 5000);
+    assertEquals(30, batcher.getBatchSize());
+  }
+
+  @Test
+  public void testRecordSizeLimitExceeded() {
+    AdaptiveBatcher batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(10), 8, 8, 100000, 1000);
+
+    AdaptiveBatcher.Batch batch = batcher.nextBatch();
+    assertEquals(2, batcher.getPendingCount());
+    assertTrue(batcher.recordSizeLimitExceeded(batch));
+
+    // The uids are queued again, and the batch size is halved
+    assertEquals(10, batcher.getPendingCount());
+    assertEquals(4, batcher.getBatchSize());
+    assertEquals(Arrays.asList("user0", "user1", "user2", "user3"), batcher.nextBatch().getUids());
+
+    // Fast batches cannot grow past the lowered ceiling
+    batcher.recordSuccess(batcher.nextBatch(), 1);
+    assertEquals(4, batcher.getBatchSize());
+
+    // Single uid batches cannot be made smaller
+    batcher = new AdaptiveBatcher(InMemoryLdapServer.getUids(1), 8, 8, 100000, 1000);
+    assertFalse(batcher.recordSizeLimitExceeded(batcher.nextBatch()));
+  }
+}
@@ -0,0 +1,327 @@
+package edu.umd.lib.staffdir.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldif.LDIFException;
+
+/**
+ * An in-process LDAP server, seeded with synthetic "ou=people" entries, for
+ * exercising the Ldap class without a network connection.
+ */
+public class InMemoryLdapServer implements AutoCloseable {
+  public static final String BASE_DN = "dc=umd,dc=edu";
+  public static final String SEARCH_BASE_DN = "ou=people," + BASE_DN;
+  public static final String BIND_DN = "cn=admin," + BASE_DN;
+  public static final String PASSWORD = "password";
+
+  private static final String START_NANOS = "startNanos";
+
+  private static final String[] UM_ATTRIBUTES = {
+      "umOfficialTitle", "umDisplayTitle", "umPrimaryCampusRoom", "umPrimaryCampusBuilding", "umCatStatus",
+      "umOptionalTitle"
+  };
+
+  private final InMemoryDirectoryServer server;
+  private final AtomicInteger bindCount = new AtomicInteger();
+  private final AtomicInteger searchCount = new AtomicInteger();
+  private final Set<Long> searchConnectionIds = ConcurrentHashMap.newKeySet();
+  private volatile long searchDelayMillis = 0;
+  private final AtomicInteger transientFailures = new AtomicInteger();
+  private final Set<String> failingUids = ConcurrentHashMap.newKeySet();
+  private final List<Long> searchLatenciesNanos = Collections.synchronizedList(new ArrayList<>());
+
+  /**
+   * Starts an in-memory LDAP server containing the given number of synthetic
+   * person entries, with uids of the form "user0", "user1", etc.
+   *
+   * @param numEntries
+   *          the number of person entries to create
+   * @throws LDAPException
+   *           if the server cannot be started
+   * @throws LDIFException
+   *           if a synthetic entry is malformed
+   */
+  public InMemoryLdapServer(int numEntries) throws LDAPException, LDIFException {
+    this(numEntries, 0);
+  }
+
+  /**
+   * Starts an in-memory LDAP server containing the given number of synthetic
+   * person entries, which returns at most the given number of entries for a
+   * single search.
+   *
+   * @param numEntries
+   *          the number of person entries to create
+   * @param sizeLimit
+   *          the maximum number of entries returned by a search, or 0 for no
+   *          limit
+   * @throws LDAPException
+   *           if the server cannot be started
+   * @throws LDIFException
+   *           if a synthetic entry is malformed
+   */
+  public InMemoryLdapServer(int numEntries, int sizeLimit) throws LDAPException, LDIFException {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(BIND_DN, PASSWORD);
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+    config.setSchema(createSchema());
+    // Like a production directory, look up uids using an index
+    config.setEqualityIndexAttributes("uid");
+    if (sizeLimit > 0) {
+      config.setMaxSizeLimit(sizeLimit);
+    }
+    config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+      @Override
+      public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+        bindCount.incrementAndGet();
+      }
+
+      @Override
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+        searchCount.incrementAndGet();
+        searchConnectionIds.add(request.getConnectionID());
+        if (transientFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+          throw new LDAPException(ResultCode.OTHER, "Simulated transient failure");
+        }
+        String filter = request.getRequest().getFilter().toString();
+        for (String uid : failingUids) {
+          if (filter.contains("(uid=" + uid + ")")) {
+            throw new LDAPException(ResultCode.INVALID_ATTRIBUTE_SYNTAX, "Simulated invalid value for " + uid);
+          }
+        }
+        request.setProperty(START_NANOS, System.nanoTime());
+        if (searchDelayMillis > 0) {
+          try {
+            Thread.sleep(searchDelayMillis);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+
+      @Override
+      public void processSearchResult(InMemoryInterceptedSearchResult result) {
+        Object startNanos = result.getProperty(START_NANOS);
+        if (startNanos != null) {
+          searchLatenciesNanos.add(System.nanoTime() - (Long) startNanos);
+        }
+      }
+    });
+
+    server = new InMemoryDirectoryServer(config);
+    server.add(new Entry("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: umd"));
+    server.add(new Entry("dn: " + SEARCH_BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people"));
+    for (int i = 0; i < numEntries; i++) {
+      server.add(createPerson(getUid(i), i));
+    }
+    server.startListening();
+  }
+
+  /**
+   * Returns the uid of the synthetic person with the given index.
+   *
+   * @param index
+   *          the index of the person
+   * @return the uid of the synthetic person with the given index.
+   */
+  public static String getUid(int index) {
+    return "user" + index;
+  }
+
+  /**
+   * Returns a Set of uids for the synthetic persons from 0 up to (but not
+   * including) the given count, in index order.
+   *
+   * @param count
+   *          the number of uids to return
+   * @return a Set of uids for the synthetic persons
+   */
+  public static Set<String> getUids(int count) {
+    Set<String> uids = new LinkedHashSet<>();
+    for (int i = 0; i < count; i++) {
+      uids.add(getUid(i));
+    }
+    return uids;
+  }
+
+  /**
+   * @return the "ldap://" URL of the running server
+   */
+  public String getUrl() {
+    return "ldap://localhost:" + server.getListenPort();
+  }
+
+  /**
+   * @return a new Ldap object configured to use this server
+   */
+  public Ldap createLdap() {
+    return new Ldap(getUrl(), "simple", BIND_DN, PASSWORD, SEARCH_BASE_DN);
+  }
+
+  /**
+   * @return the underlying InMemoryDirectoryServer
+   */
+  public InMemoryDirectoryServer getServer() {
+    return server;
+  }
+
+  /**
+   * @return the number of simple bind requests received by the server
+   */
+  public int getBindCount() {
+    return bindCount.get();
+  }
+
+  /**
+   * @return the number of search requests received by the server
+   */
+  public int getSearchCount() {
+    return searchCount.get();
+  }
+
+  /**
+   * @return the number of distinct client connections search requests were
+   *         received on
+   */
+  public int getSearchConnectionCount() {
+    return searchConnectionIds.size();
+  }
+
+  /**
+   * @return the time, in nanoseconds, the server took to process each search
+   *         request, in the order they completed
+   */
+  public List<Long> getSearchLatenciesNanos() {
+    synchronized (searchLatenciesNanos) {
+      return new ArrayList<>(searchLatenciesNanos);
+    }
+  }
+
+  /**
+   * Makes the server wait for the given number of milliseconds before
+   * processing each search, to simulate a slow server.
+   *
+   * @param searchDelayMillis
+   *          the number of milliseconds to wait before each search
+   */
+  public void setSearchDelayMillis(long searchDelayMillis) {
+    this.searchDelayMillis = searchDelayMillis;
+  }
+
+  /**
+   * Makes the server fail the next given number of searches, to simulate
+   * transient errors.
+   *
+   * @param transientFailures
+   *          the number of searches to fail
+   */
+  public void setTransientFailures(int transientFailures) {
+    this.transientFailures.set(transientFailures);
+  }
+
+  /**
+   * Makes the server reject every search whose filter includes one of the
+   * given uids as invalid, to simulate uids that cannot be retrieved.
+   *
+   * @param uids
+   *          the uids whose searches should fail
+   */
+  public void setFailingUids(Collection<String> uids) {
+    failingUids.clear();
+    failingUids.addAll(uids);
+  }
+
+  /**
+   * Resets the bind and search counts, and the recorded search latencies.
+   */
+  public void resetCounts() {
+    bindCount.set(0);
+    searchCount.set(0);
+    searchConnectionIds.clear();
+    searchLatenciesNanos.clear();
+  }
+
+  @Override
+  public void close() {
+    server.shutDown(true);
+  }
+
+  /**
+   * Returns the standard schema, extended with the "um*" attributes used by
+   * the Ldap class.
+   *
+   * @return the standard schema, extended with the "um*" attributes.
+   * @throws LDAPException
+   *           if the schema cannot be created
+   * @throws LDIFException
+   *           if the schema extension is malformed
+   */
+  private static Schema createSchema() throws LDAPException, LDIFException {
+    List<String> schemaEntry = new ArrayList<>(Arrays.asList(
+        "dn: cn=schema",
+        "objectClass: top",
+        "objectClass: ldapSubentry",
+        "objectClass: subschema",
+        "cn: schema"));
+    int oid = 1;
+    for (String attribute : UM_ATTRIBUTES) {
+      schemaEntry.add("attributeTypes: ( 1.3.6.1.4.1.99999.1." + oid++ + " NAME '" + attribute
+          + "' EQUALITY caseIgnoreMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )");
+    }
+    schemaEntry.add("objectClasses: ( 1.3.6.1.4.1.99999.2.1 NAME 'umPerson' SUP top AUXILIARY MAY ( "
+        + String.join(" $ ", UM_ATTRIBUTES) + " ) )");
+    Schema extension = new Schema(new Entry(schemaEntry.toArray(new String[0])));
+    return Schema.mergeSchemas(Schema.getDefaultStandardSchema(), extension);
+  }
+
+  /**
+   * Returns a synthetic person entry carrying the attributes retrieved by the
+   * Ldap class.
+   *
+   * @param uid
+   *          the uid of the person
+   * @param index
+   *          the index of the person, used to vary the attribute values
+   * @return a synthetic person entry
+   * @throws LDIFException
+   *           if the entry is malformed
+   */
+  private static Entry createPerson(String uid, int index) throws LDIFException {
+    return new Entry("dn: uid=" + uid + "," + SEARCH_BASE_DN,
+        "objectClass: top",
+        "objectClass: person",
+        "objectClass: inetOrgPerson",
+        "objectClass: umPerson",
+        "uid: " + uid,
+        "cn: Given" + index + " Surname" + index,
+        "sn: Surname" + index,
+        "givenName: Given" + index,
+        "telephoneNumber: +1 301 405 " + String.format("%04d", index % 10000),
+        "mail: " + uid + "@umd.edu",
+        "umOfficialTitle: Librarian II",
+        "umDisplayTitle: Display Title " + index,
+        "umPrimaryCampusRoom: " + (1000 + (index % 1000)),
+        "umPrimaryCampusBuilding: McKeldin Library",
+        "umCatStatus: Exempt Regular",
+        "umOptionalTitle: Optional Title " + index);
+  }
+}
@@ -0,0 +1,122 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the throughput of Ldap.getUsers, and the latency of the individual
+ * LDAP searches, against an in-memory LDAP server holding 1,000, 10,000, and
+ * 100,000 entries, using each of the retrieval modes.
+ * <p>
+ * The benchmark takes several minutes, so it is skipped unless the
+ * "ldap.benchmark" system property is "true":
+ *
+ * <pre>
+ * mvn test -Dtest=LdapBenchmark -Dldap.benchmark=true -DargLine=-Xmx2g
+ * </pre>
+ *
+ * The sizes may be overridden with a comma-separated list in the
+ * "ldap.benchmark.sizes" system property.
+ */
+public class LdapBenchmark {
+  private static final String DEFAULT_SIZES = "1000,10000,100000";
+  private static final int RUNS = 3;
+
+  @Test
+  public void benchmark() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("ldap.benchmark"));
+
+    for (String size : System.getProperty("ldap.benchmark.sizes", DEFAULT_SIZES).split(",")) {
+      int numEntries = Integer.parseInt(size.trim());
+      try (InMemoryLdapServer server = new InMemoryLdapServer(numEntries)) {
+        Set<String> uids = InMemoryLdapServer.getUids(numEntries);
+        run(server, uids, "batches", ldap -> {
+        });
+        run(server, uids, "batches x4", ldap -> ldap.setParallelism(4));
+        run(server, uids, "pipelined x8", ldap -> ldap.setPipelineDepth(8));
+        run(server, uids, "paged sweep", ldap -> ldap.setSweepThreshold(1));
+      }
+    }
+  }
+
+  /**
+   * Retrieves the given uids once to warm up, then the given number of times,
+   * printing the median elapsed time and the search latency percentiles.
+   *
+   * @param server
+   *          the server to retrieve the uids from
+   * @param uids
+   *          the uids to retrieve
+   * @param mode
+   *          a label for the Ldap configuration
+   * @param configurer
+   *          configures each Ldap object before it is used
+   */
+  private static void run(InMemoryLdapServer server, Set<String> uids, String mode, Consumer<Ldap> configurer) {
+    createLdap(server, configurer).getUsers(uids);
+
+    long[] elapsedNanos = new long[RUNS];
+    List<Long> latenciesNanos = new ArrayList<>();
+    for (int i = 0; i < RUNS; i++) {
+      Ldap ldap = createLdap(server, configurer);
+      server.resetCounts();
+      long start = System.nanoTime();
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+      elapsedNanos[i] = System.nanoTime() - start;
+      assertEquals(uids.size(), results.size());
+      latenciesNanos.addAll(server.getSearchLatenciesNanos());
+    }
+
+    Arrays.sort(elapsedNanos);
+    long medianNanos = elapsedNanos[RUNS / 2];
+    double uidsPerSecond = uids.size() / (medianNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    Collections.sort(latenciesNanos);
+
+    System.out.println(String.format(
+        "%-12s %7d uids  %8.1f ms  %9.0f uids/s  %4d searches/run  "
+            + "search latency p50 %7.2f ms  p95 %7.2f ms  p99 %7.2f ms  max %7.2f ms",
+        mode, uids.size(), toMillis(medianNanos), uidsPerSecond, latenciesNanos.size() / RUNS,
+        toMillis(percentile(latenciesNanos, 50)), toMillis(percentile(latenciesNanos, 95)),
+        toMillis(percentile(latenciesNanos, 99)), toMillis(percentile(latenciesNanos, 100))));
+  }
+
+  private static Ldap createLdap(InMemoryLdapServer server, Consumer<Ldap> configurer) {
+    Ldap ldap = server.createLdap();
+    configurer.accept(ldap);
+    return ldap;
+  }
+
+  /**
+   * Returns the given percentile of the given sorted values, using the
+   * nearest-rank method.
+   *
+   * @param sortedValues
+   *          the values, in ascending order
+   * @param percentile
+   *          the percentile to return, from 1 to 100
+   * @return the given percentile of the given sorted values, or 0 if there are
+   *         no values.
+   */
+  private static long percentile(List<Long> sortedValues, double percentile) {
+    if (sortedValues.isEmpty()) {
+      return 0;
+    }
+    int rank = (int) Math.ceil((percentile / 100) * sortedValues.size());
+    return sortedValues.get(Math.max(0, rank - 1));
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
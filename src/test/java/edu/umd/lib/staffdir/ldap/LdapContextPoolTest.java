@@ -0,0 +1,80 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LdapContextPoolTest {
+  private InMemoryLdapServer server;
+  private Hashtable<String, Object> env;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new InMemoryLdapServer(5);
+
+    env = new Hashtable<>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+    env.put(Context.PROVIDER_URL, server.getUrl());
+    env.put(Context.SECURITY_AUTHENTICATION, "simple");
+    env.put(Context.SECURITY_PRINCIPAL, InMemoryLdapServer.BIND_DN);
+    env.put(Context.SECURITY_CREDENTIALS, InMemoryLdapServer.PASSWORD);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void testReleasedContextIsReused() throws Exception {
+    try (LdapContextPool pool = new LdapContextPool(env, 1)) {
+      LdapContext ctx1 = pool.borrow();
+      pool.release(ctx1);
+      LdapContext ctx2 = pool.borrow();
+      pool.release(ctx2);
+
+      assertSame(ctx1, ctx2);
+      assertEquals(1, pool.getContextsCreated());
+      assertEquals(1, server.getBindCount());
+    }
+  }
+
+  @Test
+  public void testInvalidatedContextIsReplaced() throws Exception {
+    try (LdapContextPool pool = new LdapContextPool(env, 1)) {
+      LdapContext ctx1 = pool.borrow();
+      pool.invalidate(ctx1);
+      LdapContext ctx2 = pool.borrow();
+      pool.release(ctx2);
+
+      assertEquals(2, pool.getContextsCreated());
+    }
+  }
+
+  @Test
+  public void testStaleContextIsReconnected() throws Exception {
+    // Health check every borrowed context
+    try (LdapContextPool pool = new LdapContextPool(env, 1, 0)) {
+      LdapContext ctx1 = pool.borrow();
+      pool.release(ctx1);
+
+      // Simulate the server dropping idle connections
+      server.getServer().closeAllConnections(false);
+
+      LdapContext ctx2 = pool.borrow();
+      assertNotNull(ctx2.getAttributes("", new String[] { "supportedLDAPVersion" }));
+      pool.release(ctx2);
+
+      assertEquals(2, pool.getContextsCreated());
+    }
+  }
+}
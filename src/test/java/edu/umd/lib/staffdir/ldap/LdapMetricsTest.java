@@ -0,0 +1,54 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LdapMetricsTest {
+  @Test
+  public void testHistogram_empty() {
+    LdapMetrics.Histogram histogram = new LdapMetrics.Histogram("search ms");
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals("search ms: count 0, mean 0, p50 <= 0, p90 <= 0, p99 <= 0, max 0", histogram.toString());
+  }
+
+  @Test
+  public void testHistogram_percentiles() {
+    LdapMetrics.Histogram histogram = new LdapMetrics.Histogram("search ms");
+    for (int i = 0; i < 90; i++) {
+      histogram.record(5);
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(100);
+    }
+    histogram.record(0);
+
+    assertEquals(100, histogram.getCount());
+    // 5 falls in the bucket [4, 8)
+    assertEquals(7, histogram.getPercentile(50));
+    assertEquals(7, histogram.getPercentile(90));
+    // 100 falls in the bucket [64, 128), but no value exceeded 100
+    assertEquals(100, histogram.getPercentile(99));
+    assertEquals(0, histogram.getPercentile(1));
+    assertTrue(histogram.toString().endsWith("[0: 1, <8: 90, <128: 9]"));
+  }
+
+  @Test
+  public void testRecord_slowBatches() {
+    LdapMetrics metrics = new LdapMetrics(100);
+    LdapMetrics.BatchStats fast = new LdapMetrics.BatchStats("batch", 10);
+    fast.addSearchTime(20_000_000);
+    LdapMetrics.BatchStats slow = new LdapMetrics.BatchStats("batch", 10);
+    slow.addConnectTime(50_000_000);
+    slow.addSearchTime(60_000_000);
+
+    metrics.record(fast);
+    metrics.record(slow);
+    assertEquals(2, metrics.getBatchCount());
+    assertEquals(1, metrics.getSlowBatchCount());
+    assertEquals(60, slow.getSearchMillis());
+    assertEquals(50, slow.getConnectMillis());
+  }
+}
@@ -1,15 +1,30 @@
 package edu.umd.lib.staffdir.ldap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
 public class LdapTest {
   @Test
   public void testGetQueryBatches() {
@@ -58,4 +73,550 @@ public class LdapTest {
     assertEquals("(|(uid=uid1)(uid=uid2)(uid=uid3)(uid=uid4)(uid=uid5))", batches.get(0));
 
   }
+
+  @Test
+  public void testGetUsers() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(120)) {
+      Set<String> uids = new LinkedHashSet<>(InMemoryLdapServer.getUids(120));
+      uids.add("notInLdap");
+
+      Ldap ldap = server.createLdap();
+      ldap.setMaxBatchSize(50);
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+
+      // Missing uids are simply absent from the results
+      assertEquals(120, results.size());
+      assertTrue(!results.containsKey("notInLdap"));
+      assertEquals("Surname7", results.get("user7").get("sn"));
+      assertEquals("user7@umd.edu", results.get("user7").get("mail"));
+
+      // A single bind is used for all three batches
+      assertEquals(1, server.getBindCount());
+      assertEquals(3, server.getSearchCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_parallel() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(500)) {
+      Set<String> uids = new LinkedHashSet<>(InMemoryLdapServer.getUids(500));
+      uids.add("notInLdap");
+
+      Map<String, Map<String, String>> sequentialResults = server.createLdap().getUsers(uids);
+
+      server.resetCounts();
+      Ldap ldap = server.createLdap();
+      ldap.setParallelism(4);
+      ldap.setMaxBatchSize(50);
+      Map<String, Map<String, String>> parallelResults = ldap.getUsers(uids);
+
+      assertEquals(500, parallelResults.size());
+      assertEquals(sequentialResults, parallelResults);
+      assertTrue(!parallelResults.containsKey("notInLdap"));
+
+      // At most one bind per thread
+      assertTrue(server.getBindCount() <= 4);
+      assertEquals(11, server.getSearchCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_pagedSweep() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100)) {
+      Set<String> uids = new LinkedHashSet<>(InMemoryLdapServer.getUids(60));
+      uids.add("notInLdap");
+
+      Map<String, Map<String, String>> batchResults = server.createLdap().getUsers(uids);
+
+      server.resetCounts();
+      Ldap ldap = server.createLdap();
+      ldap.setSweepThreshold(1);
+      ldap.setPageSize(30);
+      Map<String, Map<String, String>> sweepResults = ldap.getUsers(uids);
+
+      // Only the requested uids are returned
+      assertEquals(60, sweepResults.size());
+      assertEquals(batchResults, sweepResults);
+
+      // All 100 entries are retrieved in 4 pages of (up to) 30 entries
+      assertEquals(4, server.getSearchCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_sizeLimitExceeded() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100, 20)) {
+      Set<String> uids = InMemoryLdapServer.getUids(100);
+
+      Map<String, Map<String, String>> results = server.createLdap().getUsers(uids);
+
+      // Batches are split until they fit within the server size limit
+      assertEquals(100, results.size());
+    }
+  }
+
+  @Test
+  public void testGetUsers_recordsBatchSize() throws Exception {
+    File batchSizeFile = File.createTempFile("ldap-batch-size", ".properties");
+    batchSizeFile.delete();
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100)) {
+      Ldap ldap = server.createLdap();
+      ldap.setBatchSize(10);
+      ldap.setBatchTargetMillis(60000);
+      ldap.setBatchSizeFile(batchSizeFile.getPath());
+      ldap.getUsers(InMemoryLdapServer.getUids(100));
+
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(batchSizeFile)) {
+        props.load(in);
+      }
+      int recordedBatchSize = Integer.parseInt(props.getProperty(server.getUrl()));
+      assertTrue(recordedBatchSize > 10);
+
+      // The next run starts from the recorded batch size
+      server.resetCounts();
+      ldap = server.createLdap();
+      ldap.setBatchSizeFile(batchSizeFile.getPath());
+      ldap.setBatchTargetMillis(0);
+      ldap.getUsers(InMemoryLdapServer.getUids(recordedBatchSize));
+      assertEquals(1, server.getSearchCount());
+    } finally {
+      batchSizeFile.delete();
+    }
+  }
+
+  @Test
+  public void testGetUsers_recordsBatchSizePerServer() throws Exception {
+    File batchSizeFile = File.createTempFile("ldap-batch-size", ".properties");
+    batchSizeFile.delete();
+    try (InMemoryLdapServer first = new InMemoryLdapServer(100);
+        InMemoryLdapServer second = new InMemoryLdapServer(100)) {
+      Ldap ldap = new Ldap(first.getUrl() + " " + second.getUrl(), "simple", InMemoryLdapServer.BIND_DN,
+          InMemoryLdapServer.PASSWORD, InMemoryLdapServer.SEARCH_BASE_DN);
+      ldap.setBatchSize(10);
+      ldap.setBatchSizeFile(batchSizeFile.getPath());
+      ldap.getUsers(InMemoryLdapServer.getUids(100));
+
+      // The batch size is recorded for each server that answered, not for
+      // the list of servers
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(batchSizeFile)) {
+        props.load(in);
+      }
+      assertFalse(props.isEmpty());
+      assertTrue(Arrays.asList(first.getUrl(), second.getUrl()).containsAll(props.stringPropertyNames()));
+    } finally {
+      batchSizeFile.delete();
+    }
+  }
+
+  @Test
+  public void testGetUsers_incremental() throws Exception {
+    File snapshotFile = File.createTempFile("ldap-snapshot", ".json");
+    snapshotFile.delete();
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100)) {
+      Ldap ldap = server.createLdap();
+      ldap.setSnapshotFile(snapshotFile.getPath());
+      ldap.getUsers(InMemoryLdapServer.getUids(80));
+      assertTrue(snapshotFile.exists());
+
+      // Modify an entry, delete another, and request some uids that are not
+      // in the snapshot
+      server.getServer().modify("uid=user5," + InMemoryLdapServer.SEARCH_BASE_DN,
+          new Modification(ModificationType.REPLACE, "sn", "Changed"));
+      server.getServer().delete("uid=user9," + InMemoryLdapServer.SEARCH_BASE_DN);
+      Set<String> uids = InMemoryLdapServer.getUids(90);
+      uids.add("notInLdap");
+
+      server.resetCounts();
+      Map<String, Map<String, String>> incrementalResults = ldap.getUsers(uids);
+
+      // One search for the modified entries, one listing the uids still in
+      // LDAP, and one for the new uids
+      assertEquals(3, server.getSearchCount());
+      assertEquals("Changed", incrementalResults.get("user5").get("sn"));
+
+      // The deleted entry is not served from the snapshot
+      assertFalse(incrementalResults.containsKey("user9"));
+      assertEquals(89, incrementalResults.size());
+
+      // The results are identical to a full retrieval
+      Map<String, Map<String, String>> fullResults = server.createLdap().getUsers(uids);
+      assertEquals(fullResults, incrementalResults);
+
+      // Forcing a full refresh ignores the snapshot
+      server.resetCounts();
+      ldap.setForceFullRefresh(true);
+      ldap.setMaxBatchSize(50);
+      assertEquals(fullResults, ldap.getUsers(uids));
+      assertEquals(2, server.getSearchCount());
+    } finally {
+      snapshotFile.delete();
+    }
+  }
+
+  @Test
+  public void testGetUsers_fullRefreshInterval() throws Exception {
+    File snapshotFile = File.createTempFile("ldap-snapshot", ".json");
+    snapshotFile.delete();
+    try (InMemoryLdapServer server = new InMemoryLdapServer(20)) {
+      Set<String> uids = InMemoryLdapServer.getUids(20);
+      Ldap ldap = server.createLdap();
+      ldap.setSnapshotFile(snapshotFile.getPath());
+      ldap.setFullRefreshIntervalHours(24);
+      long startMillis = System.currentTimeMillis();
+      ldap.getUsers(uids);
+      // Recorded when the full retrieval started, not when it finished
+      LdapSnapshot snapshot = LdapSnapshot.read(snapshotFile);
+      assertTrue(snapshot.lastFullRefreshMillis - startMillis < 1000);
+
+      // A daily run, started a few minutes earlier in the day than the last
+      // full retrieval, is still due a full retrieval
+      snapshot.lastFullRefreshMillis = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(23 * 60 + 55);
+      snapshot.write(snapshotFile);
+      server.resetCounts();
+      ldap.getUsers(uids);
+      assertEquals(1, server.getSearchCount());
+      assertTrue(LdapSnapshot.read(snapshotFile).lastFullRefreshMillis >= startMillis);
+
+      // Otherwise, only the changes are retrieved
+      snapshot = LdapSnapshot.read(snapshotFile);
+      snapshot.lastFullRefreshMillis = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(12);
+      snapshot.write(snapshotFile);
+      server.resetCounts();
+      ldap.getUsers(uids);
+      assertEquals(2, server.getSearchCount());
+    } finally {
+      snapshotFile.delete();
+    }
+  }
+
+  @Test
+  public void testGetUsers_captureAndReplay() throws Exception {
+    File captureFile = File.createTempFile("ldap-capture", ".json.gz");
+    captureFile.delete();
+    Set<String> uids = InMemoryLdapServer.getUids(30);
+    uids.add("notInLdap");
+    Map<String, Map<String, String>> capturedResults;
+    try (InMemoryLdapServer server = new InMemoryLdapServer(30)) {
+      Ldap ldap = server.createLdap();
+      ldap.setRetryBackoffMillis(1);
+      ldap.setCaptureFile(captureFile.getPath());
+      server.setFailingUids(Collections.singletonList("user7"));
+      capturedResults = ldap.getUsers(uids);
+      assertEquals(29, capturedResults.size());
+      assertTrue(captureFile.exists());
+    }
+
+    try {
+      // The server is no longer running, so the entries can only come from
+      // the capture file
+      Ldap ldap = new Ldap("ldap://localhost:1", "simple", InMemoryLdapServer.BIND_DN, InMemoryLdapServer.PASSWORD,
+          InMemoryLdapServer.SEARCH_BASE_DN);
+      ldap.setReplayFile(captureFile.getPath());
+      assertEquals(capturedResults, ldap.getUsers(uids));
+      assertEquals(Collections.singleton("user7"), ldap.getFailures().keySet());
+
+      // Only the requested uids are replayed
+      assertEquals(Collections.singleton("user1"), ldap.getUsers(Collections.singleton("user1")).keySet());
+      assertTrue(ldap.getFailures().isEmpty());
+    } finally {
+      captureFile.delete();
+    }
+  }
+
+  @Test
+  public void testGetUsers_cache() throws Exception {
+    File cacheFile = File.createTempFile("ldap-cache", ".json");
+    cacheFile.delete();
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100)) {
+      Set<String> uids = InMemoryLdapServer.getUids(40);
+      uids.add("notInLdap");
+
+      Ldap ldap = server.createLdap();
+      ldap.setCacheFile(cacheFile.getPath());
+      Map<String, Map<String, String>> firstResults = ldap.getUsers(uids);
+      assertTrue(cacheFile.exists());
+      assertEquals(40, firstResults.size());
+
+      // A second run is served entirely from the cache, including the uid
+      // that was not found
+      server.resetCounts();
+      Ldap cachedLdap = server.createLdap();
+      cachedLdap.setCacheFile(cacheFile.getPath());
+      assertEquals(firstResults, cachedLdap.getUsers(uids));
+      assertEquals(0, server.getBindCount());
+      assertEquals(0, server.getSearchCount());
+
+      LdapCache cache = LdapCache.read(cacheFile);
+      assertEquals(41, cache.entries.size());
+      assertTrue(cache.entries.get("notInLdap").isNegative());
+
+      // Expired entries are retrieved again
+      server.resetCounts();
+      cachedLdap.setCacheTtlMinutes(0);
+      cachedLdap.setNegativeCacheTtlMinutes(0);
+      assertEquals(firstResults, cachedLdap.getUsers(uids));
+      assertEquals(1, server.getSearchCount());
+    } finally {
+      cacheFile.delete();
+    }
+  }
+
+  @Test
+  public void testLdapCache_expiration() {
+    LdapCache cache = new LdapCache();
+    cache.setTtls(1000, 100);
+    cache.put("found", new HashMap<>(), 0);
+    cache.put("notFound", null, 0);
+
+    assertTrue(cache.get("notFound", 50).isNegative());
+    assertEquals(null, cache.get("notFound", 100));
+    assertEquals(null, cache.get("missing", 100));
+    assertTrue(cache.get("found", 999) != null);
+    cache.prune(1000);
+    assertTrue(cache.entries.isEmpty());
+
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getExpirations());
+  }
+
+  @Test
+  public void testGetUsers_consumer() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(200)) {
+      Set<String> uids = InMemoryLdapServer.getUids(150);
+      uids.add("notInLdap");
+
+      Ldap ldap = server.createLdap();
+      ldap.setParallelism(4);
+      ldap.setMaxBatchSize(20);
+      Map<String, Map<String, String>> streamed = new ConcurrentHashMap<>();
+      AtomicInteger calls = new AtomicInteger();
+      ldap.getUsers(uids, (uid, entry) -> {
+        calls.incrementAndGet();
+        streamed.put(uid, entry);
+      });
+
+      // Called exactly once for each uid that was found
+      assertEquals(150, calls.get());
+      assertEquals(server.createLdap().getUsers(uids), streamed);
+    }
+  }
+
+  @Test
+  public void testGetUsers_failover() throws Exception {
+    // Start a server only to find a port with nothing listening on it
+    InMemoryLdapServer down = new InMemoryLdapServer(0);
+    String downUrl = down.getUrl();
+    down.close();
+
+    try (InMemoryLdapServer up = new InMemoryLdapServer(100)) {
+      Ldap ldap = new Ldap(downUrl + " " + up.getUrl(), "simple", InMemoryLdapServer.BIND_DN,
+          InMemoryLdapServer.PASSWORD, InMemoryLdapServer.SEARCH_BASE_DN);
+      ldap.setMaxBatchSize(20);
+      Set<String> uids = InMemoryLdapServer.getUids(100);
+      assertEquals(up.createLdap().getUsers(uids), ldap.getUsers(uids));
+    }
+  }
+
+  @Test
+  public void testGetUsers_noFailoverOnSearchError() throws Exception {
+    try (InMemoryLdapServer first = new InMemoryLdapServer(10);
+        InMemoryLdapServer second = new InMemoryLdapServer(10)) {
+      first.setFailingUids(Collections.singletonList("user3"));
+      second.setFailingUids(Collections.singletonList("user3"));
+
+      Ldap ldap = new Ldap(first.getUrl() + " " + second.getUrl(), "simple", InMemoryLdapServer.BIND_DN,
+          InMemoryLdapServer.PASSWORD, InMemoryLdapServer.SEARCH_BASE_DN);
+      ldap.setRetryBackoffMillis(1);
+      Map<String, Map<String, String>> results = ldap.getUsers(InMemoryLdapServer.getUids(10));
+      assertEquals(9, results.size());
+      assertEquals(Collections.singleton("user3"), ldap.getFailures().keySet());
+
+      // A search rejected by the server is not retried on the other server,
+      // which only receives the latency probe
+      assertEquals(1, Math.min(first.getSearchCount(), second.getSearchCount()));
+    }
+  }
+
+  @Test
+  public void testGetUsers_fastestReplica() throws Exception {
+    try (InMemoryLdapServer slow = new InMemoryLdapServer(100);
+        InMemoryLdapServer fast = new InMemoryLdapServer(100)) {
+      slow.setSearchDelayMillis(200);
+
+      Ldap ldap = new Ldap(slow.getUrl() + " " + fast.getUrl(), "simple", InMemoryLdapServer.BIND_DN,
+          InMemoryLdapServer.PASSWORD, InMemoryLdapServer.SEARCH_BASE_DN);
+      ldap.setMaxBatchSize(20);
+      Map<String, Map<String, String>> results = ldap.getUsers(InMemoryLdapServer.getUids(100));
+      assertEquals(100, results.size());
+
+      // Only the latency probe is sent to the slow server
+      assertEquals(1, slow.getSearchCount());
+      assertEquals(6, fast.getSearchCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_attributes() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(10)) {
+      Ldap ldap = server.createLdap();
+      ldap.setAttributes(Arrays.asList("sn", "mail"));
+      Map<String, String> entry = ldap.getUsers(InMemoryLdapServer.getUids(10)).get("user3");
+
+      // The "uid" attribute is always included
+      assertEquals(3, entry.size());
+      assertEquals("user3", entry.get("uid"));
+      assertEquals("Surname3", entry.get("sn"));
+      assertEquals("user3@umd.edu", entry.get("mail"));
+    }
+  }
+
+  @Test
+  public void testGetUsers_pipelined() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(300)) {
+      Set<String> uids = InMemoryLdapServer.getUids(250);
+      Ldap ldap = server.createLdap();
+      ldap.setPipelineDepth(8);
+      ldap.setMaxBatchSize(20);
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+
+      assertEquals(server.createLdap().getUsers(uids), results);
+
+      // Every batch was sent over the one connection
+      server.resetCounts();
+      ldap.getUsers(uids);
+      assertEquals(1, server.getBindCount());
+      assertEquals(13, server.getSearchCount());
+      assertEquals(1, server.getSearchConnectionCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_retry() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(20)) {
+      Set<String> uids = InMemoryLdapServer.getUids(20);
+      Ldap ldap = server.createLdap();
+      ldap.setRetryBackoffMillis(1);
+      server.setTransientFailures(2);
+
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+      assertEquals(20, results.size());
+      assertTrue(ldap.getFailures().isEmpty());
+      assertEquals(3, server.getSearchCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_bisection() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(20)) {
+      Set<String> uids = InMemoryLdapServer.getUids(20);
+      Ldap ldap = server.createLdap();
+      ldap.setRetryBackoffMillis(1);
+      server.setFailingUids(Arrays.asList("user3", "user17"));
+
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+      assertEquals(18, results.size());
+      assertFalse(results.containsKey("user3"));
+      assertFalse(results.containsKey("user17"));
+      assertEquals(new HashSet<>(Arrays.asList("user3", "user17")), ldap.getFailures().keySet());
+    }
+  }
+
+  @Test
+  public void testGetUsers_serverShutDown() throws Exception {
+    InMemoryLdapServer server = new InMemoryLdapServer(200);
+    try {
+      Ldap ldap = server.createLdap();
+      ldap.setBatchSize(10);
+      ldap.setMaxBatchSize(10);
+      ldap.setMaxRetries(2);
+      ldap.setRetryBackoffMillis(1);
+      AtomicInteger received = new AtomicInteger();
+      Map<String, Map<String, String>> results = new ConcurrentHashMap<>();
+      ldap.getUsers(InMemoryLdapServer.getUids(200), (uid, entry) -> {
+        results.put(uid, entry);
+        if (received.incrementAndGet() == 25) {
+          server.close();
+        }
+      });
+
+      // Every uid not retrieved is reported as failed
+      assertTrue(results.size() < 200);
+      assertEquals(200, results.size() + ldap.getFailures().size());
+
+      // Only the batches in progress when the server went away are retried
+      // (each attempt reconnecting once), and the rest are not attempted,
+      // rather than being bisected
+      assertTrue("Made " + ldap.getMetrics().getSearchCount() + " searches",
+          ldap.getMetrics().getSearchCount() <= 3 + (2 * 3));
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testGetUsers_deadline() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(100)) {
+      Set<String> uids = InMemoryLdapServer.getUids(100);
+      Ldap ldap = server.createLdap();
+      ldap.setBatchSize(10);
+      ldap.setMaxBatchSize(10);
+      ldap.setDeadlineSeconds(1);
+      server.setSearchDelayMillis(300);
+
+      long start = System.currentTimeMillis();
+      Map<String, Map<String, String>> results = ldap.getUsers(uids);
+      long elapsedMillis = System.currentTimeMillis() - start;
+
+      assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 2000);
+      assertTrue(results.size() < 100);
+      Map<String, String> failures = ldap.getFailures();
+      assertEquals(100, results.size() + failures.size());
+      for (String reason : failures.values()) {
+        assertEquals("Deadline exceeded", reason);
+      }
+    }
+  }
+
+  @Test
+  public void testGetUsers_readTimeout() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(5)) {
+      Ldap ldap = server.createLdap();
+      ldap.setReadTimeoutMillis(200);
+      ldap.setMaxRetries(1);
+      ldap.setRetryBackoffMillis(1);
+      server.setSearchDelayMillis(1000);
+
+      long start = System.currentTimeMillis();
+      Map<String, Map<String, String>> results = ldap.getUsers(Collections.singleton("user0"));
+      long elapsedMillis = System.currentTimeMillis() - start;
+
+      assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 1500);
+      assertTrue(results.isEmpty());
+      assertEquals(Collections.singleton("user0"), ldap.getFailures().keySet());
+      // The timed out connection is discarded rather than reused for the retry
+      assertEquals(2, server.getSearchCount());
+      assertEquals(2, server.getSearchConnectionCount());
+    }
+  }
+
+  @Test
+  public void testGetUsers_metrics() throws Exception {
+    try (InMemoryLdapServer server = new InMemoryLdapServer(30)) {
+      Set<String> uids = InMemoryLdapServer.getUids(30);
+      Ldap ldap = server.createLdap();
+      ldap.setBatchSize(10);
+      ldap.setMaxBatchSize(10);
+      ldap.setSlowBatchMillis(40);
+      server.setSearchDelayMillis(60);
+      ldap.getUsers(uids);
+
+      LdapMetrics metrics = ldap.getMetrics();
+      assertEquals(3, metrics.getBatchCount());
+      assertEquals(3, metrics.getSlowBatchCount());
+      assertTrue(metrics.getSearchMillis().getPercentile(50) >= 60);
+    }
+  }
 }
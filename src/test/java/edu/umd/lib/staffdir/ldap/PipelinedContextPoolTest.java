@@ -0,0 +1,103 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelinedContextPoolTest {
+  private InMemoryLdapServer server;
+  private Hashtable<String, Object> env;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new InMemoryLdapServer(5);
+
+    env = new Hashtable<>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+    env.put(Context.PROVIDER_URL, server.getUrl());
+    env.put(Context.SECURITY_AUTHENTICATION, "simple");
+    env.put(Context.SECURITY_PRINCIPAL, InMemoryLdapServer.BIND_DN);
+    env.put(Context.SECURITY_CREDENTIALS, InMemoryLdapServer.PASSWORD);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private static int countEntries(LdapContext ctx) throws Exception {
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+    NamingEnumeration<SearchResult> results = ctx.search(InMemoryLdapServer.SEARCH_BASE_DN, "(uid=*)",
+        searchControls);
+    int count = 0;
+    while (results.hasMore()) {
+      results.next();
+      count++;
+    }
+    results.close();
+    return count;
+  }
+
+  @Test
+  public void testBorrowedContextsShareConnection() throws Exception {
+    try (PipelinedContextPool pool = new PipelinedContextPool(env, 1, 4)) {
+      List<LdapContext> contexts = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        contexts.add(pool.borrow());
+      }
+      assertNotSame(contexts.get(0), contexts.get(1));
+
+      for (LdapContext ctx : contexts) {
+        assertEquals(5, countEntries(ctx));
+      }
+      for (LdapContext ctx : contexts) {
+        pool.release(ctx);
+      }
+
+      assertEquals(1, pool.getContextsCreated());
+      assertEquals(1, server.getBindCount());
+      assertEquals(1, server.getSearchConnectionCount());
+    }
+  }
+
+  @Test
+  public void testConnectionsUsedInRotation() throws Exception {
+    try (PipelinedContextPool pool = new PipelinedContextPool(env, 2, 4)) {
+      for (int i = 0; i < 4; i++) {
+        LdapContext ctx = pool.borrow();
+        countEntries(ctx);
+        pool.release(ctx);
+      }
+
+      assertEquals(2, pool.getContextsCreated());
+      assertEquals(2, server.getSearchConnectionCount());
+    }
+  }
+
+  @Test
+  public void testInvalidatedConnectionIsReplaced() throws Exception {
+    try (PipelinedContextPool pool = new PipelinedContextPool(env, 1, 2)) {
+      LdapContext ctx1 = pool.borrow();
+      pool.invalidate(ctx1);
+      LdapContext ctx2 = pool.borrow();
+      assertEquals(5, countEntries(ctx2));
+      pool.release(ctx2);
+
+      assertEquals(2, pool.getContextsCreated());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package edu.umd.lib.staffdir.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ReplicaSetTest {
+  private static ReplicaSet createReplicaSet(long cooldownMillis) {
+    return new ReplicaSet(Arrays.asList("ldap://a", "ldap://b", "ldap://c"),
+        url -> new LdapContextPool(new Hashtable<>(), 1), cooldownMillis);
+  }
+
+  @Test
+  public void testSelect_lowestLatency() {
+    try (ReplicaSet replicas = createReplicaSet(60_000)) {
+      ReplicaSet.Replica a = replicas.select(Collections.emptySet());
+      assertEquals("ldap://a", a.toString());
+      replicas.recordSuccess(a, 100);
+
+      // Unmeasured replicas are tried before measured ones
+      ReplicaSet.Replica b = replicas.select(Collections.emptySet());
+      assertEquals("ldap://b", b.toString());
+      replicas.recordSuccess(b, 10);
+      ReplicaSet.Replica c = replicas.select(Collections.emptySet());
+      assertEquals("ldap://c", c.toString());
+      replicas.recordSuccess(c, 50);
+
+      assertEquals(b, replicas.select(Collections.emptySet()));
+      assertEquals(c, replicas.select(Collections.singleton(b)));
+    }
+  }
+
+  @Test
+  public void testSelect_failedReplicaAvoided() {
+    try (ReplicaSet replicas = createReplicaSet(60_000)) {
+      ReplicaSet.Replica a = replicas.select(Collections.emptySet());
+      replicas.recordFailure(a);
+      ReplicaSet.Replica b = replicas.select(Collections.emptySet());
+      assertEquals("ldap://b", b.toString());
+      replicas.recordFailure(b);
+      ReplicaSet.Replica c = replicas.select(Collections.emptySet());
+      assertEquals("ldap://c", c.toString());
+
+      // Unhealthy replicas are still used once the healthy ones are tried,
+      // the one failing earliest first
+      Set<ReplicaSet.Replica> tried = Collections.singleton(c);
+      assertEquals(a, replicas.select(tried));
+      assertNull(replicas.select(Arrays.asList(a, b, c)));
+    }
+  }
+
+  @Test
+  public void testSelect_cooldownExpires() throws Exception {
+    try (ReplicaSet replicas = createReplicaSet(50)) {
+      ReplicaSet.Replica a = replicas.select(Collections.emptySet());
+      replicas.recordSuccess(a, 10);
+      replicas.recordSuccess(replicas.select(Collections.emptySet()), 100);
+      replicas.recordSuccess(replicas.select(Collections.emptySet()), 100);
+      assertEquals(a, replicas.select(Collections.emptySet()));
+
+      replicas.recordFailure(a);
+      assertEquals("ldap://b", replicas.select(Collections.emptySet()).toString());
+
+      Thread.sleep(100);
+      assertEquals(a, replicas.select(Collections.emptySet()));
+    }
+  }
+}